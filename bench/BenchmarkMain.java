@@ -0,0 +1,36 @@
+package bench;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Path;
+
+/**
+ * Runs the hot-path benchmarks and writes their rough timings (see {@link Harness}) as tab-separated values.
+ * Usage: java bench.BenchmarkMain [nameFilter] [--out=file]   (default bench-timings.tsv)
+ * System.out is swallowed during the run, so println-heavy code keeps its
+ * formatting and locking cost without flooding the console.
+ */
+public class BenchmarkMain {
+    public static void main(String[] args) throws Exception {
+        String filter = null;
+        Path timings = Path.of("bench-timings.tsv");
+        for (String arg : args) {
+            if (arg.startsWith("--out=")) timings = Path.of(arg.substring("--out=".length()));
+            else filter = arg;
+        }
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        Harness harness = new Harness(filter, console);
+        console.println(harness.describe());
+        try {
+            CodecBenchmarks.run(harness);
+            BroadcastBenchmarks.run(harness);
+            DiffBenchmarks.run(harness);
+            CompressionBenchmarks.run(harness);
+        } finally {
+            System.setOut(console);
+        }
+        harness.writeTimings(timings);
+        System.out.println("Timings written to " + timings.toAbsolutePath());
+    }
+}
@@ -0,0 +1,92 @@
+package bench;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import server.ConnectedClient;
+import server.Room;
+import server.ServerBroadcaster;
+import shared.Message;
+import shared.WireFormat;
+import static shared.SharedConstants.*;
+
+/**
+ * {@link Room#broadcast} fan-out to in-memory clients: each message goes through
+ * the real per-client queue, which the sink drains and encodes immediately, as a
+ * connection's writer would. {@code fanOut} shares one encoding per broadcast;
+ * {@code fanOutEncodeEach} encodes per recipient, as the server did before, for
+ * comparing allocations per broadcast. {@code roomFanOut} broadcasts into one
+ * small room while the rest of the clients sit in other rooms.
+ */
+public final class BroadcastBenchmarks {
+    static final int[] CLIENTS = { 10, 100, 1000 };
+    static final int ROOM_SIZE = 10;
+
+    private BroadcastBenchmarks() {
+    }
+
+    /** A connected client without a socket. */
+    private static final class Sink extends ConnectedClient {
+        private final List<Message> drained = new ArrayList<>();
+        private final WireFormat format;
+        private final boolean encodeEach;
+        long bytes;
+
+        Sink(ServerBroadcaster broadcaster, WireFormat format, boolean encodeEach) {
+            super(broadcaster);
+            this.format = format;
+            this.encodeEach = encodeEach;
+        }
+
+        @Override
+        protected void switchInputToBinary() {
+        }
+
+        @Override
+        protected void closeTransport() {
+        }
+
+        @Override
+        protected void onOutboundReady() {
+            drainOutbound(drained);
+            for (Message message : drained) {
+                ByteBuffer frame = encodeEach ? format.encode(message) : message.encoded(format);
+                bytes += frame.remaining();
+            }
+            drained.clear();
+        }
+    }
+
+    public static void run(Harness harness) throws Exception {
+        String payload = CodecBenchmarks.payload(64);
+        for (WireFormat format : WireFormat.values()) {
+            for (int clients : CLIENTS) {
+                for (boolean encodeEach : new boolean[] { false, true }) {
+                    ServerBroadcaster broadcaster = new ServerBroadcaster();
+                    Room room = broadcaster.getRoom(DEFAULT_ROOM);
+                    for (int i = 0; i < clients; i++) broadcaster.join(new Sink(broadcaster, format, encodeEach), DEFAULT_ROOM);
+                    harness.run(encodeEach ? "broadcast.fanOutEncodeEach" : "broadcast.fanOut",
+                            Harness.params("clients", String.valueOf(clients), "format", format.name()), () -> {
+                                // A new message per broadcast, as every edit the server relays is
+                                Message message = Message.of(MSG_EDIT, FILE_TYPE_TXT, "1234", payload, "alice", "87");
+                                room.broadcast(message, null);
+                                return message;
+                            });
+                }
+            }
+        }
+        for (int clients : CLIENTS) {
+            // Rooms of ten, as many as it takes to host this many clients
+            ServerBroadcaster broadcaster = new ServerBroadcaster();
+            for (int i = 0; i < clients; i++) {
+                broadcaster.join(new Sink(broadcaster, WireFormat.BINARY, false), "room-" + i / ROOM_SIZE);
+            }
+            Room room = broadcaster.getRoom("room-0");
+            harness.run("broadcast.roomFanOut", Harness.params("clients", String.valueOf(clients), "roomSize", String.valueOf(ROOM_SIZE)), () -> {
+                Message message = Message.of(MSG_EDIT, FILE_TYPE_TXT, "1234", payload, "alice", "87");
+                room.broadcast(message, null);
+                return message;
+            });
+        }
+    }
+}
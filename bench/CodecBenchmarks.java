@@ -0,0 +1,46 @@
+package bench;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import shared.BinaryCodec;
+import shared.Message;
+import shared.SharedConstants;
+import static shared.SharedConstants.*;
+
+/**
+ * The text protocol's build/parse/escape/unescape over small, typical and large
+ * edit payloads, with the binary codec on the same messages for comparison.
+ */
+public final class CodecBenchmarks {
+    static final int[] PAYLOAD_CHARS = { 16, 1024, 64 * 1024 };
+
+    private CodecBenchmarks() {
+    }
+
+    public static void run(Harness harness) throws Exception {
+        for (int chars : PAYLOAD_CHARS) {
+            Map<String, String> params = Harness.params("payloadChars", String.valueOf(chars));
+            String payload = payload(chars);
+            String escaped = escapeText(payload);
+            String line = buildMessage(MSG_EDIT, FILE_TYPE_TXT, "1234", payload, "alice", "87");
+            Message message = Message.of(MSG_EDIT, FILE_TYPE_TXT, "1234", payload, "alice", "87");
+            ByteBuffer frame = BinaryCodec.encode(message);
+
+            harness.run("codec.buildMessage", params, () -> buildMessage(MSG_EDIT, FILE_TYPE_TXT, "1234", payload, "alice", "87"));
+            harness.run("codec.parseMessage", params, () -> parseMessage(line));
+            harness.run("codec.escapeText", params, () -> SharedConstants.escapeText(payload));
+            harness.run("codec.unescapeText", params, () -> SharedConstants.unescapeText(escaped));
+            harness.run("codec.binaryEncode", params, () -> BinaryCodec.encode(message));
+            harness.run("codec.binaryDecode", params, () -> BinaryCodec.decode(frame.duplicate()));
+        }
+    }
+
+    /** Source-like text: mostly ASCII, with the newlines, tabs and pipes the text protocol escapes. */
+    static String payload(int chars) {
+        String sample = "\tif (a | b) {\n\t\treturn \"x\\y\";\n\t}\n// na\u00efve caf\u00e9\n";
+        StringBuilder text = new StringBuilder(chars);
+        while (text.length() < chars) text.append(sample);
+        text.setLength(chars);
+        return text.toString();
+    }
+}
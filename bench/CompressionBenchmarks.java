@@ -0,0 +1,63 @@
+package bench;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Random;
+import shared.BinaryCodec;
+import shared.FrameCompression;
+import shared.Message;
+import static shared.SharedConstants.*;
+
+/**
+ * The bandwidth/CPU trade-off of per-connection frame compression: a keystroke
+ * EDIT, a pasted block of code and a SYNC of a whole document, each sent again and
+ * again on one connection. "compress" is the sender's cost per frame, "roundTrip"
+ * adds the receiver's inflate and decode. The params record the plain frame size
+ * and the size on the wire, for the first frame of a connection ("coldBytes") and
+ * once the stream has seen it before ("wireBytes"). Keystrokes are measured with
+ * the default threshold (sent as they are) and forced through deflate.
+ */
+public final class CompressionBenchmarks {
+    static final int[] PAYLOAD_CHARS = { 1, 4 * 1024, 64 * 1024 };
+
+    private CompressionBenchmarks() {
+    }
+
+    public static void run(Harness harness) throws Exception {
+        for (int chars : PAYLOAD_CHARS) {
+            Message message = chars < 1024
+                    ? Message.of(MSG_EDIT, FILE_TYPE_JAVA, "1234", source(chars), "alice", "87")
+                    : Message.of(MSG_SYNC, FILE_TYPE_JAVA, source(chars), "alice", "87");
+            ByteBuffer frame = BinaryCodec.encode(message);
+            for (int threshold : chars < FrameCompression.THRESHOLD ? new int[] { FrameCompression.THRESHOLD, 1 } : new int[] { FrameCompression.THRESHOLD }) {
+                int cold = new FrameCompression.Compressor(threshold).compress(frame).remaining();
+                FrameCompression.Compressor compressor = new FrameCompression.Compressor(threshold);
+                compressor.compress(frame);
+                int wire = compressor.compress(frame).remaining();
+                Map<String, String> params = Harness.params("payloadChars", String.valueOf(chars), "threshold", String.valueOf(threshold),
+                        "frameBytes", String.valueOf(frame.remaining()), "coldBytes", String.valueOf(cold), "wireBytes", String.valueOf(wire));
+                harness.run("compression.compress", params, () -> compressor.compress(frame));
+                FrameCompression.Compressor sender = new FrameCompression.Compressor(threshold);
+                FrameCompression.Decompressor receiver = new FrameCompression.Decompressor();
+                harness.run("compression.roundTrip", params, () -> BinaryCodec.decode(sender.compress(frame).duplicate(), receiver, BinaryCodec.MAX_FRAME_LENGTH));
+            }
+        }
+    }
+
+    /** Code-like text from a small vocabulary, so it compresses about as well as real source. */
+    static String source(int chars) {
+        String[] words = { "public", "private", "static", "final", "int", "String", "return", "if", "else", "for", "new",
+                "this", "null", "value", "count", "index", "length", "message", "document", "(", ")", "{", "}", ";", "=", "+", "." };
+        Random random = new Random(chars);
+        StringBuilder text = new StringBuilder(chars);
+        int line = 0;
+        while (text.length() < chars) {
+            text.append(words[random.nextInt(words.length)]);
+            if (random.nextInt(8) == 0) text.append(random.nextInt(1000));
+            if (++line % 9 == 0) text.append(";\n        ");
+            else text.append(' ');
+        }
+        text.setLength(chars);
+        return text.toString();
+    }
+}
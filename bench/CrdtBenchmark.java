@@ -0,0 +1,90 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import shared.Rga;
+import shared.RgaOp;
+import shared.TextEdit;
+
+/**
+ * Compares the RGA sequence CRDT with plain text for a 1 MB document: retained
+ * memory per document, and how fast a replica merges another replica's ops
+ * versus applying the same edits to a StringBuilder.
+ * Usage: java bench.CrdtBenchmark [documentChars] [chunkChars]
+ */
+public class CrdtBenchmark {
+    private static final int DEFAULT_DOCUMENT_CHARS = 1 << 20;
+    private static final int DEFAULT_CHUNK_CHARS = 64;
+
+    public static void main(String[] args) {
+        int documentChars = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_DOCUMENT_CHARS;
+        int chunkChars = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_CHUNK_CHARS;
+        System.out.println("Document: " + documentChars + " chars, edits of " + chunkChars + " chars");
+
+        usedMemory(); // settle startup garbage before the first baseline
+        // Sequential typing (runs merge) and scattered typing (one item per edit).
+        run("sequential", Workload.generate(documentChars, chunkChars, false, new Random(42)), documentChars);
+        run("scattered", Workload.generate(documentChars, chunkChars, true, new Random(42)), documentChars);
+    }
+
+    /** Runs one workload; its documents become garbage on return, so they do not skew the next run. */
+    private static void run(String label, Workload workload, int documentChars) {
+        long before = usedMemory();
+        StringBuilder plain = new StringBuilder();
+        for (TextEdit edit : workload.edits) plain.insert(edit.getPosition(), edit.getText());
+        long plainBytes = usedMemory() - before;
+
+        before = usedMemory();
+        Rga merged = new Rga(2);
+        long start = System.nanoTime();
+        for (RgaOp op : workload.ops) merged.apply(op);
+        long rgaNanos = System.nanoTime() - start;
+        long rgaBytes = usedMemory() - before;
+
+        start = System.nanoTime();
+        StringBuilder replay = new StringBuilder();
+        for (TextEdit edit : workload.edits) replay.insert(edit.getPosition(), edit.getText());
+        long plainNanos = System.nanoTime() - start;
+
+        if (!merged.text().equals(plain.toString()) || !replay.toString().equals(plain.toString())) {
+            throw new IllegalStateException("replicas diverged");
+        }
+        System.out.printf("%-10s plain text: %,12d bytes  %8.1f ms  %,10.0f edits/s%n", label,
+                plainBytes, plainNanos / 1e6, workload.ops.size() / (plainNanos / 1e9));
+        System.out.printf("%-10s rga merge:  %,12d bytes  %8.1f ms  %,10.0f ops/s  (%d items, %.1f bytes/char)%n", label,
+                rgaBytes, rgaNanos / 1e6, workload.ops.size() / (rgaNanos / 1e9),
+                merged.itemCount(), (double) rgaBytes / documentChars);
+    }
+
+    /** The same document typed on one replica, as CRDT ops and as positional edits. */
+    private record Workload(List<RgaOp> ops, List<TextEdit> edits) {
+        static Workload generate(int documentChars, int chunkChars, boolean scattered, Random random) {
+            Rga author = new Rga(1);
+            List<RgaOp> ops = new ArrayList<>();
+            List<TextEdit> edits = new ArrayList<>();
+            while (author.length() < documentChars) {
+                int length = Math.min(chunkChars, documentChars - author.length());
+                StringBuilder text = new StringBuilder(length);
+                for (int i = 0; i < length; i++) text.append((char) ('a' + random.nextInt(26)));
+                int position = scattered ? random.nextInt(author.length() + 1) : author.length();
+                ops.add(author.localInsert(position, text.toString()));
+                edits.add(TextEdit.insert(position, text.toString()));
+            }
+            return new Workload(ops, edits);
+        }
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,30 @@
+package bench;
+
+import shared.TextEdit;
+
+/**
+ * The client's change detection ({@link TextEdit#diff}) for one typed character
+ * in large documents, near the start, in the middle and at the end.
+ */
+public final class DiffBenchmarks {
+    static final int[] DOCUMENT_CHARS = { 10_000, 100_000, 1_000_000 };
+
+    private DiffBenchmarks() {
+    }
+
+    public static void run(Harness harness) throws Exception {
+        for (int chars : DOCUMENT_CHARS) {
+            String document = CodecBenchmarks.payload(chars);
+            for (String where : new String[] { "start", "middle", "end" }) {
+                int position = switch (where) {
+                    case "start" -> 10;
+                    case "middle" -> chars / 2;
+                    default -> chars;
+                };
+                String typed = document.substring(0, position) + "x" + document.substring(position);
+                harness.run("diff.typeCharacter", Harness.params("documentChars", String.valueOf(chars), "position", where),
+                        () -> TextEdit.diff(document, typed));
+            }
+        }
+    }
+}
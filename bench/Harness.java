@@ -0,0 +1,131 @@
+package bench;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A small throughput harness for rough timings: warmup iterations, then timed
+ * measurement iterations, each running the operation in growing batches until the
+ * iteration time is up. It is not JMH: everything runs in this one JVM, with no
+ * forks and only a volatile sink against dead-code elimination, so results are for
+ * comparing runs on the same machine. It also reports the bytes allocated per
+ * operation, counted on the measuring thread.
+ * <p>
+ * Settings: -Dbench.warmup=N, -Dbench.iterations=N, -Dbench.time=millis per iteration.
+ */
+public final class Harness {
+    /** One invocation of the code under test; the result is consumed so it cannot be optimized away. */
+    public interface Operation {
+        Object run() throws Exception;
+    }
+
+    private record Result(String benchmark, Map<String, String> params, double score, double error, double[] raw, double allocated) { }
+
+    // Two-sided 99.9% Student t quantiles for 1..20 degrees of freedom, for the error over the iterations.
+    private static final double[] T_999 = {
+            636.62, 31.60, 12.92, 8.61, 6.87, 5.96, 5.41, 5.04, 4.78, 4.59,
+            4.44, 4.32, 4.22, 4.14, 4.07, 4.01, 3.97, 3.92, 3.88, 3.85 };
+
+    private static volatile Object sink;
+    private static final com.sun.management.ThreadMXBean THREADS = threadBean();
+
+    private final int warmupIterations = Integer.getInteger("bench.warmup", 3);
+    private final int measurementIterations = Math.max(2, Integer.getInteger("bench.iterations", 5));
+    private final long iterationNanos = Integer.getInteger("bench.time", 500) * 1_000_000L;
+    private final String filter;
+    private final PrintStream report;
+    private final List<Result> results = new ArrayList<>();
+    private long allocatedBytes;
+    private long measuredOperations;
+
+    /** @param report where each result is printed as it completes */
+    public Harness(String filter, PrintStream report) {
+        this.filter = filter;
+        this.report = report;
+    }
+
+    /** Measures {@code operation} in ops/s, unless its name does not match the filter. */
+    public void run(String benchmark, Map<String, String> params, Operation operation) throws Exception {
+        if (filter != null && !benchmark.contains(filter)) return;
+        double[] raw = new double[measurementIterations];
+        for (int i = 0; i < warmupIterations; i++) iteration(operation);
+        allocatedBytes = 0;
+        measuredOperations = 0;
+        for (int i = 0; i < measurementIterations; i++) raw[i] = iteration(operation);
+        double allocated = THREADS == null ? Double.NaN : (double) allocatedBytes / measuredOperations;
+        double mean = 0;
+        for (double value : raw) mean += value;
+        mean /= raw.length;
+        double variance = 0;
+        for (double value : raw) variance += (value - mean) * (value - mean);
+        double stddev = Math.sqrt(variance / (raw.length - 1));
+        double error = T_999[Math.min(raw.length - 1, T_999.length) - 1] * stddev / Math.sqrt(raw.length);
+        results.add(new Result(benchmark, params, mean, error, raw, allocated));
+        report.printf("%-28s %-40s %,16.1f +- %,.1f ops/s %,12.1f B/op%n", benchmark, params, mean, error, allocated);
+    }
+
+    private double iteration(Operation operation) throws Exception {
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        long now = start;
+        long operations = 0;
+        int batch = 1;
+        while (now - start < iterationNanos) {
+            long batchStart = now;
+            for (int i = 0; i < batch; i++) sink = operation.run();
+            operations += batch;
+            now = System.nanoTime();
+            // Grow batches until a batch takes about a millisecond, so the clock is not the bottleneck.
+            if (now - batchStart < 1_000_000 && batch < (1 << 30)) batch <<= 1;
+        }
+        allocatedBytes += allocatedBytes() - allocatedBefore;
+        measuredOperations += operations;
+        return operations / ((now - start) / 1e9);
+    }
+
+    private static long allocatedBytes() {
+        return THREADS == null ? 0 : THREADS.getCurrentThreadAllocatedBytes();
+    }
+
+    /** HotSpot's extension of ThreadMXBean, or null on JVMs without allocation counting. */
+    private static com.sun.management.ThreadMXBean threadBean() {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean threads)) return null;
+        if (!threads.isThreadAllocatedMemorySupported()) return null;
+        threads.setThreadAllocatedMemoryEnabled(true);
+        return threads;
+    }
+
+    public static Map<String, String> params(String... keysAndValues) {
+        Map<String, String> params = new LinkedHashMap<>();
+        for (int i = 0; i + 1 < keysAndValues.length; i += 2) params.put(keysAndValues[i], keysAndValues[i + 1]);
+        return params;
+    }
+
+    /** What the results are and are not, printed ahead of them and written into the timings file. */
+    public String describe() {
+        return String.format("Rough timings: %d warmup and %d measured iterations of %d ms in one JVM, no forks;"
+                + " the error is a 99.9%% interval over the iterations. Not JMH; compare runs on the same machine only.",
+                warmupIterations, measurementIterations, iterationNanos / 1_000_000);
+    }
+
+    /** Writes the results as tab-separated values, one line each, after a {@link #describe()} comment line. */
+    public void writeTimings(Path file) throws IOException {
+        try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            out.write("# " + describe() + " Java " + System.getProperty("java.version") + "\n");
+            out.write("benchmark\tparams\tops/s\terror\tB/op\n");
+            for (Result result : results) {
+                out.write(result.benchmark() + "\t" + result.params() + "\t" + result.score() + "\t" + result.error()
+                        + "\t" + (Double.isNaN(result.allocated()) ? "" : result.allocated()) + "\n");
+            }
+        }
+    }
+}
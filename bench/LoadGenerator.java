@@ -0,0 +1,173 @@
+package bench;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import server.LatencyHistogram;
+import server.ServerConfig;
+import server.ServerMain;
+import static shared.SharedConstants.*;
+
+/**
+ * Capacity planning: simulates a scenario's users editing against a server and
+ * reports how long edits took to reach the other members of their room
+ * (p50/p99/p999), message throughput and dropped connections.
+ * Usage: java bench.LoadGenerator scenario.properties [--host=H] [--port=N]
+ * <p>
+ * Users connect one by one over the ramp-up, then each acts on its own schedule
+ * on a small shared pool; only the time after the ramp-up is measured. Every user
+ * has a listener thread of its own, as {@link client.ClientConnection} does. The
+ * server must use OT convergence.
+ */
+public class LoadGenerator {
+    private static final long REPORT_INTERVAL_NANOS = 5_000_000_000L;
+
+    private final LoadScenario scenario;
+    private final String host;
+    private final int port;
+    private final List<SimulatedUser> users = new ArrayList<>();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder batchesSent = new LongAdder();
+    private final LongAdder messagesReceived = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder failedConnects = new LongAdder();
+    private ScheduledExecutorService scheduler;
+    private volatile boolean measuring;
+    private volatile boolean stopping;
+    private long measuredNanos;
+
+    public LoadGenerator(LoadScenario scenario, String host, int port) {
+        this.scenario = scenario;
+        this.host = host;
+        this.port = port;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length == 0) {
+            System.out.println("Usage: java bench.LoadGenerator scenario.properties [--host=H] [--port=N]");
+            return;
+        }
+        LoadScenario scenario = LoadScenario.load(Path.of(args[0]));
+        String host = SERVER_HOST;
+        int port = SERVER_PORT;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].startsWith("--host=")) host = args[i].substring("--host=".length());
+            else if (args[i].startsWith("--port=")) port = Integer.parseInt(args[i].substring("--port=".length()));
+        }
+        ServerMain server = null;
+        if (scenario.serverArgs() != null) {
+            server = startServer(scenario.serverArgs(), port);
+        }
+        LoadGenerator generator = new LoadGenerator(scenario, host, port);
+        try {
+            generator.run(System.out);
+            generator.report(System.out);
+        } finally {
+            if (server != null) server.stop();
+        }
+    }
+
+    /** A server in this JVM, listening on {@code port}; it shares the machine with the users it serves. */
+    private static ServerMain startServer(String arguments, int port) throws InterruptedException {
+        ServerConfig config = ServerConfig.parse((arguments.trim() + " " + port).trim().split("\\s+"));
+        ServerMain server = new ServerMain(config);
+        Thread thread = new Thread(() -> server.start(config.getPort()), "server");
+        thread.setDaemon(true);
+        thread.start();
+        // start() only returns for nio, so give the thread-per-client modes time to bind
+        Thread.sleep(1000);
+        return server;
+    }
+
+    public void run(PrintStream progress) throws InterruptedException {
+        scheduler = Executors.newScheduledThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+            Thread thread = new Thread(runnable, "load");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long rampUpNanos = TimeUnit.SECONDS.toNanos(scenario.rampUpSeconds());
+        for (int i = 0; i < scenario.users(); i++) {
+            SimulatedUser user = new SimulatedUser("sim" + i, "load-" + i % scenario.rooms(), scenario, this);
+            users.add(user);
+            scheduler.schedule(() -> start(user), rampUpNanos * i / scenario.users(), TimeUnit.NANOSECONDS);
+        }
+        progress.printf("Scenario %s: %d users in %d room(s), ramping up for %d s%n",
+                scenario.name(), scenario.users(), scenario.rooms(), scenario.rampUpSeconds());
+        TimeUnit.NANOSECONDS.sleep(rampUpNanos);
+
+        measuring = true;
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(scenario.durationSeconds());
+        for (long now = start; now < end; now = System.nanoTime()) {
+            TimeUnit.NANOSECONDS.sleep(Math.min(REPORT_INTERVAL_NANOS, end - now));
+            long elapsed = System.nanoTime() - start;
+            progress.printf("%6.0f s  sent %,10.1f/s  received %,12.1f/s  p99 %8.2f ms  dropped %d%n",
+                    elapsed / 1e9, perSecond(batchesSent.sum(), elapsed), perSecond(messagesReceived.sum(), elapsed),
+                    latency.quantile(0.99) / 1e6, dropped.sum());
+        }
+        measuredNanos = System.nanoTime() - start;
+        measuring = false;
+        stopping = true;
+        scheduler.shutdownNow();
+        scheduler.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    private void start(SimulatedUser user) {
+        if (stopping) return;
+        if (user.connect(host, port)) scheduleNext(user);
+        else failedConnects.increment();
+    }
+
+    private void scheduleNext(SimulatedUser user) {
+        if (stopping || !user.isConnected()) return;
+        // Exponential pauses: users act independently, like arrivals in a Poisson process
+        double pause = -Math.log(1 - ThreadLocalRandom.current().nextDouble()) * scenario.actionMillis();
+        try {
+            scheduler.schedule(() -> {
+                user.act(ThreadLocalRandom.current());
+                scheduleNext(user);
+            }, (long) (pause * 1e6), TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            // The run ended between the check and the schedule
+        }
+    }
+
+    public void report(PrintStream out) {
+        int connected = 0;
+        for (SimulatedUser user : users) {
+            if (user.isConnected()) connected++;
+            user.disconnect();
+        }
+        out.printf("%nScenario %s: %d users in %d room(s), %.1f s measured after a %d s ramp-up%n",
+                scenario.name(), scenario.users(), scenario.rooms(), measuredNanos / 1e9, scenario.rampUpSeconds());
+        out.printf("connections  %d connected at the end, %d failed to connect, %d dropped%n",
+                connected, failedConnects.sum(), dropped.sum());
+        out.printf("sent         %,.1f edit messages/s (%d rejected)%n", perSecond(batchesSent.sum(), measuredNanos), rejected.sum());
+        out.printf("received     %,.1f messages/s%n", perSecond(messagesReceived.sum(), measuredNanos));
+        out.printf("propagation  p50 %.2f ms  p99 %.2f ms  p999 %.2f ms  max %.2f ms  (%,d deliveries)%n",
+                latency.quantile(0.5) / 1e6, latency.quantile(0.99) / 1e6, latency.quantile(0.999) / 1e6,
+                latency.getMax() / 1e6, latency.getCount());
+    }
+
+    private static double perSecond(long count, long nanos) {
+        return nanos == 0 ? 0 : count * 1e9 / nanos;
+    }
+
+    void batchSent() { if (measuring) batchesSent.increment(); }
+    void messageReceived() { if (measuring) messagesReceived.increment(); }
+    void editRejected() { if (measuring) rejected.increment(); }
+    void propagated(long nanos) { if (measuring) latency.record(nanos); }
+
+    void connectionLost() {
+        if (!stopping) dropped.increment();
+    }
+}
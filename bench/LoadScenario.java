@@ -0,0 +1,97 @@
+package bench;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.Random;
+import static shared.SharedConstants.*;
+
+/**
+ * What a {@link LoadGenerator} run does, read from a properties file so scenarios
+ * can be checked in and rerun (see bench/scenarios). Every key is optional:
+ * <pre>
+ * users=200              simulated clients
+ * rooms=4                rooms they are spread over, round robin
+ * file=TXT               document they edit
+ * rampup.seconds=5       time over which they connect; not measured
+ * duration.seconds=30    measured time after the ramp-up
+ * action.millis=200      mean pause between one user's actions (exponentially distributed)
+ * mix.type=85            relative weights of the actions:
+ * mix.paste=2              type a few characters, paste a block,
+ * mix.delete=10            delete backwards from the caret,
+ * mix.jump=3               move the caret somewhere else
+ * type.chars=1-6         characters per action, as min-max or one number
+ * paste.chars=200-2000
+ * delete.chars=1-10
+ * server.args=--mode=nio  if set, a ServerMain with these arguments is started in-process
+ * </pre>
+ */
+public record LoadScenario(String name, int users, int rooms, String fileType, int rampUpSeconds, int durationSeconds,
+                           int actionMillis, int typeWeight, int pasteWeight, int deleteWeight, int jumpWeight,
+                           Range typeChars, Range pasteChars, Range deleteChars, String serverArgs) {
+
+    /** Inclusive bounds of a random size. */
+    public record Range(int min, int max) {
+        int pick(Random random) {
+            return min + random.nextInt(max - min + 1);
+        }
+
+        static Range parse(String value) {
+            int dash = value.indexOf('-', 1);
+            int min = Integer.parseInt(value.substring(0, dash < 0 ? value.length() : dash).trim());
+            int max = dash < 0 ? min : Integer.parseInt(value.substring(dash + 1).trim());
+            if (min < 0 || max < min) throw new IllegalArgumentException("Invalid range " + value);
+            return new Range(min, max);
+        }
+    }
+
+    public static LoadScenario load(Path file) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        String name = file.getFileName().toString().replaceFirst("\\.properties$", "");
+        String fileType = properties.getProperty("file", FILE_TYPE_TXT);
+        if (!fileType.equals(FILE_TYPE_TXT) && !fileType.equals(FILE_TYPE_JAVA)) {
+            throw new IllegalArgumentException("Unknown file " + fileType);
+        }
+        LoadScenario scenario = new LoadScenario(name,
+                number(properties, "users", 200, 1), number(properties, "rooms", 4, 1), fileType,
+                number(properties, "rampup.seconds", 5, 0), number(properties, "duration.seconds", 30, 1),
+                number(properties, "action.millis", 200, 1),
+                number(properties, "mix.type", 85, 0), number(properties, "mix.paste", 2, 0),
+                number(properties, "mix.delete", 10, 0), number(properties, "mix.jump", 3, 0),
+                range(properties, "type.chars", "1-6"), range(properties, "paste.chars", "200-2000"),
+                range(properties, "delete.chars", "1-10"), properties.getProperty("server.args"));
+        if (scenario.totalWeight() == 0) throw new IllegalArgumentException("All mix.* weights are 0");
+        return scenario;
+    }
+
+    int totalWeight() {
+        return typeWeight + pasteWeight + deleteWeight + jumpWeight;
+    }
+
+    private static int number(Properties properties, String key, int defaultValue, int min) {
+        String value = properties.getProperty(key);
+        if (value == null) return defaultValue;
+        try {
+            int number = Integer.parseInt(value.trim());
+            if (number < min) throw new IllegalArgumentException(key + " must be at least " + min);
+            return number;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + key + ": " + value);
+        }
+    }
+
+    private static Range range(Properties properties, String key, String defaultValue) {
+        String value = properties.getProperty(key, defaultValue);
+        try {
+            return Range.parse(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + key + ": " + value);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+import server.Convergence;
+import server.Document;
+import server.DocumentStore;
+import server.Persistence;
+import shared.TextEdit;
+
+/**
+ * Measures the write-ahead log: how many edits per second a document accepts
+ * with logging on, and how long a restart takes to replay a log of a given size.
+ * Snapshots are disabled so the whole log has to be replayed.
+ * Usage: java bench.PersistenceBenchmark [logMegabytes] [syncMillis]   (default 100 MB, 10 ms)
+ */
+public class PersistenceBenchmark {
+    private static final String ROOM = "bench";
+
+    public static void main(String[] args) throws IOException {
+        long logBytes = (args.length > 0 ? Long.parseLong(args[0]) : 100) << 20;
+        int syncMillis = args.length > 1 ? Integer.parseInt(args[1]) : Persistence.DEFAULT_SYNC_MILLIS;
+        Path directory = Files.createTempDirectory("wal-bench");
+        try {
+            Persistence persistence = new Persistence(directory, syncMillis, Long.MAX_VALUE);
+            persistence.start();
+            Document document = new DocumentStore(Convergence.OT, persistence, ROOM).get("TXT");
+            Random random = new Random(42);
+            long edits = 0;
+            long start = System.nanoTime();
+            // Typing with deletes at random places, in a document that stays around 64 kB.
+            while (logSize(directory) < logBytes) {
+                for (int i = 0; i < 100_000; i++, edits++) {
+                    document.lock();
+                    try {
+                        int length = document.length();
+                        if (length > 65536 || (length > 8 && random.nextInt(3) == 0)) {
+                            document.apply(TextEdit.delete(random.nextInt(length - 8), 1 + random.nextInt(8)));
+                        } else {
+                            document.apply(TextEdit.insert(random.nextInt(length + 1), "word "));
+                        }
+                    } finally {
+                        document.unlock();
+                    }
+                }
+            }
+            persistence.close();
+            long appendNanos = System.nanoTime() - start;
+            String expected = document.getText();
+            System.out.printf("append:  %,d edits, %,d log bytes in %.1f ms  %,10.0f edits/s%n",
+                    edits, logSize(directory), appendNanos / 1e6, edits / (appendNanos / 1e9));
+
+            Persistence restarted = new Persistence(directory, syncMillis, Long.MAX_VALUE);
+            restarted.start();
+            start = System.nanoTime();
+            Document recovered = new DocumentStore(Convergence.OT, restarted, ROOM).get("TXT");
+            long recoverNanos = System.nanoTime() - start;
+            restarted.close();
+            if (!recovered.getText().equals(expected)) throw new IllegalStateException("recovered text differs");
+            System.out.printf("recover: %,d edits in %.1f ms  %,10.0f edits/s  %.1f MB/s%n", recovered.getRevision(),
+                    recoverNanos / 1e6, recovered.getRevision() / (recoverNanos / 1e9), logSize(directory) / (recoverNanos / 1e3));
+        } finally {
+            delete(directory);
+        }
+    }
+
+    private static long logSize(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            return files.filter(Files::isRegularFile).mapToLong(file -> file.toFile().length()).sum();
+        }
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package bench;
+
+import client.ClientConnection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.locks.ReentrantLock;
+import shared.Message;
+import shared.OperationClient;
+import shared.TextEdit;
+import shared.WireFormat;
+import static shared.SharedConstants.*;
+
+/**
+ * One headless client of a {@link LoadGenerator}: the editor's protocol over a
+ * {@link ClientConnection}, with the document reduced to its length and a caret.
+ * Edits go through an {@link OperationClient} exactly as the UI sends them, one
+ * batch in flight per user.
+ * <p>
+ * The sender field of every edit carries the time its oldest edit was made, so
+ * the users that receive it can tell how long it took to reach them. All users
+ * run in one JVM, so their {@link System#nanoTime()} clocks agree.
+ */
+final class SimulatedUser implements ClientConnection.MessageListener {
+    private static final String ALPHABET = "abcdefghijklmnopqrstuvwxyz     \n";
+    private static final char SENT_AT = '@';
+
+    private final String username;
+    private final String room;
+    private final LoadScenario scenario;
+    private final LoadGenerator generator;
+    private final ClientConnection connection = new ClientConnection(this);
+    private final OperationClient otClient = new OperationClient();
+    private final ReentrantLock lock = new ReentrantLock();
+    private int length;
+    private int caret;
+    // When the oldest edit not yet sent was made, or 0
+    private long unsentSince;
+
+    SimulatedUser(String username, String room, LoadScenario scenario, LoadGenerator generator) {
+        this.username = username;
+        this.room = room;
+        this.scenario = scenario;
+        this.generator = generator;
+    }
+
+    boolean connect(String host, int port) {
+        return connection.connect(host, port)
+                && connection.sendMessage(Message.of(MSG_JOIN, username, WireFormat.offer(), room));
+    }
+
+    void disconnect() {
+        connection.disconnect();
+    }
+
+    boolean isConnected() {
+        return connection.isConnected();
+    }
+
+    /** One action picked from the scenario's mix; what it changed goes out unless a batch is in flight. */
+    void act(Random random) {
+        Message message;
+        lock.lock();
+        try {
+            if (!otClient.isSynced()) return;
+            TextEdit edit = nextEdit(random);
+            if (edit == null) return;
+            otClient.localEdit(edit);
+            length += edit.lengthDelta();
+            caret = edit.getPosition() + edit.getText().length();
+            if (unsentSince == 0) unsentSince = System.nanoTime();
+            message = batchMessage(otClient.flush());
+        } finally {
+            lock.unlock();
+        }
+        send(message);
+    }
+
+    private TextEdit nextEdit(Random random) {
+        int roll = random.nextInt(scenario.totalWeight());
+        if ((roll -= scenario.typeWeight()) < 0) {
+            return TextEdit.insert(caret, randomText(random, scenario.typeChars().pick(random)));
+        }
+        if ((roll -= scenario.pasteWeight()) < 0) {
+            return TextEdit.insert(caret, randomText(random, scenario.pasteChars().pick(random)));
+        }
+        if (roll - scenario.deleteWeight() < 0) {
+            int count = Math.min(caret, scenario.deleteChars().pick(random));
+            return count == 0 ? null : TextEdit.delete(caret - count, count);
+        }
+        caret = random.nextInt(length + 1);
+        return null;
+    }
+
+    private static String randomText(Random random, int count) {
+        char[] chars = new char[count];
+        for (int i = 0; i < count; i++) chars[i] = ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+        return new String(chars);
+    }
+
+    /** The edits as the UI sends them, EDIT, DELETE or REPLACE for one and BATCH for several; null for none. */
+    private Message batchMessage(List<TextEdit> edits) {
+        if (edits.isEmpty()) return null;
+        // Part of a large paste left for the next batch is timed from when it is sent
+        String sender = username + SENT_AT + (unsentSince != 0 ? unsentSince : System.nanoTime());
+        unsentSince = 0;
+        String revision = String.valueOf(otClient.getRevision());
+        TextEdit edit = edits.get(0);
+        String pos = String.valueOf(edit.getPosition());
+        if (edits.size() > 1) return Message.of(MSG_BATCH, scenario.fileType(), TextEdit.encode(edits), sender, revision);
+        if (edit.isInsert()) return Message.of(MSG_EDIT, scenario.fileType(), pos, edit.getText(), sender, revision);
+        if (edit.isDelete()) return Message.of(MSG_DELETE, scenario.fileType(), pos, String.valueOf(edit.getDeleteLength()), sender, revision);
+        return Message.of(MSG_REPLACE, scenario.fileType(), pos, String.valueOf(edit.getDeleteLength()), edit.getText(), sender, revision);
+    }
+
+    // Outside the lock: the next batch waits for this one's ACK, so sends never overlap
+    private void send(Message message) {
+        if (message == null) return;
+        if (connection.sendMessage(message)) generator.batchSent();
+    }
+
+    @Override
+    public void onMessageReceived(Message message) {
+        generator.messageReceived();
+        String[] parts = message.parts();
+        if (parts[0].equals(MSG_ERROR)) {
+            generator.editRejected();
+            return;
+        }
+        if (parts.length < 3 || !parts[1].equals(scenario.fileType())) return;
+        Message next = null;
+        lock.lock();
+        try {
+            switch (parts[0]) {
+                case MSG_EDIT -> remoteEdits(List.of(TextEdit.insert(Integer.parseInt(parts[2]), parts[3])), parts[4], parts[5]);
+                case MSG_DELETE -> remoteEdits(List.of(TextEdit.delete(Integer.parseInt(parts[2]), Integer.parseInt(parts[3]))), parts[4], parts[5]);
+                case MSG_REPLACE -> remoteEdits(List.of(TextEdit.replace(Integer.parseInt(parts[2]), Integer.parseInt(parts[3]), parts[4])), parts[5], parts[6]);
+                case MSG_BATCH -> remoteEdits(TextEdit.decode(parts[2]), parts[3], parts[4]);
+                case MSG_SYNC -> {
+                    length = parts[2].length();
+                    caret = Math.min(caret, length);
+                    if (parts.length >= 5) otClient.reset(Integer.parseInt(parts[4]));
+                    unsentSince = 0;
+                }
+                case MSG_ACK -> next = batchMessage(otClient.acknowledge(Integer.parseInt(parts[2])));
+                default -> { }
+            }
+        } finally {
+            lock.unlock();
+        }
+        send(next);
+    }
+
+    /** Edits that took consecutive revisions ending with {@code revision}, from {@code sender}. */
+    private void remoteEdits(List<TextEdit> edits, String sender, String revision) {
+        int at = sender.lastIndexOf(SENT_AT);
+        if (at >= 0) {
+            try {
+                generator.propagated(System.nanoTime() - Long.parseLong(sender.substring(at + 1)));
+            } catch (NumberFormatException e) {
+                // Someone else in the room, e.g. a real client, with an @ in their name
+            }
+        }
+        int next = Integer.parseInt(revision) - edits.size();
+        for (TextEdit edit : edits) {
+            for (TextEdit op : otClient.remoteEdit(edit, ++next)) {
+                length += op.lengthDelta();
+                caret = op.transformIndex(caret);
+            }
+        }
+    }
+
+    @Override
+    public void onConnectionLost() {
+        generator.connectionLost();
+    }
+}
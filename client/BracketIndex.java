@@ -0,0 +1,346 @@
+package client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Bracket balance of a document, kept up to date edit by edit.
+ * <p>
+ * The text is covered by segments in an implicit treap ordered by position, like
+ * {@link shared.PieceTable}. A segment remembers only where its brackets, newlines
+ * and semicolons are. Every node also keeps a summary of its subtree: for each
+ * bracket kind, how many closing brackets find no opener inside it and how many
+ * opening brackets find no closer. Two summaries combine in constant time, so an
+ * edit costs O(log n) plus the size of one segment and of the inserted text, and the
+ * whole document's balance is the root's summary. Unmatched brackets are found by
+ * descending only into subtrees whose summary says they hold one.
+ * <p>
+ * Kinds are checked independently: "(]" counts one unmatched '(' and one unmatched ']'.
+ * Not thread-safe.
+ */
+class BracketIndex {
+    /** A bracket with no partner: its offset, 1-based line and the bracket itself. */
+    record Unmatched(int offset, int line, char bracket) { }
+
+    private static final String BRACKETS = "(){}[]";
+    private static final int NEWLINE = 6;
+    private static final int SEMICOLON = 7;
+    // Per bracket kind k: [2k] closers without an opener, [2k + 1] openers without a closer; then newlines, semicolons
+    private static final int SUMMARY = 8;
+    // Segments grow in place up to this size; larger inserts become segments of their own
+    private static final int MAX_SEGMENT_CHARS = 4096;
+
+    private static final class Segment {
+        int length;
+        // (offset within the segment << 3) | kind, in offset order
+        int[] marks;
+        final int[] own = new int[SUMMARY];
+        final int priority = ThreadLocalRandom.current().nextInt();
+        Segment left, right;
+        int subtreeLength;
+        final int[] subtree = new int[SUMMARY];
+
+        Segment(int length, int[] marks) {
+            this.length = length;
+            this.marks = marks;
+            summarize();
+            update(this);
+        }
+
+        void summarize() {
+            Arrays.fill(own, 0);
+            for (int mark : marks) add(own, mark & 7);
+        }
+
+        /** Replaces [cut, cut + deleteLength) with the inserted segment's content. */
+        void replace(int cut, int deleteLength, Segment inserted) {
+            int delta = inserted.length - deleteLength;
+            int[] result = new int[marks.length + inserted.marks.length];
+            int count = 0;
+            for (int mark : marks) {
+                if ((mark >>> 3) >= cut) break;
+                result[count++] = mark;
+            }
+            for (int mark : inserted.marks) result[count++] = mark + (cut << 3);
+            for (int mark : marks) {
+                if ((mark >>> 3) >= cut + deleteLength) result[count++] = mark + (delta << 3);
+            }
+            marks = Arrays.copyOf(result, count);
+            length += delta;
+            summarize();
+        }
+
+        /** Keeps [0, cut) and returns a new segment with [cut, length). */
+        Segment cutAt(int cut) {
+            int first = 0;
+            while (first < marks.length && (marks[first] >>> 3) < cut) first++;
+            int[] tail = new int[marks.length - first];
+            for (int i = first; i < marks.length; i++) tail[i - first] = marks[i] - (cut << 3);
+            Segment rest = new Segment(length - cut, tail);
+            marks = Arrays.copyOf(marks, first);
+            length = cut;
+            summarize();
+            update(this);
+            return rest;
+        }
+    }
+
+    private Segment root;
+
+    BracketIndex() {
+    }
+
+    BracketIndex(String text) {
+        root = build(text);
+    }
+
+    int length() {
+        return size(root);
+    }
+
+    /** Applies an edit of the document: replaces [position, position + deleteLength) with text. */
+    void replace(int position, int deleteLength, String text) {
+        if (position < 0 || deleteLength < 0 || position + deleteLength > length()) {
+            throw new IndexOutOfBoundsException("range [" + position + ", " + (position + deleteLength) + ") outside length " + length());
+        }
+        if (deleteLength == 0 && text.isEmpty()) return;
+        // Typing and small deletes stay inside one segment, so they add no nodes.
+        if (text.length() <= MAX_SEGMENT_CHARS && root != null
+                && editInPlace(root, position, deleteLength, new Segment(text.length(), marks(text, 0, text.length())))) {
+            return;
+        }
+        Segment[] head = split(root, position);
+        Segment[] tail = split(head[1], deleteLength);
+        root = merge(merge(head[0], build(text)), tail[1]);
+    }
+
+    boolean isBalanced() {
+        if (root == null) return true;
+        for (int k = 0; k < BRACKETS.length(); k++) {
+            if (root.subtree[k] != 0) return false;
+        }
+        return true;
+    }
+
+    int semicolons() {
+        return root == null ? 0 : root.subtree[SEMICOLON];
+    }
+
+    /**
+     * Up to {@code limit} unmatched brackets in offset order, picked from the first
+     * {@code limit} unmatched closers and the last {@code limit} unclosed openers:
+     * openers are found from the end of the document, so when there are more than
+     * {@code limit} in all, this is not simply the first {@code limit} of them.
+     */
+    List<Unmatched> unmatched(int limit) {
+        List<Integer> marks = new ArrayList<>();
+        findClosers(root, 0, new int[3], marks, limit);
+        List<Integer> openers = new ArrayList<>();
+        findOpeners(root, 0, new int[3], openers, limit);
+        marks.addAll(openers);
+        marks.sort(Comparator.comparingInt(mark -> mark >>> 3));
+        List<Unmatched> result = new ArrayList<>();
+        for (int i = 0; i < Math.min(limit, marks.size()); i++) {
+            int offset = marks.get(i) >>> 3;
+            result.add(new Unmatched(offset, lineOf(offset), BRACKETS.charAt(marks.get(i) & 7)));
+        }
+        return result;
+    }
+
+    /** The 1-based line the offset is on. */
+    int lineOf(int offset) {
+        int newlines = 0;
+        Segment node = root;
+        while (node != null) {
+            int leftSize = size(node.left);
+            if (offset < leftSize) {
+                node = node.left;
+                continue;
+            }
+            newlines += node.left == null ? 0 : node.left.subtree[NEWLINE];
+            if (offset < leftSize + node.length) {
+                for (int mark : node.marks) {
+                    if ((mark >>> 3) >= offset - leftSize) break;
+                    if ((mark & 7) == NEWLINE) newlines++;
+                }
+                break;
+            }
+            newlines += node.own[NEWLINE];
+            offset -= leftSize + node.length;
+            node = node.right;
+        }
+        return newlines + 1;
+    }
+
+    /** Closers that no opener before them matches; {@code carry} is the openers still open on entry, per kind. */
+    private static void findClosers(Segment node, int base, int[] carry, List<Integer> out, int limit) {
+        if (node == null || out.size() >= limit) return;
+        boolean any = false;
+        for (int k = 0; k < 3; k++) any |= node.subtree[2 * k] > carry[k];
+        if (!any) {
+            for (int k = 0; k < 3; k++) carry[k] += node.subtree[2 * k + 1] - node.subtree[2 * k];
+            return;
+        }
+        findClosers(node.left, base, carry, out, limit);
+        int start = base + size(node.left);
+        for (int mark : node.marks) {
+            int kind = mark & 7;
+            if (kind >= NEWLINE) continue;
+            if ((kind & 1) == 0) carry[kind >> 1]++;
+            else if (carry[kind >> 1] > 0) carry[kind >> 1]--;
+            else if (out.size() < limit) out.add(mark + (start << 3));
+        }
+        findClosers(node.right, start + node.length, carry, out, limit);
+    }
+
+    /**
+     * Openers that no closer after them matches, walking from the end (so the last
+     * {@code limit} of them); {@code carry} is the closers waiting, per kind.
+     */
+    private static void findOpeners(Segment node, int base, int[] carry, List<Integer> out, int limit) {
+        if (node == null || out.size() >= limit) return;
+        boolean any = false;
+        for (int k = 0; k < 3; k++) any |= node.subtree[2 * k + 1] > carry[k];
+        if (!any) {
+            for (int k = 0; k < 3; k++) carry[k] += node.subtree[2 * k] - node.subtree[2 * k + 1];
+            return;
+        }
+        int start = base + size(node.left);
+        findOpeners(node.right, start + node.length, carry, out, limit);
+        for (int i = node.marks.length - 1; i >= 0; i--) {
+            int kind = node.marks[i] & 7;
+            if (kind >= NEWLINE) continue;
+            if ((kind & 1) == 1) carry[kind >> 1]++;
+            else if (carry[kind >> 1] > 0) carry[kind >> 1]--;
+            else if (out.size() < limit) out.add(node.marks[i] + (start << 3));
+        }
+        findOpeners(node.left, base, carry, out, limit);
+    }
+
+    private static boolean editInPlace(Segment node, int offset, int deleteLength, Segment inserted) {
+        int leftSize = size(node.left);
+        boolean handled;
+        if (node.left != null && offset + deleteLength <= leftSize) {
+            handled = editInPlace(node.left, offset, deleteLength, inserted);
+        } else if (offset >= leftSize && offset + deleteLength <= leftSize + node.length) {
+            if (node.length - deleteLength + inserted.length > MAX_SEGMENT_CHARS) return false;
+            node.replace(offset - leftSize, deleteLength, inserted);
+            handled = true;
+        } else if (node.right != null && offset >= leftSize + node.length) {
+            handled = editInPlace(node.right, offset - leftSize - node.length, deleteLength, inserted);
+        } else {
+            return false;
+        }
+        if (handled) update(node);
+        return handled;
+    }
+
+    private static Segment build(String text) {
+        Segment result = null;
+        for (int start = 0; start < text.length(); start += MAX_SEGMENT_CHARS / 2) {
+            int end = Math.min(text.length(), start + MAX_SEGMENT_CHARS / 2);
+            result = merge(result, new Segment(end - start, marks(text, start, end)));
+        }
+        return result;
+    }
+
+    private static int[] marks(String text, int start, int end) {
+        int count = 0;
+        int[] marks = new int[16];
+        for (int i = start; i < end; i++) {
+            int kind = kind(text.charAt(i));
+            if (kind < 0) continue;
+            if (count == marks.length) marks = Arrays.copyOf(marks, count * 2);
+            marks[count++] = ((i - start) << 3) | kind;
+        }
+        return Arrays.copyOf(marks, count);
+    }
+
+    private static int kind(char c) {
+        return switch (c) {
+            case '(', ')', '{', '}', '[', ']' -> BRACKETS.indexOf(c);
+            case '\n' -> NEWLINE;
+            case ';' -> SEMICOLON;
+            default -> -1;
+        };
+    }
+
+    /** Adds one more mark at the end of the summarized text. */
+    private static void add(int[] summary, int kind) {
+        if (kind >= NEWLINE) {
+            summary[kind]++;
+        } else if ((kind & 1) == 0) {
+            summary[kind + 1]++;
+        } else if (summary[kind] > 0) {
+            // A closer matches the last opener still open.
+            summary[kind]--;
+        } else {
+            summary[kind - 1]++;
+        }
+    }
+
+    private static int size(Segment node) {
+        return node == null ? 0 : node.subtreeLength;
+    }
+
+    private static void update(Segment node) {
+        node.subtreeLength = size(node.left) + node.length + size(node.right);
+        int[] out = node.subtree;
+        int[] left = node.left == null ? null : node.left.subtree;
+        int[] right = node.right == null ? null : node.right.subtree;
+        System.arraycopy(node.own, 0, out, 0, SUMMARY);
+        if (left != null) combine(left, out, out);
+        if (right != null) combine(out, right, out);
+    }
+
+    /** The summary of {@code first} followed by {@code second}; {@code out} may be either argument. */
+    private static void combine(int[] first, int[] second, int[] out) {
+        for (int k = 0; k < 3; k++) {
+            int matched = Math.min(first[2 * k + 1], second[2 * k]);
+            int closers = first[2 * k] + second[2 * k] - matched;
+            int openers = first[2 * k + 1] + second[2 * k + 1] - matched;
+            out[2 * k] = closers;
+            out[2 * k + 1] = openers;
+        }
+        out[NEWLINE] = first[NEWLINE] + second[NEWLINE];
+        out[SEMICOLON] = first[SEMICOLON] + second[SEMICOLON];
+    }
+
+    /** Splits into segments covering [0, offset) and [offset, end), cutting one segment if needed. */
+    private static Segment[] split(Segment node, int offset) {
+        if (node == null) return new Segment[2];
+        int leftSize = size(node.left);
+        if (offset <= leftSize) {
+            Segment[] parts = split(node.left, offset);
+            node.left = parts[1];
+            update(node);
+            return new Segment[]{parts[0], node};
+        }
+        if (offset >= leftSize + node.length) {
+            Segment[] parts = split(node.right, offset - leftSize - node.length);
+            node.right = parts[0];
+            update(node);
+            return new Segment[]{node, parts[1]};
+        }
+        Segment right = node.right;
+        node.right = null;
+        Segment tail = node.cutAt(offset - leftSize);
+        return new Segment[]{node, merge(tail, right)};
+    }
+
+    private static Segment merge(Segment left, Segment right) {
+        if (left == null) return right;
+        if (right == null) return left;
+        if (left.priority > right.priority) {
+            left.right = merge(left.right, right);
+            update(left);
+            return left;
+        }
+        right.left = merge(left, right.left);
+        update(right);
+        return right;
+    }
+}
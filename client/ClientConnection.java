@@ -1,18 +1,32 @@
 package client;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import shared.Log;
+import shared.Message;
+import shared.MessageReader;
+import shared.MessageWriter;
+import shared.SyncChunks;
+import shared.WireFormat;
+import static shared.SharedConstants.*;
 public class ClientConnection {
+    private static final Log LOG = Log.get("ClientConnection");
     private Socket socket;
-    private BufferedReader reader;
-    private PrintWriter writer;
+    private MessageReader reader;
+    private MessageWriter writer;
     private Thread listenerThread;
     private volatile boolean connected;
     private MessageListener messageListener;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    // After a JOIN that offers the binary protocol, messages wait here until the
+    // server's first reply says which format it speaks
+    private boolean awaitingProtocol;
+    private final List<Message> heldMessages = new ArrayList<>();
+    private final SyncChunks.Assembler syncChunks = new SyncChunks.Assembler();
     public interface MessageListener {
-        void onMessageReceived(String message);
+        void onMessageReceived(Message message);
         void onConnectionLost();
     }
     public ClientConnection(MessageListener messageListener) {
@@ -23,45 +37,72 @@ public class ClientConnection {
         try {
             socket = new Socket(host, port);
             socket.setSoTimeout(0); // No timeout for reading
-            reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            writer = new PrintWriter(socket.getOutputStream(), true);
+            reader = new MessageReader(socket.getInputStream());
+            writer = new MessageWriter(socket.getOutputStream());
             connected = true;
             listenerThread = new Thread(this::listenForMessages, "ClientListener");
             listenerThread.setDaemon(true);
             listenerThread.start();
-            System.out.println("[ClientConnection] Connected to server: " + host + ":" + port);
+            LOG.info("Connected to server: {}:{}", host, port);
             return true;
         } catch (IOException e) {
-            System.err.println("[ClientConnection] Failed to connect: " + e.getMessage());
+            LOG.error("Failed to connect: {}", e.getMessage());
             connected = false;
             return false;
         }
     }
-    public boolean sendMessage(String message) {
-        if (connected && writer != null && !writer.checkError()) {
-            try {
-                writer.println(message);
-                writer.flush();
-                return !writer.checkError();
-            } catch (Exception e) {
-                System.err.println("[ClientConnection] Error sending message: " + e.getMessage());
-                return false;
+    public boolean sendMessage(Message message) {
+        if (!connected || writer == null) return false;
+        writeLock.lock();
+        try {
+            if (awaitingProtocol) {
+                heldMessages.add(message);
+                return true;
             }
+            writer.write(message);
+            writer.flush();
+            if (WireFormat.offersBinary(message)) awaitingProtocol = true;
+            return true;
+        } catch (IOException e) {
+            LOG.warn("Error sending message: {}", e.getMessage());
+            return false;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+    /** The server's first reply settles the format we write in; then held messages go out. */
+    private void onServerReply(Message message) throws IOException {
+        writeLock.lock();
+        try {
+            if (!awaitingProtocol) return;
+            awaitingProtocol = false;
+            WireFormat format = WireFormat.announcedBy(message);
+            if (format != null) writer.setFormat(format);
+            if (WireFormat.announcesCompression(message)) writer.enableCompression();
+            LOG.info("Using {} protocol{}", writer.getFormat(), WireFormat.announcesCompression(message) ? " with compression" : "");
+            for (Message held : heldMessages) writer.write(held);
+            heldMessages.clear();
+            writer.flush();
+        } finally {
+            writeLock.unlock();
         }
-        return false;
     }
     private void listenForMessages() {
         try {
-            String message;
-            while (connected && (message = reader.readLine()) != null) {
-                final String finalMessage = message;
+            Message message;
+            while (connected && (message = reader.read()) != null) {
+                onServerReply(message);
+                if (message.getType().equals(MSG_PROTOCOL)) continue;
+                // Snapshot pieces are put together here, off the FX thread.
+                message = syncChunks.accept(message);
+                if (message == null) continue;
                 if (messageListener != null) {
-                    messageListener.onMessageReceived(finalMessage);
+                    messageListener.onMessageReceived(message);
                 }
             }
         } catch (IOException e) {
             if (connected) {
-                System.err.println("[ClientConnection] Connection lost: " + e.getMessage());
+                LOG.warn("Connection lost: {}", e.getMessage());
             }
         } finally {
             // Connection lost
@@ -77,21 +118,21 @@ public class ClientConnection {
         if (!connected) {
             return;
         }
-        System.out.println("[ClientConnection] Disconnecting...");
+        LOG.info("Disconnecting...");
         connected = false;
         try {
             if (writer != null) {
                 writer.close();
             }
         } catch (Exception e) {
-            System.err.println("[ClientConnection] Error closing writer: " + e.getMessage());
+            LOG.warn("Error closing writer: {}", e.getMessage());
         }
         try {
             if (reader != null) {
                 reader.close();
             }
         } catch (IOException e) {
-            System.err.println("[ClientConnection] Error closing reader: " + e.getMessage());
+            LOG.warn("Error closing reader: {}", e.getMessage());
         }
 
         try {
@@ -101,7 +142,7 @@ public class ClientConnection {
                 socket.close();
             }
         } catch (IOException e) {
-            System.err.println("[ClientConnection] Error closing socket: " + e.getMessage());
+            LOG.warn("Error closing socket: {}", e.getMessage());
         }
         if (listenerThread != null && listenerThread.isAlive()) {
             try {
@@ -110,7 +151,7 @@ public class ClientConnection {
                 Thread.currentThread().interrupt();
             }
         }
-        System.out.println("[ClientConnection] Disconnected from server");
+        LOG.info("Disconnected from server");
     }
     public boolean isConnected() {
         return connected && socket != null && !socket.isClosed() && socket.isConnected();
@@ -3,7 +3,9 @@ import javafx.application.Application;
 import javafx.application.Platform;
 import javafx.scene.Scene;
 import javafx.stage.Stage;
+import shared.Log;
 public class ClientMain extends Application {
+    private static final Log LOG = Log.get("ClientMain");
     private UIController controller;
     @Override
     public void start(Stage primaryStage) {
@@ -14,7 +16,7 @@ public class ClientMain extends Application {
         primaryStage.setMinWidth(800);
         primaryStage.setMinHeight(600);
         primaryStage.setOnCloseRequest(e -> {
-            System.out.println("[ClientMain] Window closing, disconnecting...");
+            LOG.info("Window closing, disconnecting...");
             if (controller != null) {
                 controller.handleDisconnect();
             }
@@ -22,11 +24,11 @@ public class ClientMain extends Application {
             System.exit(0);
         });
         primaryStage.show();
-        System.out.println("[ClientMain] Client application started");
+        LOG.info("Client application started");
     }
     @Override
     public void stop() throws Exception {
-        System.out.println("[ClientMain] Application stopping...");
+        LOG.info("Application stopping...");
         if (controller != null) {
             controller.handleDisconnect();
         }
@@ -0,0 +1,36 @@
+package client;
+
+import java.util.function.Consumer;
+import javafx.scene.Node;
+import shared.TextEdit;
+
+/**
+ * The editor of one document, as the controller sees it. Every change of the
+ * text, local or remote, is reported as the {@link TextEdit} it made, so nothing
+ * downstream (sending, the line index, the linter) has to look at the whole text.
+ * <p>
+ * {@link TextAreaEditor} is the everyday editor; {@link VirtualEditor} handles
+ * documents too large for a TextArea.
+ */
+interface CodeEditor {
+    Node getNode();
+
+    int length();
+
+    int getCaretPosition();
+
+    void positionCaret(int position);
+
+    void setEditable(boolean editable);
+
+    /** Replaces [start, end) with text and moves the caret past it. */
+    void replaceText(int start, int end, String text);
+
+    /** Replaces the whole text. */
+    void setText(String text);
+
+    /** Called after every change of the text with the edit it made. */
+    void setOnTextChange(Consumer<TextEdit> listener);
+
+    void setOnCaretMoved(Runnable listener);
+}
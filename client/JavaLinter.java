@@ -0,0 +1,73 @@
+package client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import javafx.application.Platform;
+import shared.PieceTable;
+import shared.TextEdit;
+
+/**
+ * Lints the Java tab off the FX thread. Every change of the editor, local or
+ * remote, is handed over as an edit and applied on the linter's own thread to a
+ * {@link BracketIndex} (and a piece table for the text checks); a lint runs there
+ * once the edits have been quiet for a moment, and only its result goes back to
+ * the FX thread.
+ */
+class JavaLinter {
+    private static final long DELAY_MILLIS = 150;
+    // Unmatched brackets listed by location; the rest are counted
+    private static final int MAX_REPORTED = 5;
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().daemon().name("linter").factory());
+    private final Consumer<List<String>> publisher;
+    // Only touched on the linter thread
+    private BracketIndex brackets = new BracketIndex();
+    private PieceTable text = new PieceTable();
+    // Only touched on the FX thread
+    private ScheduledFuture<?> pendingLint;
+
+    /** @param publisher receives each lint's issues on the FX thread; empty when there are none */
+    JavaLinter(Consumer<List<String>> publisher) {
+        this.publisher = publisher;
+    }
+
+    /** Called on the FX thread for every change of the editor, in order. */
+    void edit(TextEdit edit) {
+        executor.execute(() -> apply(edit));
+        if (pendingLint != null) pendingLint.cancel(false);
+        pendingLint = executor.schedule(this::lint, DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void apply(TextEdit edit) {
+        if (edit.getPosition() == 0 && edit.getDeleteLength() == text.length()) {
+            // A whole new text (a SYNC): start over instead of editing
+            brackets = new BracketIndex(edit.getText());
+            text = new PieceTable(edit.getText());
+            return;
+        }
+        brackets.replace(edit.getPosition(), edit.getDeleteLength(), edit.getText());
+        edit.applyTo(text);
+    }
+
+    private void lint() {
+        List<String> issues = new ArrayList<>();
+        if (!brackets.isBalanced()) {
+            List<BracketIndex.Unmatched> unmatched = brackets.unmatched(MAX_REPORTED + 1);
+            for (BracketIndex.Unmatched bracket : unmatched.subList(0, Math.min(MAX_REPORTED, unmatched.size()))) {
+                issues.add("Unmatched '" + bracket.bracket() + "' on line " + bracket.line());
+            }
+            if (unmatched.size() > MAX_REPORTED) issues.add("more unmatched brackets");
+        }
+        // Only needs the text when there is no semicolon at all, i.e. in tiny documents
+        if (brackets.semicolons() == 0 && text.length() > 0 && text.toString().contains("System.out")) {
+            issues.add("Missing semicolon");
+        }
+        Platform.runLater(() -> publisher.accept(issues));
+    }
+}
@@ -0,0 +1,78 @@
+package client;
+
+import java.util.function.Consumer;
+import javafx.scene.Node;
+import javafx.scene.control.TextArea;
+import javafx.scene.control.TextFormatter;
+import shared.TextEdit;
+
+/** A {@link CodeEditor} on a plain TextArea, which keeps the whole text as one String. */
+class TextAreaEditor implements CodeEditor {
+    private final TextArea area = new TextArea();
+    // The range the control reported for the change in progress, read by the text listener
+    private TextEdit reportedEdit;
+    private Consumer<TextEdit> onTextChange = edit -> { };
+
+    TextAreaEditor(String promptText, boolean wrapText) {
+        area.setPromptText(promptText);
+        area.setWrapText(wrapText);
+        // Records the range each change replaces, so the text listener does not have to diff the whole document.
+        area.setTextFormatter(new TextFormatter<String>(change -> {
+            if (change.isContentChange()) {
+                reportedEdit = TextEdit.replace(change.getRangeStart(), change.getRangeEnd() - change.getRangeStart(), change.getText());
+            }
+            return change;
+        }));
+        area.textProperty().addListener((obs, old, newValue) -> {
+            TextEdit edit = takeEdit(old, newValue);
+            if (edit != null) onTextChange.accept(edit);
+        });
+    }
+
+    /**
+     * The change as the control reported it, which costs nothing per keystroke; when
+     * there is no report that accounts for the new text, a prefix/suffix diff.
+     */
+    private TextEdit takeEdit(String oldValue, String newValue) {
+        TextEdit edit = reportedEdit;
+        reportedEdit = null;
+        if (edit != null && edit.fits(oldValue.length()) && oldValue.length() + edit.lengthDelta() == newValue.length()) {
+            return edit.isNoop() ? null : edit;
+        }
+        return TextEdit.diff(oldValue, newValue);
+    }
+
+    @Override
+    public Node getNode() { return area; }
+
+    @Override
+    public int length() { return area.getLength(); }
+
+    @Override
+    public int getCaretPosition() { return area.getCaretPosition(); }
+
+    @Override
+    public void positionCaret(int position) { area.positionCaret(position); }
+
+    @Override
+    public void setEditable(boolean editable) { area.setEditable(editable); }
+
+    @Override
+    public void replaceText(int start, int end, String text) { area.replaceText(start, end, text); }
+
+    @Override
+    public void setText(String text) {
+        if (text.equals(area.getText())) return;
+        // Reported up front: setting the text need not go through the formatter.
+        reportedEdit = TextEdit.replace(0, area.getLength(), text);
+        area.setText(text);
+    }
+
+    @Override
+    public void setOnTextChange(Consumer<TextEdit> listener) { onTextChange = listener; }
+
+    @Override
+    public void setOnCaretMoved(Runnable listener) {
+        area.caretPositionProperty().addListener((obs, old, caret) -> listener.run());
+    }
+}
@@ -10,19 +10,71 @@ import javafx.animation.*;
 import javafx.util.Duration;
 import javafx.scene.effect.DropShadow;
 import javafx.scene.paint.Color;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import shared.LineIndex;
+import shared.Log;
+import shared.Message;
+import shared.OperationClient;
+import shared.Rga;
+import shared.RgaOp;
+import shared.TextEdit;
+import shared.WireFormat;
 import static shared.SharedConstants.*;
 
 public class UIController implements ClientConnection.MessageListener {
-    private TextArea textArea;
-    private TextArea mainJavaArea;
-    private TextField usernameField;
+    private static final Log LOG = Log.get("UIController");
+    private static final Log.Sampler LOCAL_CHANGES = LOG.sampled(Log.Level.DEBUG);
+    // Local edits made within this window go out as one message; 0 sends each edit at once
+    private static final int COALESCE_MILLIS = Integer.getInteger("editor.coalesceMillis", 30);
+    // Reconnect attempts after a dropped connection back off from the first delay to the last
+    private static final long RECONNECT_FIRST_MILLIS = 500;
+    private static final long RECONNECT_MAX_MILLIS = 10_000;
+    // "virtual" edits both documents in a VirtualEditor, for files too large for a TextArea
+    private static final boolean VIRTUAL_EDITORS = "virtual".equalsIgnoreCase(System.getProperty("editor.mode"));
+    private CodeEditor textArea;
+    private CodeEditor mainJavaArea;
+    private TextField usernameField, roomField;
     private Button connectButton, disconnectButton;
     private Label statusLabel, statsLabel, errorLabel;
     private ListView<String> userListView;
     private ProgressIndicator syncSpinner;
     private ClientConnection connection;
     private String currentUsername;
+    private String currentRoom;
+    // Set while a dropped connection is being re-established; cleared by Exit
+    private volatile boolean reconnecting;
+    // From a successful connect until Exit, across dropped connections: edits made
+    // while reconnecting are recorded too, so resume() can send them
+    private boolean inSession;
     private boolean isApplyingExternalEdit;
+    // Where the lines of the text editor start, for the footer
+    private final LineIndex textLines = new LineIndex();
+    private final JavaLinter linter = new JavaLinter(this::showLintIssues);
+    // Revision/OT state per document, only touched on the FX thread
+    private final Map<String, OperationClient> otClients = new HashMap<>();
+    // CRDT replica per document, present once the server sent CRDT_SYNC for it
+    private final Map<String, Rga> crdtReplicas = new HashMap<>();
+    // CRDT ops made locally and not sent yet, per document
+    private final Map<String, List<RgaOp>> crdtOutbox = new HashMap<>();
+    // Messages from the connection thread, handled on the FX thread once per pulse
+    private final Queue<Message> inbound = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final AnimationTimer inboundDrain = new AnimationTimer() {
+        @Override
+        public void handle(long now) {
+            drainInbound();
+        }
+    };
+    // Remote edits of the current drain not yet applied to their editor, in order
+    private final Map<CodeEditor, List<TextEdit>> pendingRemoteEdits = new HashMap<>();
+    private final PauseTransition coalesceTimer = new PauseTransition(Duration.millis(COALESCE_MILLIS));
 
     public BorderPane createUI() {
         BorderPane root = new BorderPane();
@@ -65,9 +117,8 @@ public class UIController implements ClientConnection.MessageListener {
         container.setPadding(new Insets(20));
         container.setStyle("-fx-background-color: #0d1117;");
 
-        mainJavaArea = new TextArea();
-        mainJavaArea.setPromptText("public class Main {\n    public static void main(String[] args) {\n        \n    }\n}");
-        mainJavaArea.setStyle(
+        mainJavaArea = createEditor("public class Main {\n    public static void main(String[] args) {\n        \n    }\n}", "#dcdcaa", false);
+        mainJavaArea.getNode().setStyle(
                 "-fx-control-inner-background: #0d1117; " +
                         "-fx-text-fill: #dcdcaa; " +
                         "-fx-font-family: 'JetBrains Mono', 'Consolas', monospace; " +
@@ -76,7 +127,7 @@ public class UIController implements ClientConnection.MessageListener {
                         "-fx-border-radius: 8 8 0 0; " +
                         "-fx-background-radius: 8 8 0 0;"
         );
-        VBox.setVgrow(mainJavaArea, Priority.ALWAYS);
+        VBox.setVgrow(mainJavaArea.getNode(), Priority.ALWAYS);
 
         HBox errorPanel = new HBox(10);
         errorPanel.setPadding(new Insets(8, 20, 8, 20));
@@ -86,39 +137,32 @@ public class UIController implements ClientConnection.MessageListener {
         errorLabel.setStyle("-fx-text-fill: #8b949e; -fx-font-size: 11px;");
         errorPanel.getChildren().add(errorLabel);
 
-        mainJavaArea.textProperty().addListener((obs, old, newValue) -> {
+        mainJavaArea.setOnTextChange(edit -> {
             // CRITICAL: Only send changes if we're not applying a remote edit
-            if (!isApplyingExternalEdit && connection != null && connection.isConnected()) {
-                System.out.println("[DEBUG] Java editor change. Old length: " + old.length() + ", New length: " + newValue.length());
-                handleTextChange("JAVA", old, newValue);
+            if (!isApplyingExternalEdit && inSession) {
+                LOCAL_CHANGES.log("Java editor change at {}, length delta {}", edit.getPosition(), edit.lengthDelta());
+                handleTextChange(FILE_TYPE_JAVA, edit);
             }
-            performLinterCheck(newValue);
+            linter.edit(edit);
         });
 
-        container.getChildren().addAll(mainJavaArea, errorPanel);
+        container.getChildren().addAll(mainJavaArea.getNode(), errorPanel);
         return container;
     }
 
-    private void performLinterCheck(String code) {
-        StringBuilder errors = new StringBuilder();
-        int parens = 0, braces = 0;
-        for(char c : code.toCharArray()) {
-            if (c == '(') parens++; else if (c == ')') parens--;
-            if (c == '{') braces++; else if (c == '}') braces--;
-        }
-        if (parens != 0) errors.append("• Missing parenthesis ");
-        if (braces != 0) errors.append("• Unclosed braces ");
-        if (code.contains("System.out") && !code.contains(";")) errors.append("• Missing semicolon ");
+    /** A TextArea, or with -Deditor.mode=virtual a {@link VirtualEditor} that only draws the lines in view. */
+    private static CodeEditor createEditor(String promptText, String textFill, boolean wrapText) {
+        return VIRTUAL_EDITORS ? new VirtualEditor(promptText, Color.web(textFill)) : new TextAreaEditor(promptText, wrapText);
+    }
 
-        Platform.runLater(() -> {
-            if (errors.length() > 0) {
-                errorLabel.setText("Issues: " + errors.toString());
-                errorLabel.setStyle("-fx-text-fill: #f85149; -fx-font-size: 11px;");
-            } else {
-                errorLabel.setText("✓ Syntax looks good");
-                errorLabel.setStyle("-fx-text-fill: #3fb950; -fx-font-size: 11px;");
-            }
-        });
+    private void showLintIssues(List<String> issues) {
+        if (issues.isEmpty()) {
+            errorLabel.setText("✓ Syntax looks good");
+            errorLabel.setStyle("-fx-text-fill: #3fb950; -fx-font-size: 11px;");
+        } else {
+            errorLabel.setText("Issues: • " + String.join(" • ", issues));
+            errorLabel.setStyle("-fx-text-fill: #f85149; -fx-font-size: 11px;");
+        }
     }
 
     private VBox createSidebar() {
@@ -151,12 +195,16 @@ public class UIController implements ClientConnection.MessageListener {
         usernameField.setPromptText("Username...");
         usernameField.setPrefWidth(150);
         usernameField.setStyle("-fx-background-color: #0d1117; -fx-text-fill: white; -fx-border-color: #30363d; -fx-border-radius: 6; -fx-background-radius: 6;");
+        roomField = new TextField();
+        roomField.setPromptText("Room (" + DEFAULT_ROOM + ")");
+        roomField.setPrefWidth(130);
+        roomField.setStyle("-fx-background-color: #0d1117; -fx-text-fill: white; -fx-border-color: #30363d; -fx-border-radius: 6; -fx-background-radius: 6;");
         connectButton = createStyledButton("Connect", "#238636");
         connectButton.setOnAction(e -> handleConnect());
         disconnectButton = createStyledButton("Exit", "#da3633");
         disconnectButton.setDisable(true);
         disconnectButton.setOnAction(e -> handleDisconnect());
-        header.getChildren().addAll(logoBox, spacer, usernameField, connectButton, disconnectButton);
+        header.getChildren().addAll(logoBox, spacer, usernameField, roomField, connectButton, disconnectButton);
         return header;
     }
 
@@ -180,30 +228,31 @@ public class UIController implements ClientConnection.MessageListener {
         syncSpinner.setStyle("-fx-progress-color: #58a6ff;");
         editorToolbar.getChildren().addAll(fileInfo, s, syncSpinner);
 
-        textArea = new TextArea();
-        textArea.setWrapText(true);
+        textArea = createEditor("// Connect to start collaborative coding...", "#e6edf3", true);
         textArea.setEditable(false);
-        textArea.setPromptText("// Connect to start collaborative coding...");
-        textArea.setStyle("-fx-control-inner-background: #0d1117; -fx-text-fill: #e6edf3; -fx-font-family: 'JetBrains Mono', 'Consolas', monospace; -fx-font-size: 14px; -fx-border-width: 0;");
+        textArea.getNode().setStyle("-fx-control-inner-background: #0d1117; -fx-text-fill: #e6edf3; -fx-font-family: 'JetBrains Mono', 'Consolas', monospace; -fx-font-size: 14px; -fx-border-width: 0;");
 
-        textArea.textProperty().addListener((obs, old, newValue) -> {
+        textArea.setOnTextChange(edit -> {
             // CRITICAL: Only send changes if we're not applying a remote edit
-            if (!isApplyingExternalEdit && connection != null && connection.isConnected()) {
-                System.out.println("[DEBUG] Local change detected. Old length: " + old.length() + ", New length: " + newValue.length());
-                handleTextChange("TXT", old, newValue);
+            if (!isApplyingExternalEdit && inSession) {
+                LOCAL_CHANGES.log("Local change at {}, length delta {}", edit.getPosition(), edit.lengthDelta());
+                handleTextChange(FILE_TYPE_TXT, edit);
             }
-            updateStats(newValue);
+            textLines.apply(edit);
+            updateStats();
         });
+        textArea.setOnCaretMoved(this::updateStats);
 
         HBox footer = new HBox(20);
         footer.setPadding(new Insets(5, 20, 5, 20));
         footer.setStyle("-fx-background-color: #161b22; -fx-background-radius: 0 0 8 8;");
-        statsLabel = new Label("UTF-8 | Line 1, Col 1");
+        statsLabel = new Label();
         statsLabel.setStyle("-fx-text-fill: #8b949e; -fx-font-size: 11px;");
+        updateStats();
         footer.getChildren().add(statsLabel);
 
-        VBox.setVgrow(textArea, Priority.ALWAYS);
-        editorWrapper.getChildren().addAll(editorToolbar, textArea, footer);
+        VBox.setVgrow(textArea.getNode(), Priority.ALWAYS);
+        editorWrapper.getChildren().addAll(editorToolbar, textArea.getNode(), footer);
         container.getChildren().add(editorWrapper);
         return container;
     }
@@ -247,19 +296,32 @@ public class UIController implements ClientConnection.MessageListener {
         return b;
     }
 
-    private void updateStats(String text) {
-        int chars = text.length();
-        int lines = text.split("\n").length;
-        if(statsLabel != null) statsLabel.setText(String.format("Chars: %d | Lines: %d | UTF-8", chars, lines));
+    /** Size and caret position from the line index, so nothing here depends on the length of the text. */
+    private void updateStats() {
+        if (statsLabel == null) return;
+        // The caret may still point into the text from before the latest change.
+        int caret = Math.min(textArea.getCaretPosition(), textLines.length());
+        int line = textLines.lineOf(caret);
+        statsLabel.setText(String.format("Chars: %d | Lines: %d | Ln %d, Col %d | UTF-8",
+                textLines.length(), textLines.lineCount(), line + 1, caret - textLines.lineStart(line) + 1));
     }
 
     private void handleConnect() {
         String username = usernameField.getText().trim();
         if (username.isEmpty()) username = DEFAULT_USERNAME;
+        String room = roomField.getText().trim();
+        if (room.isEmpty()) room = DEFAULT_ROOM;
         currentUsername = username;
+        currentRoom = room;
+        reconnecting = false;
+        otClients.put(FILE_TYPE_TXT, new OperationClient());
+        otClients.put(FILE_TYPE_JAVA, new OperationClient());
+        crdtReplicas.clear();
+        crdtOutbox.clear();
         connection = new ClientConnection(this);
         if (connection.connect(SERVER_HOST, SERVER_PORT)) {
-            connection.sendMessage(buildMessage(MSG_JOIN, username));
+            connection.sendMessage(Message.of(MSG_JOIN, username, WireFormat.offer(), room));
+            inSession = true;
             toggleUIState(true);
         } else {
             showAlert("Connection Failed", "Could not reach the collab server.", Alert.AlertType.ERROR);
@@ -267,6 +329,8 @@ public class UIController implements ClientConnection.MessageListener {
     }
 
     public void handleDisconnect() {
+        inSession = false;
+        reconnecting = false;
         if (connection != null) connection.disconnect();
         toggleUIState(false);
         userListView.getItems().clear();
@@ -277,84 +341,287 @@ public class UIController implements ClientConnection.MessageListener {
             connectButton.setDisable(connected);
             disconnectButton.setDisable(!connected);
             usernameField.setDisable(connected);
+            roomField.setDisable(connected);
             textArea.setEditable(connected);
             mainJavaArea.setEditable(connected);
         });
     }
 
-    private void handleTextChange(String fileType, String oldValue, String newValue) {
-        int oldLen = oldValue.length(), newLen = newValue.length(), pos = 0;
-        while (pos < Math.min(oldLen, newLen) && oldValue.charAt(pos) == newValue.charAt(pos)) pos++;
-        if (newLen > oldLen) {
-            String added = newValue.substring(pos, pos + (newLen - oldLen));
-            connection.sendMessage(buildMessage(MSG_EDIT, fileType, String.valueOf(pos), added, currentUsername));
-        } else if (newLen < oldLen) {
-            connection.sendMessage(buildMessage(MSG_DELETE, fileType, String.valueOf(pos), String.valueOf(oldLen - newLen), currentUsername));
+    private void handleTextChange(String fileType, TextEdit edit) {
+        if (edit.isNoop()) return;
+        Rga replica = crdtReplicas.get(fileType);
+        if (replica != null) {
+            queueCrdtEdit(fileType, replica, edit);
+        } else {
+            // Buffered until the window closes, or until the ACK if a batch is already in flight
+            otClients.get(fileType).localEdit(edit);
         }
+        scheduleFlush();
         showSyncAnimation();
     }
 
+    /** Starts the coalescing window, unless one is already open. */
+    private void scheduleFlush() {
+        if (COALESCE_MILLIS <= 0) {
+            flushEdits();
+        } else if (coalesceTimer.getStatus() != Animation.Status.RUNNING) {
+            coalesceTimer.setOnFinished(e -> flushEdits());
+            coalesceTimer.playFromStart();
+        }
+    }
+
+    /** Sends everything typed during the window: one message per document. */
+    private void flushEdits() {
+        if (connection == null || !connection.isConnected()) return;
+        for (Map.Entry<String, OperationClient> entry : otClients.entrySet()) {
+            sendEdits(entry.getKey(), entry.getValue().flush());
+        }
+        for (Map.Entry<String, List<RgaOp>> entry : crdtOutbox.entrySet()) {
+            if (entry.getValue().isEmpty()) continue;
+            connection.sendMessage(Message.of(MSG_CRDT, entry.getKey(), RgaOp.encode(entry.getValue()), currentUsername));
+        }
+        crdtOutbox.clear();
+    }
+
+    /** A lone edit goes out as EDIT, DELETE or REPLACE, several as one BATCH. */
+    private void sendEdits(String fileType, List<TextEdit> edits) {
+        if (edits.isEmpty()) return;
+        String revision = String.valueOf(otClients.get(fileType).getRevision());
+        TextEdit edit = edits.get(0);
+        String pos = String.valueOf(edit.getPosition());
+        if (edits.size() == 1 && edit.isInsert()) {
+            connection.sendMessage(Message.of(MSG_EDIT, fileType, pos, edit.getText(), currentUsername, revision));
+        } else if (edits.size() == 1 && edit.isDelete()) {
+            connection.sendMessage(Message.of(MSG_DELETE, fileType, pos, String.valueOf(edit.getDeleteLength()), currentUsername, revision));
+        } else if (edits.size() == 1) {
+            connection.sendMessage(Message.of(MSG_REPLACE, fileType, pos, String.valueOf(edit.getDeleteLength()), edit.getText(), currentUsername, revision));
+        } else {
+            connection.sendMessage(Message.of(MSG_BATCH, fileType, TextEdit.encode(edits), currentUsername, revision));
+        }
+    }
+
+    /** Applies the edit to the replica now; its ops wait in the outbox, merged into runs where possible. */
+    private void queueCrdtEdit(String fileType, Rga replica, TextEdit edit) {
+        List<RgaOp> ops = new ArrayList<>();
+        if (edit.getDeleteLength() > 0) ops.addAll(replica.localDelete(edit.getPosition(), edit.getDeleteLength()));
+        if (!edit.getText().isEmpty()) ops.add(replica.localInsert(edit.getPosition(), edit.getText()));
+        List<RgaOp> outbox = crdtOutbox.computeIfAbsent(fileType, f -> new ArrayList<>());
+        for (RgaOp op : ops) {
+            RgaOp merged = outbox.isEmpty() ? null : outbox.get(outbox.size() - 1).merge(op);
+            if (merged != null) outbox.set(outbox.size() - 1, merged);
+            else outbox.add(op);
+        }
+    }
+
     private void showSyncAnimation() {
         syncSpinner.setVisible(true);
         new Timeline(new KeyFrame(Duration.millis(600), e -> syncSpinner.setVisible(false))).play();
     }
 
+    /**
+     * Called on the connection thread. Messages are queued rather than posted one
+     * by one: during a burst of remote typing the FX thread would otherwise run a
+     * task, mutate the editor and re-lint per keystroke, and fall behind.
+     */
     @Override
-    public void onMessageReceived(String message) {
-        String[] parts = parseMessage(message);
-        if (parts.length < 2) return;
-
-        Platform.runLater(() -> {
-            String command = parts[0];
+    public void onMessageReceived(Message message) {
+        if (message.parts().length < 2) return;
+        inbound.add(message);
+        // One drain per pulse however many messages arrive; the timer is started and stopped on the FX thread.
+        if (drainScheduled.compareAndSet(false, true)) Platform.runLater(inboundDrain::start);
+    }
 
-            if (command.equals(MSG_USER_LIST)) {
-                userListView.getItems().clear();
-                for (String u : parts[1].split(USER_LIST_DELIMITER)) userListView.getItems().add(u);
-                return;
+    /** Handles everything queued since the last pulse, then applies its edits to the editors in one pass. */
+    private void drainInbound() {
+        inboundDrain.stop();
+        // Messages queued from here on schedule the next drain.
+        drainScheduled.set(false);
+        for (Message message = inbound.poll(); message != null; message = inbound.poll()) {
+            try {
+                handleMessage(message.parts());
+            } catch (RuntimeException e) {
+                // One bad message must not strand the edits queued before it.
+                LOG.warn("Dropped malformed {}: {}", message.parts()[0], e.toString());
             }
+        }
+        flushRemoteEdits();
+    }
 
-            // For EDIT, DELETE, and SYNC, parts[1] is the FileType
-            String fileType = parts[1];
-            TextArea targetArea = fileType.equals("JAVA") ? mainJavaArea : textArea;
-
-            switch (command) {
-                case MSG_EDIT -> handleRemoteEdit(targetArea, parts);
-                case MSG_DELETE -> handleRemoteDelete(targetArea, parts);
-                case MSG_SYNC -> {
-                    isApplyingExternalEdit = true;
-                    targetArea.setText(parts[2]);
-                    isApplyingExternalEdit = false;
-                }
+    private void handleMessage(String[] parts) {
+        String command = parts[0];
+
+        if (command.equals(MSG_USER_LIST)) {
+            userListView.getItems().setAll(usernames(parts[1]));
+            return;
+        }
+        if (command.equals(MSG_PRESENCE)) {
+            // Who joined and who left since the list or the previous delta
+            if (parts.length < 3) return;
+            for (String u : usernames(parts[2])) userListView.getItems().remove(u);
+            userListView.getItems().addAll(usernames(parts[1]));
+            return;
+        }
+        if (command.equals(MSG_ERROR)) {
+            LOG.warn("Server error: {}", parts[1]);
+            return;
+        }
+
+        // For EDIT, DELETE, SYNC, ACK and the CRDT messages, parts[1] is the FileType
+        CodeEditor targetArea = editorFor(parts[1]);
+        if (targetArea == null) return;
+        OperationClient otClient = otClients.get(parts[1]);
+
+        switch (command) {
+            case MSG_EDIT -> handleRemoteEdit(targetArea, otClient, parts);
+            case MSG_DELETE -> handleRemoteDelete(targetArea, otClient, parts);
+            case MSG_REPLACE -> handleRemoteReplace(targetArea, otClient, parts);
+            case MSG_BATCH -> handleRemoteBatch(targetArea, otClient, parts);
+            case MSG_SYNC -> {
+                // The snapshot already contains whatever was queued for this editor.
+                pendingRemoteEdits.remove(targetArea);
+                isApplyingExternalEdit = true;
+                targetArea.setText(parts[2]);
+                isApplyingExternalEdit = false;
+                if (parts.length >= 5) otClient.reset(Integer.parseInt(parts[4]));
             }
-        });
+            case MSG_ACK -> {
+                if (parts.length >= 3) sendEdits(parts[1], otClient.acknowledge(Integer.parseInt(parts[2])));
+            }
+            case MSG_CRDT_SYNC -> {
+                if (parts.length < 3) return;
+                // A fresh replica id per snapshot keeps our new ids apart from everyone else's
+                Rga replica = Rga.decodeState(parts[2], ThreadLocalRandom.current().nextInt(2, Integer.MAX_VALUE));
+                crdtReplicas.put(parts[1], replica);
+                crdtOutbox.remove(parts[1]);
+                pendingRemoteEdits.remove(targetArea);
+                isApplyingExternalEdit = true;
+                targetArea.setText(replica.text());
+                isApplyingExternalEdit = false;
+            }
+            case MSG_CRDT -> handleRemoteCrdt(targetArea, crdtReplicas.get(parts[1]), parts);
+        }
     }
 
-    private void handleRemoteEdit(TextArea target, String[] parts) {
-        if (parts.length < 4) return;
-        int pos = Integer.parseInt(parts[2]);
-        String txt = parts[3];
-        isApplyingExternalEdit = true;
-        int caret = target.getCaretPosition();
-        target.insertText(pos, txt);
-        target.positionCaret(caret >= pos ? caret + txt.length() : caret);
-        isApplyingExternalEdit = false;
+    private static List<String> usernames(String joined) {
+        return joined.isEmpty() ? List.of() : List.of(joined.split(USER_LIST_DELIMITER));
+    }
+
+    private CodeEditor editorFor(String fileType) {
+        return switch (fileType) {
+            case FILE_TYPE_TXT -> textArea;
+            case FILE_TYPE_JAVA -> mainJavaArea;
+            default -> null;
+        };
+    }
+
+    private void handleRemoteEdit(CodeEditor target, OperationClient otClient, String[] parts) {
+        if (parts.length < 6) return;
+        TextEdit edit = TextEdit.insert(Integer.parseInt(parts[2]), parts[3]);
+        applyRemoteEdits(target, otClient.remoteEdit(edit, Integer.parseInt(parts[5])));
+    }
+
+    private void handleRemoteDelete(CodeEditor target, OperationClient otClient, String[] parts) {
+        if (parts.length < 6) return;
+        TextEdit edit = TextEdit.delete(Integer.parseInt(parts[2]), Integer.parseInt(parts[3]));
+        applyRemoteEdits(target, otClient.remoteEdit(edit, Integer.parseInt(parts[5])));
+    }
+
+    private void handleRemoteReplace(CodeEditor target, OperationClient otClient, String[] parts) {
+        if (parts.length < 7) return;
+        TextEdit edit = TextEdit.replace(Integer.parseInt(parts[2]), Integer.parseInt(parts[3]), parts[4]);
+        applyRemoteEdits(target, otClient.remoteEdit(edit, Integer.parseInt(parts[6])));
+    }
+
+    /** The batch's edits took consecutive revisions, ending with the one in parts[4]. */
+    private void handleRemoteBatch(CodeEditor target, OperationClient otClient, String[] parts) {
+        if (parts.length < 5) return;
+        List<TextEdit> edits = TextEdit.decode(parts[2]);
+        int revision = Integer.parseInt(parts[4]) - edits.size();
+        for (TextEdit edit : edits) applyRemoteEdits(target, otClient.remoteEdit(edit, ++revision));
+    }
+
+    /** Ops that arrive before our CRDT_SYNC are already part of it, so they are skipped. */
+    private void handleRemoteCrdt(CodeEditor target, Rga replica, String[] parts) {
+        if (replica == null || parts.length < 3) return;
+        List<TextEdit> edits = new ArrayList<>();
+        for (RgaOp op : RgaOp.decode(parts[2])) edits.addAll(replica.apply(op));
+        applyRemoteEdits(target, edits);
+    }
+
+    /**
+     * Queues edits already transformed past our unacknowledged ones for the end of the
+     * drain; an edit next to the previous one (someone typing on) joins it.
+     */
+    private void applyRemoteEdits(CodeEditor target, List<TextEdit> edits) {
+        List<TextEdit> pending = pendingRemoteEdits.computeIfAbsent(target, area -> new ArrayList<>());
+        for (TextEdit edit : edits) TextEdit.append(pending, edit);
     }
 
-    private void handleRemoteDelete(TextArea target, String[] parts) {
-        if (parts.length < 4) return;
-        int pos = Integer.parseInt(parts[2]);
-        int len = Integer.parseInt(parts[3]);
+    /** Applies the queued remote edits, one mutation per composed edit, and moves each caret once. */
+    private void flushRemoteEdits() {
         isApplyingExternalEdit = true;
-        int caret = target.getCaretPosition();
-        target.deleteText(pos, pos + len);
-        int newCaret = (caret > pos + len) ? caret - len : (caret > pos ? pos : caret);
-        target.positionCaret(newCaret);
+        for (Map.Entry<CodeEditor, List<TextEdit>> entry : pendingRemoteEdits.entrySet()) {
+            CodeEditor target = entry.getKey();
+            int caret = target.getCaretPosition();
+            for (TextEdit edit : entry.getValue()) {
+                target.replaceText(edit.getPosition(), edit.end(), edit.getText());
+                caret = edit.transformIndex(caret);
+            }
+            if (!entry.getValue().isEmpty()) target.positionCaret(caret);
+        }
         isApplyingExternalEdit = false;
+        pendingRemoteEdits.clear();
     }
 
     private void showAlert(String t, String m, Alert.AlertType at) {
         Platform.runLater(() -> { Alert a = new Alert(at); a.setHeaderText(null); a.setTitle(t); a.setContentText(m); a.show(); });
     }
 
-    @Override public void onConnectionLost() { handleDisconnect(); }
+    /**
+     * The connection dropped without Exit: keep the documents and their revisions,
+     * keep buffering local edits, and reconnect in the background.
+     */
+    @Override public void onConnectionLost() {
+        if (reconnecting) return;
+        reconnecting = true;
+        LOG.warn("Connection lost, reconnecting...");
+        Thread.ofPlatform().daemon().name("reconnect").start(this::reconnectLoop);
+    }
+
+    private void reconnectLoop() {
+        long delay = RECONNECT_FIRST_MILLIS;
+        try {
+            while (reconnecting) {
+                Thread.sleep(delay);
+                ClientConnection attempt = new ClientConnection(this);
+                if (attempt.connect(SERVER_HOST, SERVER_PORT)) {
+                    Platform.runLater(() -> resume(attempt));
+                    return;
+                }
+                delay = Math.min(delay * 2, RECONNECT_MAX_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Rejoins with the revision each document last saw, so the server sends only the
+     * edits missed meanwhile (or a SYNC where it cannot), then sends what was typed offline.
+     */
+    private void resume(ClientConnection attempt) {
+        if (!reconnecting) {
+            attempt.disconnect();
+            return;
+        }
+        reconnecting = false;
+        connection = attempt;
+        String revisions = OperationClient.encodeRevisions(otClients);
+        connection.sendMessage(Message.of(MSG_JOIN, currentUsername, WireFormat.offer(), currentRoom, revisions));
+        LOG.info("Reconnected, resuming from revisions {}", revisions);
+        // CRDT documents always come back as a CRDT_SYNC, which replaces the replica
+        // these ops were made on; sending them would leave us behind everyone else.
+        crdtOutbox.clear();
+        flushEdits();
+    }
 }
\ No newline at end of file
@@ -0,0 +1,344 @@
+package client;
+
+import java.util.function.Consumer;
+import javafx.geometry.Orientation;
+import javafx.geometry.VPos;
+import javafx.scene.Node;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.control.ScrollBar;
+import javafx.scene.input.Clipboard;
+import javafx.scene.input.ClipboardContent;
+import javafx.scene.input.KeyCode;
+import javafx.scene.input.KeyEvent;
+import javafx.scene.input.MouseEvent;
+import javafx.scene.input.ScrollEvent;
+import javafx.scene.layout.BorderPane;
+import javafx.scene.layout.Pane;
+import javafx.scene.paint.Color;
+import javafx.scene.text.Font;
+import javafx.scene.text.Text;
+import shared.LineIndex;
+import shared.PieceTable;
+import shared.TextEdit;
+
+/**
+ * A {@link CodeEditor} for documents too large for a TextArea, which copies its
+ * String and lays out every line on each edit. Here the text lives in a
+ * {@link PieceTable} with a {@link LineIndex} beside it, and only the lines in view
+ * are drawn, on a canvas: an edit costs O(log n) plus one repaint of the viewport,
+ * and what is drawn is bounded by the viewport, whatever the size of the document.
+ * <p>
+ * Deliberately plain: one monospaced font, no wrapping (long lines scroll sideways
+ * with the caret), a tab takes one cell, and there is one selection.
+ */
+class VirtualEditor implements CodeEditor {
+    private static final Font FONT = Font.font("Monospaced", 14);
+    private static final double PADDING = 6;
+    private static final int WHEEL_LINES = 3;
+    private static final Color BACKGROUND = Color.web("#0d1117");
+    private static final Color SELECTION = Color.web("#264f78");
+    private static final Color PROMPT = Color.web("#6e7681");
+    private static final Color CARET = Color.web("#58a6ff");
+
+    private final BorderPane root = new BorderPane();
+    private final Pane viewport = new Pane();
+    private final Canvas canvas = new Canvas();
+    private final ScrollBar scrollBar = new ScrollBar();
+    private final String promptText;
+    private final Color textFill;
+    private final double charWidth;
+    private final double lineHeight;
+    private PieceTable text = new PieceTable();
+    private LineIndex lines = new LineIndex();
+    private int caret;
+    // The other end of the selection; equal to the caret when nothing is selected
+    private int anchor;
+    private int firstLine;
+    private int firstColumn;
+    private boolean editable = true;
+    private boolean updatingScrollBar;
+    private Consumer<TextEdit> onTextChange = edit -> { };
+    private Runnable onCaretMoved = () -> { };
+
+    VirtualEditor(String promptText, Color textFill) {
+        this.promptText = promptText;
+        this.textFill = textFill;
+        Text sample = new Text("M");
+        sample.setFont(FONT);
+        charWidth = sample.getLayoutBounds().getWidth();
+        lineHeight = Math.ceil(sample.getLayoutBounds().getHeight());
+
+        // The canvas follows the viewport's size instead of deciding it.
+        canvas.setManaged(false);
+        canvas.widthProperty().bind(viewport.widthProperty());
+        canvas.heightProperty().bind(viewport.heightProperty());
+        viewport.getChildren().add(canvas);
+        viewport.setMinSize(0, 0);
+        viewport.widthProperty().addListener((obs, old, width) -> refresh());
+        viewport.heightProperty().addListener((obs, old, height) -> refresh());
+        scrollBar.setOrientation(Orientation.VERTICAL);
+        scrollBar.valueProperty().addListener((obs, old, value) -> {
+            if (updatingScrollBar) return;
+            firstLine = value.intValue();
+            draw();
+        });
+        root.setCenter(viewport);
+        root.setRight(scrollBar);
+
+        root.setFocusTraversable(true);
+        root.setOnKeyPressed(this::keyPressed);
+        root.setOnKeyTyped(this::keyTyped);
+        viewport.setOnMousePressed(this::mousePressed);
+        viewport.setOnMouseDragged(e -> moveCaret(offsetAt(e.getX(), e.getY()), true));
+        viewport.setOnScroll(this::scrolled);
+    }
+
+    @Override
+    public Node getNode() { return root; }
+
+    @Override
+    public int length() { return text.length(); }
+
+    @Override
+    public int getCaretPosition() { return caret; }
+
+    /** Moves the caret without scrolling: the view stays where the user left it. */
+    @Override
+    public void positionCaret(int position) {
+        caret = anchor = Math.max(0, Math.min(position, text.length()));
+        onCaretMoved.run();
+        draw();
+    }
+
+    @Override
+    public void setEditable(boolean editable) { this.editable = editable; }
+
+    @Override
+    public void replaceText(int start, int end, String inserted) {
+        edit(TextEdit.replace(start, end - start, inserted));
+    }
+
+    @Override
+    public void setText(String value) {
+        TextEdit edit = TextEdit.replace(0, text.length(), value);
+        text = new PieceTable(value);
+        lines = new LineIndex(value);
+        caret = anchor = 0;
+        firstLine = firstColumn = 0;
+        onTextChange.accept(edit);
+        onCaretMoved.run();
+        refresh();
+    }
+
+    @Override
+    public void setOnTextChange(Consumer<TextEdit> listener) { onTextChange = listener; }
+
+    @Override
+    public void setOnCaretMoved(Runnable listener) { onCaretMoved = listener; }
+
+    /** Applies an edit, keeping the lines in view in place when it is above them. */
+    private void edit(TextEdit edit) {
+        int top = lines.lineStart(firstLine);
+        edit.applyTo(text);
+        lines.apply(edit);
+        firstLine = lines.lineOf(edit.transformIndex(top));
+        caret = anchor = edit.getPosition() + edit.getText().length();
+        onTextChange.accept(edit);
+        onCaretMoved.run();
+        refresh();
+    }
+
+    /** Replaces the selection with what the user typed or pasted. */
+    private void type(String typed) {
+        if (!editable) return;
+        int start = Math.min(caret, anchor), end = Math.max(caret, anchor);
+        if (start == end && typed.isEmpty()) return;
+        edit(TextEdit.replace(start, end - start, typed));
+        scrollToCaret();
+    }
+
+    private void moveCaret(int position, boolean select) {
+        caret = Math.max(0, Math.min(position, text.length()));
+        if (!select) anchor = caret;
+        onCaretMoved.run();
+        scrollToCaret();
+    }
+
+    private void keyTyped(KeyEvent e) {
+        String typed = e.getCharacter();
+        if (typed.isEmpty() || e.isShortcutDown()) return;
+        // Control characters arrive as key presses (Enter, Tab, Backspace) or are not text at all.
+        char first = typed.charAt(0);
+        if (first < ' ' || first == 127) return;
+        type(typed);
+        e.consume();
+    }
+
+    private void keyPressed(KeyEvent e) {
+        boolean select = e.isShiftDown();
+        int line = lines.lineOf(caret);
+        switch (e.getCode()) {
+            case LEFT -> moveCaret(select || caret == anchor ? previous(caret) : Math.min(caret, anchor), select);
+            case RIGHT -> moveCaret(select || caret == anchor ? next(caret) : Math.max(caret, anchor), select);
+            case UP -> moveCaret(sameColumn(line, line - 1), select);
+            case DOWN -> moveCaret(sameColumn(line, line + 1), select);
+            case PAGE_UP -> moveCaret(sameColumn(line, line - visibleLines()), select);
+            case PAGE_DOWN -> moveCaret(sameColumn(line, line + visibleLines()), select);
+            case HOME -> moveCaret(e.isShortcutDown() ? 0 : lines.lineStart(line), select);
+            case END -> moveCaret(e.isShortcutDown() ? text.length() : lines.lineEnd(line), select);
+            case BACK_SPACE -> {
+                if (caret == anchor && editable) anchor = previous(caret);
+                type("");
+            }
+            case DELETE -> {
+                if (caret == anchor && editable) anchor = next(caret);
+                type("");
+            }
+            case ENTER -> type("\n");
+            case TAB -> type("\t");
+            case A -> {
+                if (!e.isShortcutDown()) return;
+                anchor = 0;
+                moveCaret(text.length(), true);
+            }
+            case C, X -> {
+                if (!e.isShortcutDown()) return;
+                copySelection();
+                if (e.getCode() == KeyCode.X) type("");
+            }
+            case V -> {
+                if (!e.isShortcutDown()) return;
+                Clipboard clipboard = Clipboard.getSystemClipboard();
+                if (clipboard.hasString()) type(clipboard.getString().replace("\r\n", "\n"));
+            }
+            default -> {
+                return;
+            }
+        }
+        e.consume();
+    }
+
+    private void copySelection() {
+        if (caret == anchor) return;
+        ClipboardContent content = new ClipboardContent();
+        content.putString(text.substring(Math.min(caret, anchor), Math.max(caret, anchor)));
+        Clipboard.getSystemClipboard().setContent(content);
+    }
+
+    private void mousePressed(MouseEvent e) {
+        root.requestFocus();
+        moveCaret(offsetAt(e.getX(), e.getY()), e.isShiftDown());
+    }
+
+    private void scrolled(ScrollEvent e) {
+        int lineDelta = (int) -Math.signum(e.getDeltaY()) * WHEEL_LINES;
+        int columnDelta = (int) -Math.signum(e.getDeltaX()) * WHEEL_LINES;
+        firstLine = Math.max(0, Math.min(firstLine + lineDelta, maxFirstLine()));
+        firstColumn = Math.max(0, firstColumn + columnDelta);
+        refresh();
+        e.consume();
+    }
+
+    /** The offset before {@code offset}, stepping over a surrogate pair as one character. */
+    private int previous(int offset) {
+        if (offset == 0) return 0;
+        boolean pair = offset >= 2 && Character.isLowSurrogate(text.charAt(offset - 1)) && Character.isHighSurrogate(text.charAt(offset - 2));
+        return offset - (pair ? 2 : 1);
+    }
+
+    private int next(int offset) {
+        if (offset >= text.length()) return text.length();
+        boolean pair = offset + 1 < text.length() && Character.isHighSurrogate(text.charAt(offset)) && Character.isLowSurrogate(text.charAt(offset + 1));
+        return offset + (pair ? 2 : 1);
+    }
+
+    /** The offset in {@code target} (clamped to the document) at the column the caret has in {@code line}. */
+    private int sameColumn(int line, int target) {
+        target = Math.max(0, Math.min(target, lines.lineCount() - 1));
+        int column = caret - lines.lineStart(line);
+        return Math.min(lines.lineStart(target) + column, lines.lineEnd(target));
+    }
+
+    private int offsetAt(double x, double y) {
+        int line = firstLine + (int) Math.floor((y - PADDING) / lineHeight);
+        line = Math.max(0, Math.min(line, lines.lineCount() - 1));
+        int column = firstColumn + (int) Math.round((x - PADDING) / charWidth);
+        return Math.min(lines.lineStart(line) + Math.max(0, column), lines.lineEnd(line));
+    }
+
+    private int visibleLines() {
+        return Math.max(1, (int) ((canvas.getHeight() - 2 * PADDING) / lineHeight));
+    }
+
+    private int visibleColumns() {
+        return Math.max(1, (int) ((canvas.getWidth() - 2 * PADDING) / charWidth));
+    }
+
+    private int maxFirstLine() {
+        return Math.max(0, lines.lineCount() - visibleLines());
+    }
+
+    private void scrollToCaret() {
+        int line = lines.lineOf(caret);
+        int column = caret - lines.lineStart(line);
+        if (line < firstLine) firstLine = line;
+        else if (line >= firstLine + visibleLines()) firstLine = line - visibleLines() + 1;
+        if (column < firstColumn) firstColumn = column;
+        else if (column >= firstColumn + visibleColumns()) firstColumn = column - visibleColumns() + 1;
+        refresh();
+    }
+
+    private void refresh() {
+        firstLine = Math.max(0, Math.min(firstLine, maxFirstLine()));
+        updatingScrollBar = true;
+        scrollBar.setMax(maxFirstLine());
+        scrollBar.setVisibleAmount(visibleLines());
+        scrollBar.setValue(firstLine);
+        updatingScrollBar = false;
+        draw();
+    }
+
+    /** Paints the lines in view; the only place that reads the text for display. */
+    private void draw() {
+        GraphicsContext g = canvas.getGraphicsContext2D();
+        g.setFill(BACKGROUND);
+        g.fillRect(0, 0, canvas.getWidth(), canvas.getHeight());
+        g.setFont(FONT);
+        g.setTextBaseline(VPos.TOP);
+        if (text.length() == 0) {
+            g.setFill(PROMPT);
+            String[] promptLines = promptText.split("\n");
+            for (int i = 0; i < promptLines.length; i++) g.fillText(promptLines[i], PADDING, PADDING + i * lineHeight);
+            drawCaret(g, PADDING, 0);
+            return;
+        }
+        int selectionStart = Math.min(caret, anchor), selectionEnd = Math.max(caret, anchor);
+        int columns = visibleColumns() + 1;
+        int last = Math.min(lines.lineCount(), firstLine + visibleLines() + 1);
+        int caretLine = lines.lineOf(caret);
+        for (int line = firstLine; line < last; line++) {
+            double y = PADDING + (line - firstLine) * lineHeight;
+            int start = lines.lineStart(line), end = lines.lineEnd(line);
+            if (selectionStart < selectionEnd && selectionStart <= end && selectionEnd > start) {
+                // A selected newline shows as one cell past the end of the line.
+                int from = Math.max(selectionStart, start) - start - firstColumn;
+                int to = Math.min(selectionEnd, end + 1) - start - firstColumn;
+                g.setFill(SELECTION);
+                g.fillRect(PADDING + Math.max(0, from) * charWidth, y, Math.max(0, to - Math.max(0, from)) * charWidth, lineHeight);
+            }
+            int from = Math.min(end, start + firstColumn), to = Math.min(end, from + columns);
+            if (from < to) {
+                g.setFill(textFill);
+                g.fillText(text.substring(from, to).replace('\t', ' '), PADDING, y);
+            }
+            if (line == caretLine) drawCaret(g, y, caret - start);
+        }
+    }
+
+    private void drawCaret(GraphicsContext g, double y, int column) {
+        if (column < firstColumn) return;
+        g.setFill(CARET);
+        g.fillRect(PADDING + (column - firstColumn) * charWidth, y, 2, lineHeight);
+    }
+}
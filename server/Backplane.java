@@ -0,0 +1,36 @@
+package server;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Node-to-node messaging for a cluster of servers sharing rooms.
+ * Every node knows the full, fixed list of nodes, and envelopes go straight to
+ * their destination (one hop). Envelopes from one node to another arrive in the
+ * order they were handed over, whether published or sent; that is what keeps
+ * each document's edits in order on every node.
+ */
+public interface Backplane {
+    /** Handles envelopes from other nodes, one at a time per sending node. */
+    interface Receiver {
+        void receive(Envelope envelope);
+
+        /** Envelopes from the node may have been lost, e.g. with a broken connection. */
+        void lost(String node);
+    }
+
+    void start(Receiver receiver) throws IOException;
+
+    void stop();
+
+    String getLocalNode();
+
+    /** Every node's id, this one included, in the same order on every node. */
+    List<String> getNodes();
+
+    /** Delivers to every other node. Must not block: callers may hold a document lock. */
+    void publish(Envelope envelope);
+
+    /** Delivers to one node. Must not block, like {@link #publish}. */
+    void send(String node, Envelope envelope);
+}
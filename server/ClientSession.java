@@ -0,0 +1,289 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntFunction;
+import shared.Log;
+import shared.Message;
+import shared.SyncChunks;
+import shared.TextEdit;
+import static shared.SharedConstants.*;
+
+/**
+ * One member of a room as the protocol sees it: its edits and SYNCs are
+ * handled here, and whatever the server answers goes to {@link #sendMessage}.
+ * How messages arrive and leave is up to the subclass: a {@link ConnectedClient}
+ * has a connection to this node, a {@link RemoteClient} stands in for a member
+ * of another node whose edits this node sequences.
+ */
+public abstract class ClientSession {
+    private static final Log LOG = Log.get("ClientSession");
+    protected final ServerBroadcaster broadcaster;
+    protected final ServerMetrics metrics;
+    private final long id;
+    protected volatile Room room;
+    protected String username;
+
+    protected ClientSession(ServerBroadcaster broadcaster, long id, Room room, String username) {
+        this.broadcaster = broadcaster;
+        this.metrics = broadcaster.getMetrics();
+        this.id = id;
+        this.room = room;
+        this.username = username;
+    }
+
+    /** Handles one message from the client; joining is up to the subclass, see {@link ConnectedClient}. */
+    void handleMessage(Message message) {
+        String[] parts = message.parts();
+        if (parts.length == 0) return;
+        String messageType = parts[0];
+        if (room == null) {
+            sendMessage(Message.of(MSG_ERROR, "JOIN a room first"));
+            return;
+        }
+
+        // In a cluster, OT edits are sequenced by the node that owns the room.
+        if (isSequenced(messageType) && !broadcaster.sequences(room)) {
+            broadcaster.forward(room, this, message);
+            return;
+        }
+
+        switch (messageType) {
+            case MSG_EDIT -> handleMultiTabEdit(parts); // Updated
+            case MSG_DELETE -> handleMultiTabDelete(parts); // Updated
+            case MSG_REPLACE -> handleReplace(parts);
+            case MSG_SYNC -> handleMultiTabSync(parts); // Updated
+            case MSG_BATCH -> handleBatch(parts);
+            default -> {
+                metrics.parseFailure();
+                LOG.warn("Unknown type: {}", messageType);
+            }
+        }
+    }
+
+    private static boolean isSequenced(String messageType) {
+        return switch (messageType) {
+            case MSG_EDIT, MSG_DELETE, MSG_REPLACE, MSG_BATCH, MSG_SYNC -> true;
+            default -> false;
+        };
+    }
+
+    // New logic: parts[1] is now the FileType (TXT or JAVA)
+    // parts[5], when present, is the revision the client made the edit against.
+    // The position of EDIT, DELETE and REPLACE is an offset or line:column, see applyAddressedEdit.
+    private void handleMultiTabEdit(String[] parts) {
+        if (parts.length >= 5) {
+            String fileType = parts[1];
+            String text = parts[3];
+            String sender = parts[4];
+            String baseRevision = parts.length >= 6 ? parts[5] : null;
+            if (isAddress(parts[2])) {
+                applyAddressedEdit(fileType, parts[2], baseRevision, sender, pos -> TextEdit.insert(pos, text));
+                return;
+            }
+            Integer pos = parsePosition(parts[2]);
+            if (pos == null) return;
+            applyClientEdit(fileType, List.of(TextEdit.insert(pos, text)), baseRevision, sender, false);
+        }
+    }
+
+    private void handleMultiTabDelete(String[] parts) {
+        if (parts.length >= 5) {
+            String fileType = parts[1];
+            Integer len = parsePosition(parts[3]);
+            String sender = parts[4];
+            String baseRevision = parts.length >= 6 ? parts[5] : null;
+            if (len == null) return;
+            if (isAddress(parts[2])) {
+                applyAddressedEdit(fileType, parts[2], baseRevision, sender, pos -> TextEdit.delete(pos, len));
+                return;
+            }
+            Integer pos = parsePosition(parts[2]);
+            if (pos == null) return;
+            applyClientEdit(fileType, List.of(TextEdit.delete(pos, len)), baseRevision, sender, false);
+        }
+    }
+
+    /** REPLACE|fileType|position|length|text|sender|revision: a selection typed over, as one edit. */
+    private void handleReplace(String[] parts) {
+        if (parts.length < 7) return;
+        Integer len = parsePosition(parts[3]);
+        if (len == null) return;
+        if (isAddress(parts[2])) {
+            applyAddressedEdit(parts[1], parts[2], parts[6], parts[5], pos -> TextEdit.replace(pos, len, parts[4]));
+            return;
+        }
+        Integer pos = parsePosition(parts[2]);
+        if (pos == null) return;
+        applyClientEdit(parts[1], List.of(TextEdit.replace(pos, len, parts[4])), parts[6], parts[5], false);
+    }
+
+    private static boolean isAddress(String position) {
+        return position.indexOf(':') >= 0;
+    }
+
+    /**
+     * An edit whose position is given as line:column (both 1-based), for scripts and
+     * tools that work in lines. The address means the current text, so the edit must
+     * be made against the current revision or carry none; anything older is rejected
+     * like an edit the history no longer reaches. Relayed to others with an offset.
+     */
+    private void applyAddressedEdit(String fileType, String address, String baseRevision, String sender, IntFunction<TextEdit> edit) {
+        Document document = findDocument(fileType);
+        if (document == null || rejectCrdtDocument(document)) return;
+        document.lock();
+        try {
+            Integer base = baseRevision == null ? Integer.valueOf(document.getRevision()) : parsePosition(baseRevision);
+            if (base == null) return;
+            if (base != document.getRevision()) {
+                rejectEdit(document, "Line/column edits need the current revision " + document.getRevision() + " of " + fileType);
+                return;
+            }
+            int separator = address.indexOf(':');
+            Integer line = parsePosition(address.substring(0, separator));
+            Integer column = parsePosition(address.substring(separator + 1));
+            if (line == null || column == null) return;
+            int position = document.offsetOf(line, column);
+            if (position < 0) {
+                sendMessage(Message.of(MSG_ERROR, "Invalid position " + address + " in " + fileType));
+                return;
+            }
+            // Reentrant: the document stays locked from resolving the address to applying the edit.
+            applyClientEdit(fileType, List.of(edit.apply(position)), baseRevision, sender, false);
+        } finally {
+            document.unlock();
+        }
+    }
+
+    /** BATCH|fileType|edits|sender|revision: several coalesced edits, made in order against one revision. */
+    private void handleBatch(String[] parts) {
+        if (parts.length < 5) return;
+        List<TextEdit> edits;
+        try {
+            edits = TextEdit.decode(parts[2]);
+        } catch (IllegalArgumentException e) {
+            metrics.parseFailure();
+            sendMessage(Message.of(MSG_ERROR, "Invalid batch: " + e.getMessage()));
+            return;
+        }
+        applyClientEdit(parts[1], edits, parts[4], parts[3], true);
+    }
+
+    /**
+     * Rebases the edits onto the current revision and applies them; each resulting
+     * edit gets its own revision. A batch is relayed as one BATCH message
+     * stamped with the last revision, single edits as EDIT/DELETE messages. Clients
+     * that sent a base revision get an ACK; older clients without one are treated
+     * as up to date.
+     */
+    private void applyClientEdit(String fileType, List<TextEdit> edits, String baseRevision, String sender, boolean batch) {
+        Document document = findDocument(fileType);
+        if (document == null || rejectCrdtDocument(document)) return;
+        document.lock();
+        try {
+            Integer base = baseRevision == null ? Integer.valueOf(document.getRevision()) : parsePosition(baseRevision);
+            if (base == null) return;
+            List<TextEdit> ops = document.rebase(edits, base);
+            if (ops == null) {
+                rejectEdit(document, "Revision " + base + " of " + fileType + " is no longer available");
+                return;
+            }
+            if (!document.fits(edits, base) || !document.fits(ops)) {
+                rejectEdit(document, "Edit " + edits + " outside " + fileType + " (length " + document.length() + ")");
+                return;
+            }
+            List<TextEdit> applied = new ArrayList<>();
+            for (TextEdit op : ops) {
+                if (op.isNoop()) continue;
+                int revision = document.apply(op);
+                if (batch) applied.add(op);
+                else room.broadcast(editMessage(fileType, op, sender, revision), this);
+            }
+            if (!applied.isEmpty()) {
+                room.broadcast(Message.of(MSG_BATCH, fileType, TextEdit.encode(applied), sender,
+                        String.valueOf(document.getRevision())), this);
+            }
+            if (baseRevision != null) sendMessage(Message.of(MSG_ACK, fileType, String.valueOf(document.getRevision())));
+        } finally {
+            document.unlock();
+        }
+    }
+
+    private static Message editMessage(String fileType, TextEdit edit, String sender, int revision) {
+        String position = String.valueOf(edit.getPosition());
+        if (edit.isInsert()) {
+            return Message.of(MSG_EDIT, fileType, position, edit.getText(), sender, String.valueOf(revision));
+        }
+        if (edit.isDelete()) {
+            return Message.of(MSG_DELETE, fileType, position, String.valueOf(edit.getDeleteLength()), sender, String.valueOf(revision));
+        }
+        return Message.of(MSG_REPLACE, fileType, position, String.valueOf(edit.getDeleteLength()), edit.getText(), sender, String.valueOf(revision));
+    }
+
+    private void handleMultiTabSync(String[] parts) {
+        if (parts.length >= 4) {
+            String fileType = parts[1];
+            String fullText = parts[2];
+            String sender = parts[3];
+            Document document = findDocument(fileType);
+            if (document == null || rejectCrdtDocument(document)) return;
+            document.lock();
+            try {
+                int revision = document.replaceAll(fullText);
+                // The sender gets its own SYNC back too, to adopt the new revision.
+                room.broadcastToAll(Message.of(MSG_SYNC, fileType, fullText, sender, String.valueOf(revision)));
+            } finally {
+                document.unlock();
+            }
+        }
+    }
+
+    /** Positional edits cannot be merged into a CRDT document; resync the sender instead. */
+    private boolean rejectCrdtDocument(Document document) {
+        if (!document.isCrdt()) return false;
+        document.lock();
+        try {
+            rejectEdit(document, "Document " + document.getName() + " expects CRDT ops");
+        } finally {
+            document.unlock();
+        }
+        return true;
+    }
+
+    Document findDocument(String fileType) {
+        if (!DocumentStore.isValidName(fileType)) {
+            sendMessage(Message.of(MSG_ERROR, "Invalid document name"));
+            return null;
+        }
+        Document document = room.getDocuments().get(fileType);
+        if (document == null) sendMessage(Message.of(MSG_ERROR, "Room " + room.getName() + " has too many documents"));
+        return document;
+    }
+
+    private Integer parsePosition(String value) {
+        try {
+            int number = Integer.parseInt(value);
+            if (number >= 0) return number;
+        } catch (NumberFormatException ignored) {
+        }
+        metrics.parseFailure();
+        sendMessage(Message.of(MSG_ERROR, "Invalid number: " + value));
+        return null;
+    }
+
+    /** Tells the sender its edit was refused and resyncs it to the server's copy. Caller holds the document lock. */
+    private void rejectEdit(Document document, String reason) {
+        LOG.warn("Rejected edit from {}: {}", username, reason);
+        sendMessage(Message.of(MSG_ERROR, reason));
+        for (Message sync : SyncChunks.split(DocumentStore.syncMessage(document))) sendMessage(sync);
+    }
+
+    /** Queues a message for the client; it must not block. */
+    public abstract void sendMessage(Message message);
+
+    public String getUsername() { return username; }
+    public Room getRoom() { return room; }
+    long getId() { return id; }
+    /** The node this client is connected to. */
+    String getNode() { return broadcaster.getLocalNode(); }
+}
@@ -0,0 +1,358 @@
+package server;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import shared.BinaryCodec;
+import shared.FrameCompression;
+import shared.Log;
+import shared.Message;
+import shared.OperationClient;
+import shared.RgaOp;
+import shared.SyncChunks;
+import shared.WireFormat;
+import static shared.SharedConstants.*;
+
+/**
+ * A client connected to this node: it joins rooms, and what is sent to it waits in
+ * a bounded outbound queue until the connection's writer takes it. What happens when
+ * the queue is full is the server's {@link OverflowPolicy}; under
+ * {@link OverflowPolicy#RESYNC} the snapshots that replace the backlog are built on
+ * a thread of their own, since the sender may hold a document lock. Subclasses supply the
+ * transport: {@link ClientHandler} a blocking socket with a thread per direction,
+ * {@link NioClientHandler} a channel on an event loop.
+ */
+public abstract class ConnectedClient extends ClientSession {
+    private static final Log LOG = Log.get("ConnectedClient");
+    private static final Log.Sampler DROPS = LOG.sampled(Log.Level.WARN);
+    private static final AtomicLong NEXT_ID = new AtomicLong();
+    private static final ExecutorService RESYNC =
+            Executors.newSingleThreadExecutor(Thread.ofPlatform().daemon().name("resync").factory());
+    private static final int MAX_RESYNC_RETRIES = 3;
+    int MAX_USERNAME_LENGTH = 10;
+    // Outbound messages wait here until this client's own writer drains them,
+    // so broadcasting never blocks on a slow socket. Each is encoded for this
+    // client's wire format only when written.
+    private final BlockingQueue<Message> outbound;
+    // Under RESYNC, the documents whose messages the snapshot still to come supersedes
+    private final Set<String> stale = ConcurrentHashMap.newKeySet();
+    private final ReentrantLock overflowLock = new ReentrantLock();
+    private boolean resyncing;
+    private volatile boolean connected;
+    private boolean binaryInput;
+
+    protected ConnectedClient(ServerBroadcaster broadcaster) {
+        // Ids follow connection order; rooms list their members by it
+        super(broadcaster, NEXT_ID.incrementAndGet(), null, DEFAULT_USERNAME);
+        this.outbound = new ArrayBlockingQueue<>(broadcaster.getQueueCapacity());
+        this.connected = true;
+    }
+
+    @Override
+    void handleMessage(Message message) {
+        switch (message.getType()) {
+            case MSG_JOIN -> handleJoin(message);
+            case MSG_CRDT -> {
+                if (room != null) handleCrdt(message.parts(), message);
+                else super.handleMessage(message);
+            }
+            default -> super.handleMessage(message);
+        }
+    }
+
+    /**
+     * JOIN|username[|protocol[|room[|revisions]]]: without a room the client joins
+     * {@link shared.SharedConstants#DEFAULT_ROOM}. A client rejoining after a dropped
+     * connection lists the revision it last saw per document, see {@link OperationClient#decodeRevisions}.
+     */
+    private void handleJoin(Message message) {
+        String[] parts = message.parts();
+        if (parts.length >= 2) {
+            String roomName = parts.length >= 4 && !parts[3].isEmpty() ? parts[3] : DEFAULT_ROOM;
+            if (!Room.isValidName(roomName)) {
+                sendMessage(Message.of(MSG_ERROR, "Invalid room name"));
+                return;
+            }
+            // A room the server does not hold is loaded first; the JOIN is handled again once it is there.
+            CompletableFuture<Room> loaded = broadcaster.load(roomName, true);
+            if (!loaded.isDone()) {
+                awaitLoad(loaded, () -> handleJoin(message));
+                return;
+            }
+            if (loaded.isCompletedExceptionally()) {
+                sendMessage(Message.of(MSG_ERROR, "Room " + roomName + " could not be opened"));
+                return;
+            }
+            if (loaded.join() == null) {
+                LOG.warn("{} could not join {}: the server has too many rooms", parts[1], roomName);
+                sendMessage(Message.of(MSG_ERROR, "The server has too many rooms"));
+                return;
+            }
+            // Accept the binary protocol before anything else is queued for this client.
+            if (!binaryInput && WireFormat.offersBinary(message)) {
+                sendMessage(WireFormat.offersCompression(message)
+                        ? Message.of(MSG_PROTOCOL, BinaryCodec.VERSION, FrameCompression.NAME)
+                        : Message.of(MSG_PROTOCOL, BinaryCodec.VERSION));
+                binaryInput = true;
+                switchInputToBinary();
+            }
+            // A second JOIN moves the client to another room, leaving the old one under its old name.
+            if (room != null) {
+                broadcaster.removeClient(this);
+                // A resync still running for the old room stops queueing its snapshots
+                overflowLock.lock();
+                try {
+                    room = null;
+                    stale.clear();
+                } finally {
+                    overflowLock.unlock();
+                }
+            }
+            username = parts[1];
+            if (username.length() > MAX_USERNAME_LENGTH) username = username.substring(0, MAX_USERNAME_LENGTH);
+            // The user list follows with the room's next presence tick.
+            room = broadcaster.joinLoaded(this, roomName);
+            if (room == null) {
+                // Evicted since it was loaded
+                handleJoin(message);
+                return;
+            }
+            // Queued under each document's lock, after join: an edit to a document is
+            // either in its snapshot or queued behind it, so the joiner still converges.
+            Map<String, Integer> revisions = parts.length >= 5 ? OperationClient.decodeRevisions(parts[4]) : Map.of();
+            room.catchUp(revisions, this::sendMessage);
+        }
+    }
+
+    /**
+     * Runs {@code then} on this client's reader once the room is loaded, reading
+     * nothing else from the client meanwhile. This blocks; a transport whose reader
+     * serves other clients too overrides it.
+     */
+    protected void awaitLoad(CompletableFuture<Room> loading, Runnable then) {
+        try {
+            loading.join();
+        } catch (CompletionException ignored) {
+            // handleJoin reports it
+        }
+        then.run();
+    }
+
+    /**
+     * CRDT|fileType|ops|sender. The ops merge into the server's replica (kept for
+     * snapshots) and the original message is relayed as is. Replicas converge whatever
+     * order the ops arrive in, so the relay happens outside the document lock. CRDT
+     * ops are merged by the node that received them, so only a connected client sends
+     * them; one whose ops wait for too many characters the server never saw is
+     * disconnected (see {@link shared.Rga#MAX_PENDING}).
+     */
+    private void handleCrdt(String[] parts, Message message) {
+        if (parts.length < 4) return;
+        Document document = findDocument(parts[1]);
+        if (document == null) return;
+        if (!document.isCrdt()) {
+            sendMessage(Message.of(MSG_ERROR, "Document " + parts[1] + " does not use CRDT ops"));
+            return;
+        }
+        List<RgaOp> ops;
+        try {
+            ops = RgaOp.decode(parts[2]);
+        } catch (IllegalArgumentException e) {
+            metrics.parseFailure();
+            sendMessage(Message.of(MSG_ERROR, "Invalid CRDT ops: " + e.getMessage()));
+            return;
+        }
+        boolean unresolvable = false;
+        document.lock();
+        try {
+            document.applyCrdt(ops, getId());
+        } catch (IllegalStateException e) {
+            // Its ops keep referring to characters nobody typed; what already waits is dropped when it leaves
+            LOG.warn("Disconnecting {}: {}", username, e.getMessage());
+            unresolvable = true;
+        } finally {
+            document.unlock();
+        }
+        // Outside the lock: leaving the room takes other locks
+        if (unresolvable) {
+            sendMessage(Message.of(MSG_ERROR, "CRDT ops refer to characters the server never received"));
+            disconnect();
+            return;
+        }
+        room.broadcast(message, this);
+    }
+
+    @Override
+    public void sendMessage(Message message) {
+        if (!connected) return;
+        if (isSuperseded(message)) return;
+        if (outbound.offer(message)) {
+            onOutboundReady();
+            return;
+        }
+        switch (broadcaster.getOverflowPolicy()) {
+            case DROP -> DROPS.log("Outbound queue full, dropping message for {}", username);
+            case DISCONNECT -> {
+                LOG.warn("Outbound queue full, disconnecting {}", username);
+                disconnect();
+            }
+            case RESYNC -> resync(message);
+        }
+    }
+
+    /**
+     * True if the message belongs to a document whose snapshot is still to come. Document
+     * messages are sent under the document's lock, and the snapshot is taken under it, so
+     * each is either superseded by the snapshot or queued after it.
+     */
+    private boolean isSuperseded(Message message) {
+        if (stale.isEmpty()) return false;
+        String[] parts = message.parts();
+        return switch (parts[0]) {
+            case MSG_EDIT, MSG_DELETE, MSG_REPLACE, MSG_BATCH, MSG_SYNC, MSG_SYNC_PART, MSG_ACK, MSG_CRDT, MSG_CRDT_SYNC ->
+                    parts.length > 1 && stale.contains(parts[1]);
+            default -> false;
+        };
+    }
+
+    /**
+     * Replaces the whole backlog with fresh SYNC snapshots of every document. The
+     * caller may hold a document lock, so this only clears the queue and marks every
+     * document stale; the snapshots are queued from the resync thread, each under its
+     * document's lock, which never waits for a lock held by whoever overflowed.
+     */
+    private void resync(Message message) {
+        Room current;
+        boolean start = false;
+        overflowLock.lock();
+        try {
+            current = room;
+            if (current != null) {
+                LOG.warn("Outbound queue full, collapsing backlog into SYNC for {}", username);
+                start = collapse(current);
+                if (!isSuperseded(message)) outbound.offer(message);
+            }
+        } finally {
+            overflowLock.unlock();
+        }
+        if (current == null) {
+            LOG.warn("Outbound queue full and no snapshot available, disconnecting {}", username);
+            disconnect();
+            return;
+        }
+        onOutboundReady();
+        if (start) RESYNC.execute(this::completeResync);
+    }
+
+    /** Clears the queue and marks every document stale; true if no resync is running yet. Caller holds overflowLock. */
+    private boolean collapse(Room current) {
+        // Marked before and after clearing, so whatever the clear drops is snapshotted
+        stale.addAll(current.getDocuments().names());
+        outbound.clear();
+        stale.addAll(current.getDocuments().names());
+        boolean start = !resyncing;
+        resyncing = true;
+        return start;
+    }
+
+    /**
+     * On the resync thread: queues a snapshot of each stale document of the client's
+     * room until none is left. Lock order is the senders': document lock, then overflowLock.
+     * If the queue fills up again before they are all in, it starts over from an empty
+     * queue, a few times at most before the client is disconnected.
+     */
+    private void completeResync() {
+        int retries = 0;
+        while (true) {
+            Room current;
+            overflowLock.lock();
+            try {
+                current = room;
+                if (!connected || current == null || stale.isEmpty()) {
+                    stale.clear();
+                    resyncing = false;
+                    return;
+                }
+            } finally {
+                overflowLock.unlock();
+            }
+            for (String name : List.copyOf(stale)) {
+                Document document = current.getDocuments().find(name);
+                if (document == null) continue;
+                boolean queued = true;
+                document.lock();
+                overflowLock.lock();
+                try {
+                    // Not once the client moved on to another room
+                    if (room != current || !stale.remove(name)) continue;
+                    for (Message sync : SyncChunks.split(DocumentStore.syncMessage(document))) {
+                        if (!outbound.offer(sync)) {
+                            queued = false;
+                            break;
+                        }
+                    }
+                } finally {
+                    overflowLock.unlock();
+                    document.unlock();
+                }
+                if (queued) {
+                    onOutboundReady();
+                    continue;
+                }
+                if (++retries > MAX_RESYNC_RETRIES) {
+                    LOG.warn("Outbound queue keeps filling before the snapshot is queued, disconnecting {}", username);
+                    disconnect();
+                    return;
+                }
+                overflowLock.lock();
+                try {
+                    if (room == current) collapse(current);
+                } finally {
+                    overflowLock.unlock();
+                }
+                break;
+            }
+        }
+    }
+
+    /** The client's messages after its JOIN arrive as binary frames. */
+    protected abstract void switchInputToBinary();
+
+    /** Called after messages were queued, e.g. to wake the writer; a blocking writer is already waiting on the queue. */
+    protected void onOutboundReady() {
+    }
+
+    /** Waits for the next queued message. */
+    protected Message takeOutbound() throws InterruptedException {
+        return outbound.take();
+    }
+
+    /** Moves everything queued so far into {@code batch}, without blocking. */
+    protected void drainOutbound(List<Message> batch) {
+        outbound.drainTo(batch);
+    }
+
+    public void disconnect() {
+        if (connected) {
+            connected = false;
+            broadcaster.removeClient(this);
+            closeTransport();
+        }
+    }
+
+    /** Closes the connection and stops its threads, if any; called once, on disconnect. */
+    protected abstract void closeTransport();
+
+    /** Messages queued for this client and not yet written. */
+    int getOutboundBacklog() { return outbound.size(); }
+    public boolean isConnected() { return connected; }
+}
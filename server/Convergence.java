@@ -0,0 +1,11 @@
+package server;
+
+/**
+ * How concurrent edits to a document are reconciled.
+ */
+public enum Convergence {
+    /** The server orders edits into revisions and transforms late ones (EDIT/DELETE/ACK). */
+    OT,
+    /** Clients exchange {@link shared.Rga} ops; the server only keeps a replica and relays, in any order. */
+    CRDT
+}
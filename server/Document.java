@@ -0,0 +1,225 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import shared.LineIndex;
+import shared.OperationTransform;
+import shared.PieceTable;
+import shared.Rga;
+import shared.RgaOp;
+import shared.TextEdit;
+
+/**
+ * The server's authoritative copy of one shared document.
+ * Every applied edit gets the next revision number; a bounded history of recent
+ * edits lets the server rebase edits that clients made against older revisions,
+ * and send a reconnecting client just the edits it missed.
+ * Callers hold {@link #lock()} around rebase, apply and broadcast so every client
+ * sees the edits of a document in revision order.
+ * <p>
+ * Under {@link Convergence#CRDT} the text lives in an {@link Rga} replica instead;
+ * ops merge in any order, so the lock only guards the replica itself.
+ * <p>
+ * With a {@link DocumentLog} attached, every change is also logged, and the
+ * document hands the log a snapshot of itself whenever the log has grown enough.
+ */
+public class Document {
+    public static final int HISTORY_LIMIT = 4096;
+    /** The server's replica id; clients pick their own above it. */
+    public static final int SERVER_REPLICA = 1;
+    private final String name;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Deque<TextEdit> history = new ArrayDeque<>();
+    private PieceTable text = new PieceTable();
+    // Where the lines of the text start, for edits addressed by line and column
+    private LineIndex lines = new LineIndex();
+    private int revision;
+    private Rga crdt;
+    private DocumentLog log;
+
+    public Document(String name) {
+        this(name, Convergence.OT);
+    }
+
+    public Document(String name, Convergence convergence) {
+        this.name = name;
+        this.crdt = convergence == Convergence.CRDT ? new Rga(SERVER_REPLICA) : null;
+    }
+
+    /** Logs every change from now on; attached once the document has been restored from the log. */
+    void attach(DocumentLog log) { this.log = log; }
+
+    /** Stops logging, e.g. when the room is evicted, and returns the log (null if none). Caller holds the lock. */
+    DocumentLog detach() {
+        DocumentLog detached = log;
+        log = null;
+        return detached;
+    }
+
+    public void lock() { lock.lock(); }
+    public void unlock() { lock.unlock(); }
+
+    /**
+     * Transforms a sequence of edits made against {@code baseRevision} past every edit applied since.
+     * @return the edits to apply in order, or null if the history no longer reaches back that far
+     */
+    public List<TextEdit> rebase(List<TextEdit> edits, int baseRevision) {
+        int oldest = revision - history.size();
+        if (baseRevision < oldest || baseRevision > revision) return null;
+        List<TextEdit> ops = edits;
+        int skip = baseRevision - oldest;
+        for (TextEdit applied : history) {
+            if (skip-- > 0) continue;
+            ops = OperationTransform.transform(ops, List.of(applied), false).ops();
+        }
+        return ops;
+    }
+
+    /**
+     * The edits applied after {@code revision}, in order: what a client that last saw
+     * that revision is missing.
+     * @return null if the history no longer reaches back that far
+     */
+    public List<TextEdit> editsSince(int revision) {
+        int oldest = this.revision - history.size();
+        if (revision < oldest || revision > this.revision) return null;
+        List<TextEdit> edits = new ArrayList<>(this.revision - revision);
+        int skip = revision - oldest;
+        for (TextEdit applied : history) {
+            if (skip-- > 0) continue;
+            edits.add(applied);
+        }
+        return edits;
+    }
+
+    /** @return false if any edit of the sequence would fall outside the document */
+    public boolean fits(List<TextEdit> edits) {
+        return fitWithin(edits, text.length());
+    }
+
+    /**
+     * Checks edits a client made against {@code baseRevision} before they are rebased,
+     * since transforming an edit that never fit the text it was made on can yield one
+     * that fits the current text.
+     * @return false if any edit would fall outside the document as it was at that
+     *         revision, or the history no longer reaches back that far
+     */
+    public boolean fits(List<TextEdit> edits, int baseRevision) {
+        List<TextEdit> since = editsSince(baseRevision);
+        if (since == null) return false;
+        int length = text.length();
+        for (TextEdit applied : since) length -= applied.lengthDelta();
+        return fitWithin(edits, length);
+    }
+
+    private static boolean fitWithin(List<TextEdit> edits, int length) {
+        for (TextEdit edit : edits) {
+            if (!edit.fits(length)) return false;
+            length += edit.lengthDelta();
+        }
+        return true;
+    }
+
+    /** Applies an edit that {@link #fits} and returns its revision. */
+    public int apply(TextEdit edit) {
+        edit.applyTo(text);
+        lines.apply(edit);
+        history.addLast(edit);
+        if (history.size() > HISTORY_LIMIT) history.removeFirst();
+        revision++;
+        if (log != null) {
+            log.appendEdit(revision, edit);
+            checkpoint();
+        }
+        return revision;
+    }
+
+    /** Replaces the whole text; older revisions can no longer be rebased. */
+    public int replaceAll(String value) {
+        text = new PieceTable(value);
+        lines = new LineIndex(value);
+        history.clear();
+        revision++;
+        if (log != null) {
+            log.appendReplaceAll(revision, value);
+            checkpoint();
+        }
+        return revision;
+    }
+
+    /** Takes over another node's text and revision, for a replica out of step with the owner; logged like {@link #replaceAll}. */
+    public void adopt(String value, int revision) {
+        restore(value, revision);
+        if (log != null) {
+            log.appendReplaceAll(revision, value);
+            checkpoint();
+        }
+    }
+
+    /** Sets the text and revision read back from disk; no history, like after {@link #replaceAll}. */
+    void restore(String value, int revision) {
+        text = new PieceTable(value);
+        lines = new LineIndex(value);
+        history.clear();
+        this.revision = revision;
+    }
+
+    /**
+     * The offset of a 1-based line and column in the current text; column
+     * lineLength + 1 is the end of the line.
+     * @return -1 if there is no such line or column
+     */
+    public int offsetOf(int line, int column) {
+        return lines.offsetOf(line - 1, column - 1);
+    }
+
+    /** Replaces the CRDT replica with state read back from disk. */
+    void restoreCrdt(String state) {
+        crdt = Rga.decodeState(state, SERVER_REPLICA);
+    }
+
+    private void checkpoint() {
+        if (log.wantsSnapshot()) log.startSnapshot(crdt != null, revision, crdt != null ? crdt.encodeState() : text.toString());
+    }
+
+    /** Merges CRDT ops into the replica; duplicates are ignored. */
+    public void applyCrdt(List<RgaOp> ops) {
+        applyCrdt(ops, 0);
+    }
+
+    /**
+     * Merges CRDT ops received from {@code source} (see {@link Rga#apply(RgaOp, long)}).
+     * @throws IllegalStateException if the source has too many ops waiting; the ops before that one are merged and logged
+     */
+    public void applyCrdt(List<RgaOp> ops, long source) {
+        int merged = 0;
+        try {
+            for (RgaOp op : ops) {
+                crdt.apply(op, source);
+                merged++;
+            }
+        } finally {
+            if (log != null && merged > 0) {
+                log.appendCrdt(RgaOp.encode(merged == ops.size() ? ops : ops.subList(0, merged)));
+                checkpoint();
+            }
+        }
+    }
+
+    /** Drops the CRDT ops of {@code source} still waiting for characters the replica has not seen; returns how many. */
+    public int discardPendingCrdt(long source) {
+        return crdt.discardPending(source);
+    }
+
+    /** The replica state a new CRDT client starts from, tombstones included. */
+    public String getCrdtState() { return crdt.encodeState(); }
+
+    public boolean isCrdt() { return crdt != null; }
+    public String getName() { return name; }
+    public int getRevision() { return revision; }
+    public int length() { return crdt != null ? crdt.length() : text.length(); }
+    public String getText() { return crdt != null ? crdt.text() : text.toString(); }
+}
@@ -0,0 +1,441 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+import shared.Log;
+import shared.RgaOp;
+import shared.TextEdit;
+
+/**
+ * The write-ahead log and snapshots of one document.
+ * <p>
+ * The log is a sequence of records, each {@code [payload length][CRC32C][payload]}
+ * with the payload {@code [kind][revision]} followed by the edit. Once a document
+ * has logged {@link Persistence#getSnapshotBytes()} bytes, its state is written
+ * to a snapshot and the log starts over: files are numbered by generation, and
+ * snapshot N holds the state at the start of log N, so older files can go as
+ * soon as snapshot N is on disk. Recovery loads the newest intact snapshot and
+ * replays the logs from there, stopping at the first torn or damaged record.
+ * <p>
+ * Appends run on the editing thread (which holds the document lock) and only
+ * copy the record into a buffer; the {@link Persistence} committer thread does
+ * all file I/O. A commit that fails keeps what it did not get on disk and the
+ * next one writes it again, from where the log was last forced, so the log never
+ * has a gap that replay would stop at.
+ */
+final class DocumentLog {
+    private static final Log LOG = Log.get("Persistence");
+    private static final byte EDIT = 1;
+    private static final byte REPLACE_ALL = 2;
+    private static final byte CRDT = 3;
+    private static final int HEADER_BYTES = 8;
+    // Kind and revision
+    private static final int PAYLOAD_PREFIX = 5;
+    private static final int SNAPSHOT_MAGIC = 0x534E4150; // "SNAP"
+    private static final byte TEXT_STATE = 'T';
+    private static final byte CRDT_STATE = 'C';
+    private static final String LOG_SUFFIX = ".log";
+    private static final String SNAPSHOT_SUFFIX = ".snap";
+    private static final String DAMAGED_SUFFIX = ".damaged";
+
+    private record Snapshot(long generation, byte kind, int revision, String state) { }
+
+    private final Persistence persistence;
+    private final Path directory;
+    private final String fileName;
+    private final String name;
+    private final ReentrantLock lock = new ReentrantLock();
+    // Records not yet handed to the committer, for log `generation`
+    private ByteBuffer pending = ByteBuffer.allocate(4096);
+    // Records of the previous generation, when a snapshot started a new one since the last commit;
+    // it and the snapshot are cleared once on disk, so no other snapshot starts before
+    private ByteBuffer closing;
+    private Snapshot snapshot;
+    private long generation;
+    private long bytesSinceSnapshot;
+    // Committing thread only, one at a time (see Persistence)
+    private ByteBuffer writing = ByteBuffer.allocate(4096);
+    private FileChannel channel;
+    // The log file last forced and its length then; a retried write starts over from there
+    private long forcedGeneration = -1;
+    private long forcedLength;
+
+    private DocumentLog(Persistence persistence, Path directory, Document document, long generation) {
+        this.persistence = persistence;
+        this.directory = directory;
+        this.fileName = Persistence.fileName(document.getName());
+        this.name = Persistence.name(directory.getFileName().toString()) + "/" + document.getName();
+        this.generation = generation;
+    }
+
+    String getName() { return name; }
+
+    void appendEdit(int revision, TextEdit edit) {
+        append(EDIT, revision, edit, edit.getText());
+    }
+
+    void appendReplaceAll(int revision, String text) {
+        append(REPLACE_ALL, revision, null, text);
+    }
+
+    void appendCrdt(String ops) {
+        append(CRDT, 0, null, ops);
+    }
+
+    private void append(byte kind, int revision, TextEdit edit, String text) {
+        byte[] data = text.getBytes(StandardCharsets.UTF_8);
+        int payload = PAYLOAD_PREFIX + (edit != null ? 8 : 0) + data.length;
+        lock.lock();
+        try {
+            ByteBuffer buffer = reserve(HEADER_BYTES + payload);
+            int start = buffer.position();
+            buffer.putInt(payload).putInt(0).put(kind).putInt(revision);
+            if (edit != null) buffer.putInt(edit.getPosition()).putInt(edit.getDeleteLength());
+            buffer.put(data);
+            CRC32C crc = new CRC32C();
+            crc.update(buffer.array(), start + HEADER_BYTES, payload);
+            buffer.putInt(start + 4, (int) crc.getValue());
+            bytesSinceSnapshot += HEADER_BYTES + payload;
+        } finally {
+            lock.unlock();
+        }
+        persistence.markDirty(this);
+    }
+
+    private ByteBuffer reserve(int bytes) {
+        if (pending.remaining() < bytes) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + bytes));
+            pending.flip();
+            grown.put(pending);
+            pending = grown;
+        }
+        return pending;
+    }
+
+    /** True once enough has been logged that a snapshot should replace the log. */
+    boolean wantsSnapshot() {
+        lock.lock();
+        try {
+            return snapshot == null && bytesSinceSnapshot >= persistence.getSnapshotBytes();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Starts a new log generation from this state; the committer writes the snapshot
+     * and then drops the older files. Caller holds the document lock, so no edit
+     * falls between the state and the new log.
+     */
+    void startSnapshot(boolean crdt, int revision, String state) {
+        lock.lock();
+        try {
+            closing = pending;
+            pending = ByteBuffer.allocate(4096);
+            generation++;
+            snapshot = new Snapshot(generation, crdt ? CRDT_STATE : TEXT_STATE, revision, state);
+            bytesSinceSnapshot = 0;
+        } finally {
+            lock.unlock();
+        }
+        persistence.markDirty(this);
+    }
+
+    /**
+     * Writes and forces everything appended so far. One committing thread at a time.
+     * @throws IOException after putting back what is not on disk yet, for the next commit
+     */
+    void commit() throws IOException {
+        ByteBuffer previous;
+        ByteBuffer current;
+        Snapshot taken;
+        long currentGeneration;
+        lock.lock();
+        try {
+            previous = closing;
+            taken = snapshot;
+            current = pending;
+            pending = writing;
+            pending.clear();
+            writing = current;
+            currentGeneration = generation;
+        } finally {
+            lock.unlock();
+        }
+        try {
+            if (previous != null) {
+                if (channel == null) channel = openLog(taken.generation() - 1);
+                writeFully(previous);
+                channel.close();
+                channel = null;
+                clear(previous, null);
+            }
+            if (taken != null) {
+                channel = openLog(taken.generation());
+                writeSnapshot(taken);
+                deleteBefore(taken.generation());
+                clear(null, taken);
+            }
+            if (current.position() > 0) {
+                if (channel == null) channel = openLog(currentGeneration);
+                writeFully(current);
+            }
+        } catch (IOException e) {
+            // Whatever part of it reached the file is cut off again when the file is reopened
+            close();
+            channel = null;
+            putBack(current, currentGeneration);
+            throw e;
+        }
+    }
+
+    private void clear(ByteBuffer written, Snapshot writtenSnapshot) {
+        lock.lock();
+        try {
+            if (written != null && closing == written) closing = null;
+            if (writtenSnapshot != null && snapshot == writtenSnapshot) snapshot = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Puts records that failed to commit back in front of those appended since. */
+    private void putBack(ByteBuffer failed, long failedGeneration) {
+        if (failed.position() == 0) return;
+        lock.lock();
+        try {
+            // A snapshot may have started meanwhile, and then they belong to the log it closed
+            boolean current = failedGeneration == generation;
+            ByteBuffer later = current ? pending : closing;
+            ByteBuffer merged = ByteBuffer.allocate(Math.max(4096, failed.position() + later.position()));
+            merged.put(failed.duplicate().flip()).put(later.duplicate().flip());
+            if (current) pending = merged;
+            else closing = merged;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Writes the buffer's records, leaving the buffer as it is, and forces them. */
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        ByteBuffer data = buffer.duplicate().flip();
+        while (data.hasRemaining()) channel.write(data);
+        channel.force(false);
+        forcedLength = channel.position();
+    }
+
+    private FileChannel openLog(long logGeneration) throws IOException {
+        FileChannel opened = FileChannel.open(file(logGeneration, LOG_SUFFIX),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (logGeneration == forcedGeneration && opened.size() > forcedLength) opened.truncate(forcedLength);
+        if (logGeneration != forcedGeneration) {
+            forcedGeneration = logGeneration;
+            forcedLength = opened.size();
+        }
+        opened.position(opened.size());
+        return opened;
+    }
+
+    /** Written to a temporary file and moved into place, so a snapshot on disk is always complete. */
+    private void writeSnapshot(Snapshot taken) throws IOException {
+        byte[] state = taken.state().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(13 + state.length + 4);
+        buffer.putInt(SNAPSHOT_MAGIC).put(taken.kind()).putInt(taken.revision()).putInt(state.length).put(state);
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) crc.getValue());
+        buffer.flip();
+        Path target = file(taken.generation(), SNAPSHOT_SUFFIX);
+        Path temporary = target.resolveSibling(target.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) out.write(buffer);
+            out.force(true);
+        }
+        Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        forceDirectory();
+    }
+
+    /** Forces the directory, so a file moved or created in it is still there after a crash. */
+    private void forceDirectory() throws IOException {
+        FileChannel opened;
+        try {
+            opened = FileChannel.open(directory, StandardOpenOption.READ);
+        } catch (IOException e) {
+            // Some platforms, Windows among them, cannot open a directory; the move is as durable as they make it
+            return;
+        }
+        try (opened) {
+            opened.force(true);
+        }
+    }
+
+    private void deleteBefore(long oldestKept) throws IOException {
+        for (Map.Entry<Long, Path> entry : files(directory, fileName, LOG_SUFFIX).headMap(oldestKept).entrySet()) {
+            Files.deleteIfExists(entry.getValue());
+        }
+        for (Map.Entry<Long, Path> entry : files(directory, fileName, SNAPSHOT_SUFFIX).headMap(oldestKept).entrySet()) {
+            Files.deleteIfExists(entry.getValue());
+        }
+    }
+
+    void close() {
+        try {
+            if (channel != null) channel.close();
+        } catch (IOException e) {
+            LOG.warn("Error closing the log of {}: {}", name, e.getMessage());
+        }
+    }
+
+    private Path file(long fileGeneration, String suffix) {
+        return directory.resolve(fileName + "." + fileGeneration + suffix);
+    }
+
+    /** The document's files with this suffix, by generation. */
+    private static TreeMap<Long, Path> files(Path directory, String fileName, String suffix) throws IOException {
+        TreeMap<Long, Path> files = new TreeMap<>();
+        String prefix = fileName + ".";
+        try (Stream<Path> entries = Files.list(directory)) {
+            for (Path entry : (Iterable<Path>) entries::iterator) {
+                String file = entry.getFileName().toString();
+                if (!file.startsWith(prefix) || !file.endsWith(suffix)) continue;
+                try {
+                    files.put(Long.parseLong(file.substring(prefix.length(), file.length() - suffix.length())), entry);
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+        return files;
+    }
+
+    /** Restores {@code document} from its files and returns its log, ready for appends. */
+    static DocumentLog recover(Persistence persistence, Path directory, Document document) throws IOException {
+        String fileName = Persistence.fileName(document.getName());
+        long start = System.nanoTime();
+        long base = 0;
+        for (Map.Entry<Long, Path> entry : files(directory, fileName, SNAPSHOT_SUFFIX).descendingMap().entrySet()) {
+            if (loadSnapshot(entry.getValue(), document)) {
+                base = entry.getKey();
+                break;
+            }
+            LOG.warn("Ignoring damaged snapshot {}", entry.getValue());
+        }
+        DocumentLog log = new DocumentLog(persistence, directory, document, base);
+        long records = 0;
+        boolean damaged = false;
+        for (Map.Entry<Long, Path> entry : files(directory, fileName, LOG_SUFFIX).tailMap(base).entrySet()) {
+            if (damaged) {
+                // Edits after a damaged record cannot be replayed on top of it
+                LOG.error("Setting aside {} after a damaged record", entry.getValue());
+                Files.move(entry.getValue(), entry.getValue().resolveSibling(entry.getValue().getFileName() + DAMAGED_SUFFIX));
+                continue;
+            }
+            long[] replayed = replay(entry.getValue(), document);
+            records += replayed[0];
+            log.generation = entry.getKey();
+            if (replayed[1] < Files.size(entry.getValue())) {
+                LOG.warn("Truncating {} after {} intact bytes", entry.getValue(), replayed[1]);
+                try (FileChannel file = FileChannel.open(entry.getValue(), StandardOpenOption.WRITE)) {
+                    file.truncate(replayed[1]);
+                }
+                damaged = true;
+            }
+        }
+        log.deleteBefore(base);
+        if (records > 0 || base > 0) {
+            LOG.info("Recovered {}, replaying {} logged edit(s) in {} ms", log.name, records, (System.nanoTime() - start) / 1_000_000);
+        }
+        return log;
+    }
+
+    private static boolean loadSnapshot(Path path, Document document) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+        if (buffer.remaining() < 17 || buffer.getInt() != SNAPSHOT_MAGIC) return false;
+        byte kind = buffer.get();
+        int revision = buffer.getInt();
+        int length = buffer.getInt();
+        if (length != buffer.remaining() - 4) return false;
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.array(), 0, buffer.limit() - 4);
+        if ((int) crc.getValue() != buffer.getInt(buffer.limit() - 4)) return false;
+        if ((kind == CRDT_STATE) != document.isCrdt()) {
+            throw new IOException("Snapshot " + path + " was written for the other convergence mode");
+        }
+        String state = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+        if (kind == CRDT_STATE) document.restoreCrdt(state);
+        else document.restore(state, revision);
+        return true;
+    }
+
+    /**
+     * Applies the intact records of one log file, read through a memory map.
+     * @return the number of records applied and the length of the intact prefix
+     */
+    private static long[] replay(Path path, Document document) throws IOException {
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = file.size();
+            if (size > Integer.MAX_VALUE) throw new IOException(path + " is too large to replay");
+            MappedByteBuffer buffer = file.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            CRC32C crc = new CRC32C();
+            long records = 0;
+            int intact = 0;
+            while (buffer.remaining() >= HEADER_BYTES) {
+                int payload = buffer.getInt();
+                int checksum = buffer.getInt();
+                if (payload < PAYLOAD_PREFIX || payload > buffer.remaining()) break;
+                crc.reset();
+                crc.update(buffer.slice(buffer.position(), payload));
+                if ((int) crc.getValue() != checksum || !apply(buffer, payload, document)) break;
+                intact = buffer.position();
+                records++;
+            }
+            return new long[] { records, intact };
+        }
+    }
+
+    /** Applies one record and leaves the buffer after it; false if it does not fit the document. */
+    private static boolean apply(ByteBuffer buffer, int payload, Document document) {
+        int end = buffer.position() + payload;
+        byte kind = buffer.get();
+        int revision = buffer.getInt();
+        try {
+            switch (kind) {
+                case EDIT -> {
+                    int position = buffer.getInt();
+                    int deleteLength = buffer.getInt();
+                    TextEdit edit = TextEdit.replace(position, deleteLength, text(buffer, end));
+                    if (document.isCrdt() || !edit.fits(document.length()) || revision != document.getRevision() + 1) return false;
+                    document.apply(edit);
+                }
+                case REPLACE_ALL -> document.restore(text(buffer, end), revision);
+                case CRDT -> document.applyCrdt(RgaOp.decode(text(buffer, end)));
+                default -> {
+                    return false;
+                }
+            }
+        } catch (RuntimeException e) {
+            // A record that passed its checksum but does not decode, e.g. CRDT ops in an OT document
+            return false;
+        }
+        buffer.position(end);
+        return true;
+    }
+
+    private static String text(ByteBuffer buffer, int end) {
+        byte[] bytes = new byte[end - buffer.position()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
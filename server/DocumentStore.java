@@ -0,0 +1,227 @@
+package server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import shared.Log;
+import shared.Message;
+import shared.SyncChunks;
+import shared.TextEdit;
+import static shared.SharedConstants.*;
+
+/**
+ * The documents of one {@link Room}, keyed by the fileType field of the protocol.
+ * With {@link Persistence}, documents are restored from disk when the store is
+ * created (or, for new names, on first use) and log their changes from then on.
+ * New documents are refused once the room has {@code maxDocuments}; those on
+ * disk are always restored.
+ */
+public class DocumentStore {
+    private static final Log LOG = Log.get("DocumentStore");
+    public static final int MAX_NAME_LENGTH = 64;
+    public static final int DEFAULT_MAX_DOCUMENTS = 64;
+    private final Map<String, Document> documents = new ConcurrentHashMap<>();
+    private final Convergence convergence;
+    private final Persistence persistence;
+    private final String room;
+    private final int maxDocuments;
+
+    public DocumentStore() {
+        this(Convergence.OT);
+    }
+
+    public DocumentStore(Convergence convergence) {
+        this(convergence, null, null);
+    }
+
+    /** @param persistence where the room's documents are kept, or null to keep them in memory only */
+    public DocumentStore(Convergence convergence, Persistence persistence, String room) {
+        this(convergence, persistence, room, DEFAULT_MAX_DOCUMENTS);
+    }
+
+    /** @param maxDocuments how many documents the room may have before new names are refused */
+    public DocumentStore(Convergence convergence, Persistence persistence, String room, int maxDocuments) {
+        this.convergence = convergence;
+        this.persistence = persistence;
+        this.room = room;
+        this.maxDocuments = maxDocuments;
+        restore(FILE_TYPE_TXT);
+        restore(FILE_TYPE_JAVA);
+        if (persistence != null) {
+            try {
+                for (String name : persistence.documentNames(room)) {
+                    if (isValidName(name)) restore(name);
+                }
+            } catch (IOException e) {
+                LOG.error("Could not list the documents of room {}: {}", room, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Returns the document with this name, creating an empty one on first use, or
+     * null if it is new and the room is full. Concurrent first uses may overshoot
+     * the limit by a few documents.
+     */
+    public Document get(String name) {
+        Document document = documents.get(name);
+        if (document != null) return document;
+        if (documents.size() >= maxDocuments) return null;
+        return documents.computeIfAbsent(name, this::create);
+    }
+
+    /** The document with this name if the room has it, without creating it. */
+    Document find(String name) {
+        return documents.get(name);
+    }
+
+    /** The names of the documents the room has now. */
+    Set<String> names() {
+        return Set.copyOf(documents.keySet());
+    }
+
+    private void restore(String name) {
+        documents.computeIfAbsent(name, this::create);
+    }
+
+    /**
+     * Stops logging every document and commits and closes the logs, for a room that
+     * is evicted; returns once they are on disk. The store is not used afterwards,
+     * unless this returns false: a log could not be written, and every document
+     * logs on as before.
+     */
+    boolean release() {
+        if (persistence == null) return true;
+        Map<Document, DocumentLog> logs = new HashMap<>();
+        for (Document document : documents.values()) {
+            document.lock();
+            try {
+                DocumentLog log = document.detach();
+                if (log != null) logs.put(document, log);
+            } finally {
+                document.unlock();
+            }
+        }
+        if (persistence.release(logs.values())) return true;
+        for (Map.Entry<Document, DocumentLog> entry : logs.entrySet()) {
+            entry.getKey().lock();
+            try {
+                entry.getKey().attach(entry.getValue());
+            } finally {
+                entry.getKey().unlock();
+            }
+        }
+        return false;
+    }
+
+    /** Drops the CRDT ops of these sources that still wait, see {@link Document#discardPendingCrdt}. */
+    void discardPendingCrdt(List<Long> sources) {
+        for (Document document : documents.values()) {
+            if (!document.isCrdt()) continue;
+            document.lock();
+            try {
+                int discarded = 0;
+                for (long source : sources) discarded += document.discardPendingCrdt(source);
+                if (discarded > 0) LOG.warn("Discarded {} CRDT op(s) of {}/{} that never became applicable", discarded, room, document.getName());
+            } finally {
+                document.unlock();
+            }
+        }
+    }
+
+    private Document create(String name) {
+        Document document = new Document(name, convergence);
+        if (persistence == null) return document;
+        try {
+            document.attach(persistence.open(room, document));
+        } catch (IOException e) {
+            LOG.error("Could not restore {}/{}, keeping it in memory only: {}", room, name, e.getMessage());
+        }
+        return document;
+    }
+
+    /** SYNC with text and revision, or CRDT_SYNC with the replica state. Caller holds the document lock. */
+    public static Message syncMessage(Document document) {
+        if (document.isCrdt()) {
+            return Message.of(MSG_CRDT_SYNC, document.getName(), document.getCrdtState(), SERVER_SENDER);
+        }
+        return Message.of(MSG_SYNC, document.getName(), document.getText(), SERVER_SENDER,
+                String.valueOf(document.getRevision()));
+    }
+
+    public static boolean isValidName(String name) {
+        return !name.isEmpty() && name.length() <= MAX_NAME_LENGTH;
+    }
+
+    /** A {@link #syncMessage} per document, handed to {@code out} under that document's lock. */
+    public void snapshot(Consumer<Message> out) {
+        catchUp(Map.of(), out);
+    }
+
+    /**
+     * What a client needs to catch up from the revisions it last saw, by document:
+     * the edits it missed as BATCHes from the server, nothing if it missed none,
+     * and a {@link #syncMessage} for documents it has no revision for, whose missed
+     * edits are no longer in the history, or whose edits would outweigh the text.
+     * Large snapshots and batches are split so no message exceeds {@link shared.SharedConstants#CHUNK_CHARS}
+     * characters of text (see {@link SyncChunks}).
+     * <p>
+     * Each document's messages go to {@code out} while its lock is held, as broadcasts
+     * do: an edit made after the snapshot is queued after it, never before.
+     */
+    public void catchUp(Map<String, Integer> revisions, Consumer<Message> out) {
+        for (Document document : documents.values()) {
+            List<Message> messages = new ArrayList<>();
+            document.lock();
+            try {
+                Integer revision = revisions.get(document.getName());
+                List<TextEdit> missed = revision == null || document.isCrdt() ? null : document.editsSince(revision);
+                if (missed == null) {
+                    messages.addAll(SyncChunks.split(syncMessage(document)));
+                } else if (!missed.isEmpty()) {
+                    List<Message> batches = batchMessages(document.getName(), missed, revision);
+                    if (batches != null && batchesLength(batches) < document.length()) {
+                        messages.addAll(batches);
+                    } else {
+                        messages.addAll(SyncChunks.split(syncMessage(document)));
+                    }
+                }
+                for (Message message : messages) out.accept(message);
+            } finally {
+                document.unlock();
+            }
+        }
+    }
+
+    /** The edits after {@code revision} as consecutive BATCHes of at most CHUNK_CHARS characters each. */
+    private static List<Message> batchMessages(String name, List<TextEdit> edits, int revision) {
+        List<Message> batches = new ArrayList<>();
+        int from = 0;
+        int chars = 0;
+        for (int i = 0; i < edits.size(); i++) {
+            int length = edits.get(i).getText().length();
+            // An edit this large would need a message of its own; the text goes in pieces instead.
+            if (length > CHUNK_CHARS) return null;
+            if (chars + length > CHUNK_CHARS) {
+                batches.add(Message.of(MSG_BATCH, name, TextEdit.encode(edits.subList(from, i)), SERVER_SENDER, String.valueOf(revision + i)));
+                from = i;
+                chars = 0;
+            }
+            chars += length;
+        }
+        batches.add(Message.of(MSG_BATCH, name, TextEdit.encode(edits.subList(from, edits.size())), SERVER_SENDER,
+                String.valueOf(revision + edits.size())));
+        return batches;
+    }
+
+    private static long batchesLength(List<Message> batches) {
+        long length = 0;
+        for (Message batch : batches) length += batch.parts()[2].length();
+        return length;
+    }
+}
@@ -0,0 +1,52 @@
+package server;
+
+import java.util.Arrays;
+import shared.Message;
+
+/**
+ * What nodes exchange over the {@link Backplane}: a client protocol message plus
+ * the room and client it concerns.
+ *
+ * @param node   the node the client is connected to (for EVENT, the sender's node)
+ * @param client the client's id on that node, 0 for none
+ */
+public record Envelope(Kind kind, String room, String node, long client, String username, Message message) {
+    public enum Kind {
+        /** A client's edit, sent to the room's owner node to be sequenced there. */
+        FORWARD,
+        /** An edit the owner sequenced (or a CRDT op), published for every node to apply and deliver. */
+        EVENT,
+        /** A message for one client, sent back to its node, e.g. an ACK. */
+        REPLY,
+        /** The usernames a node has in a room, then the ids of its clients that left it since the last MEMBERS. */
+        MEMBERS,
+        /** A replica out of step asking the room's owner node for its copy of the document named in the message. */
+        FETCH,
+        /** The owner's copy of a document as a SYNC, the answer to a FETCH. */
+        SNAPSHOT
+    }
+
+    private static final int HEADER_FIELDS = 5;
+
+    /** Flattens the envelope into one message: the header fields, then the wrapped message's parts. */
+    public Message toMessage() {
+        String[] inner = message.parts();
+        String[] fields = new String[HEADER_FIELDS - 1 + inner.length];
+        fields[0] = room;
+        fields[1] = node;
+        fields[2] = Long.toString(client);
+        fields[3] = username;
+        System.arraycopy(inner, 0, fields, HEADER_FIELDS - 1, inner.length);
+        return Message.of(kind.name(), fields);
+    }
+
+    /** @throws IllegalArgumentException if the message is not a flattened envelope */
+    public static Envelope fromMessage(Message message) {
+        String[] parts = message.parts();
+        if (parts.length <= HEADER_FIELDS) throw new IllegalArgumentException("Envelope without a message");
+        Kind kind = Kind.valueOf(parts[0]);
+        long client = Long.parseLong(parts[3]);
+        Message inner = Message.of(parts[HEADER_FIELDS], Arrays.copyOfRange(parts, HEADER_FIELDS + 1, parts.length));
+        return new Envelope(kind, parts[1], parts[2], client, parts[4], inner);
+    }
+}
@@ -0,0 +1,83 @@
+package server;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import shared.Log;
+
+/**
+ * A backplane between servers in one JVM, for tests and benchmarks. The nodes
+ * share a {@link Hub}; each node takes its envelopes off one queue on its own
+ * thread, so they arrive in the order they were sent and never on the sender's
+ * thread.
+ */
+public class InProcessBackplane implements Backplane {
+    private static final Log LOG = Log.get("Backplane");
+
+    /** The nodes of one in-process cluster. */
+    public static final class Hub {
+        private final List<String> nodes;
+        private final Map<String, InProcessBackplane> members = new ConcurrentHashMap<>();
+
+        public Hub(String... nodes) {
+            this.nodes = List.of(nodes);
+        }
+
+        /** The backplane for one of the hub's nodes. */
+        public InProcessBackplane node(String node) {
+            if (!nodes.contains(node)) throw new IllegalArgumentException("Unknown node " + node);
+            return members.computeIfAbsent(node, id -> new InProcessBackplane(this, id));
+        }
+    }
+
+    private final Hub hub;
+    private final String localNode;
+    private final BlockingQueue<Envelope> inbox = new LinkedBlockingQueue<>();
+    private Thread deliverer;
+
+    private InProcessBackplane(Hub hub, String localNode) {
+        this.hub = hub;
+        this.localNode = localNode;
+    }
+
+    @Override
+    public void start(Receiver receiver) {
+        deliverer = Thread.ofPlatform().daemon().name("backplane-" + localNode).start(() -> {
+            try {
+                while (true) receiver.receive(inbox.take());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+    }
+
+    @Override
+    public void stop() {
+        if (deliverer != null) deliverer.interrupt();
+    }
+
+    @Override
+    public String getLocalNode() { return localNode; }
+
+    @Override
+    public List<String> getNodes() { return hub.nodes; }
+
+    @Override
+    public void publish(Envelope envelope) {
+        for (String node : hub.nodes) {
+            if (!node.equals(localNode)) send(node, envelope);
+        }
+    }
+
+    @Override
+    public void send(String node, Envelope envelope) {
+        InProcessBackplane target = hub.members.get(node);
+        if (target == null) {
+            LOG.warn("Node {} is not running, dropping {}", node, envelope.kind());
+            return;
+        }
+        target.inbox.add(envelope);
+    }
+}
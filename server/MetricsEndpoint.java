@@ -0,0 +1,52 @@
+package server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import shared.Log;
+
+/**
+ * Serves {@link ServerMetrics#toText()} at http://localhost:port/metrics for a
+ * Prometheus-style scraper. Bound to the loopback address only: the numbers
+ * include usernames and room names.
+ */
+public class MetricsEndpoint {
+    private static final Log LOG = Log.get("Metrics");
+    private final ServerMetrics metrics;
+    private HttpServer server;
+
+    public MetricsEndpoint(ServerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public void start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", this::handle);
+        // The default executor runs requests on the server's own thread: scrapes are rare and quick.
+        server.start();
+        LOG.info("Metrics at http://localhost:{}/metrics", server.getAddress().getPort());
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = metrics.toText().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    public void stop() {
+        if (server != null) server.stop(0);
+    }
+}
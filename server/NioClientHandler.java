@@ -0,0 +1,221 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import shared.BinaryCodec;
+import shared.FrameCompression;
+import shared.Log;
+import shared.Message;
+import shared.WireFormat;
+import static shared.SharedConstants.*;
+
+/**
+ * A client on a non-blocking SocketChannel owned by a NioEventLoop.
+ * Incoming bytes are framed into '\n'-terminated lines, or into binary frames once
+ * the client negotiated them, so the wire format is identical to the
+ * thread-per-connection mode. While a JOIN waits for its room to be loaded, the
+ * channel is not read and the bytes after the JOIN are kept until it is handled.
+ */
+public class NioClientHandler extends ConnectedClient {
+    private static final Log LOG = Log.get("NioClientHandler");
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final NioEventLoop loop;
+    private final AtomicBoolean writeScheduled = new AtomicBoolean();
+    private final List<Message> batch = new ArrayList<>();
+    private ByteBuffer[] frames = new ByteBuffer[16];
+    private int frameIndex;
+    private int frameCount;
+    private WireFormat outputFormat = WireFormat.TEXT;
+    private FrameCompression.Compressor compressor;
+    private final FrameCompression.Decompressor decompressor = new FrameCompression.Decompressor();
+    private boolean binaryInput;
+    // Bytes of an incomplete line or frame, kept until the rest arrives
+    private byte[] partialLine = new byte[256];
+    private int partialLength;
+    // A JOIN is waiting for its room; partialLine then holds everything read after it
+    private boolean paused;
+
+    NioClientHandler(SocketChannel channel, SelectionKey key, NioEventLoop loop, ServerBroadcaster broadcaster) {
+        super(broadcaster);
+        this.channel = channel;
+        this.key = key;
+        this.loop = loop;
+    }
+
+    /** Called on the loop thread with freshly read bytes. */
+    void onRead(ByteBuffer buffer) {
+        if (!binaryInput) {
+            readLines(buffer);
+            // The JOIN line may have switched the rest of the stream to frames.
+            if (!binaryInput || paused || !isConnected()) return;
+        }
+        readFrames(buffer);
+    }
+
+    private void readLines(ByteBuffer buffer) {
+        byte[] bytes = buffer.array();
+        int start = buffer.position();
+        int end = buffer.limit();
+        for (int i = start; i < end; i++) {
+            if (bytes[i] != '\n') continue;
+            if (partialLength == 0) {
+                dispatchLine(bytes, start, i - start);
+            } else {
+                appendPartial(bytes, start, i - start);
+                dispatchLine(partialLine, 0, partialLength);
+                partialLength = 0;
+            }
+            start = i + 1;
+            if (!isConnected()) return;
+            if (paused) {
+                appendPartial(bytes, start, end - start);
+                buffer.position(end);
+                return;
+            }
+            if (binaryInput) {
+                buffer.position(start);
+                return;
+            }
+        }
+        if (start < end) appendPartial(bytes, start, end - start);
+        buffer.position(end);
+        if (partialLength > MAX_MESSAGE_LENGTH) {
+            metrics.parseFailure();
+            LOG.warn("Line longer than {} bytes from {}", MAX_MESSAGE_LENGTH, getUsername());
+            disconnect();
+        }
+    }
+
+    private void dispatchLine(byte[] bytes, int offset, int length) {
+        if (length > 0 && bytes[offset + length - 1] == '\r') length--;
+        metrics.messageReceived();
+        handleMessage(Message.fromText(new String(bytes, offset, length, StandardCharsets.UTF_8)));
+    }
+
+    private void readFrames(ByteBuffer buffer) {
+        ByteBuffer in = buffer;
+        if (partialLength > 0) {
+            appendPartial(buffer.array(), buffer.position(), buffer.remaining());
+            in = ByteBuffer.wrap(partialLine, 0, partialLength);
+        }
+        try {
+            Message message;
+            while (isConnected() && !paused && (message = BinaryCodec.decode(in, decompressor, MAX_MESSAGE_LENGTH)) != null) {
+                metrics.messageReceived();
+                handleMessage(message);
+            }
+        } catch (IllegalArgumentException e) {
+            metrics.parseFailure();
+            LOG.warn("Malformed frame: {}", e.getMessage());
+            disconnect();
+            return;
+        }
+        int rest = in.remaining();
+        if (in.array() == partialLine) {
+            System.arraycopy(partialLine, in.position(), partialLine, 0, rest);
+            partialLength = rest;
+        } else if (rest > 0) {
+            appendPartial(in.array(), in.position(), rest);
+        }
+    }
+
+    @Override
+    protected void awaitLoad(CompletableFuture<Room> loading, Runnable then) {
+        paused = true;
+        if (key.isValid()) key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        loading.whenComplete((room, error) -> loop.execute(() -> resume(then)));
+    }
+
+    /** Handles the JOIN that waited, then what was read after it, unless that JOIN waits again. */
+    private void resume(Runnable then) {
+        paused = false;
+        if (!isConnected()) return;
+        then.run();
+        if (paused || !isConnected()) return;
+        if (key.isValid()) key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        if (partialLength == 0) return;
+        ByteBuffer rest = ByteBuffer.wrap(Arrays.copyOf(partialLine, partialLength));
+        partialLength = 0;
+        onRead(rest);
+    }
+
+    @Override
+    protected void switchInputToBinary() {
+        binaryInput = true;
+    }
+
+    private void appendPartial(byte[] bytes, int offset, int length) {
+        if (partialLength + length > partialLine.length) {
+            partialLine = Arrays.copyOf(partialLine, Math.max(partialLine.length * 2, partialLength + length));
+        }
+        System.arraycopy(bytes, offset, partialLine, partialLength, length);
+        partialLength += length;
+    }
+
+    @Override
+    protected void onOutboundReady() {
+        if (writeScheduled.compareAndSet(false, true)) {
+            loop.execute(this::enableWrites);
+        }
+    }
+
+    private void enableWrites() {
+        if (key.isValid()) key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+    }
+
+    /** Called on the loop thread when the socket can accept more bytes. */
+    void onWritable() throws IOException {
+        while (true) {
+            if (frameIndex == frameCount && !fillWriteBuffer()) break;
+            channel.write(frames, frameIndex, frameCount - frameIndex);
+            while (frameIndex < frameCount && !frames[frameIndex].hasRemaining()) frames[frameIndex++] = null;
+            if (frameIndex < frameCount) return;
+        }
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        writeScheduled.set(false);
+        if (fillWriteBuffer() && writeScheduled.compareAndSet(false, true)) enableWrites();
+    }
+
+    /** Encodes everything queued so far; the frames go out in one gathering write. */
+    private boolean fillWriteBuffer() {
+        if (frameIndex < frameCount) return true;
+        drainOutbound(batch);
+        if (batch.isEmpty()) return false;
+        if (frames.length < batch.size()) frames = new ByteBuffer[Math.max(batch.size(), frames.length * 2)];
+        long bytes = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            Message message = batch.get(i);
+            // Compressed frames are this connection's own; the rest stay shared.
+            frames[i] = compressor == null ? message.encoded(outputFormat) : compressor.compress(message.encoded(outputFormat));
+            WireFormat announced = WireFormat.announcedBy(message);
+            if (announced != null) outputFormat = announced;
+            if (WireFormat.announcesCompression(message)) compressor = new FrameCompression.Compressor();
+            bytes += frames[i].remaining();
+        }
+        // Counted when encoded: the frames are written in full unless the client goes away.
+        metrics.messagesSent(batch.size(), bytes);
+        frameIndex = 0;
+        frameCount = batch.size();
+        batch.clear();
+        return true;
+    }
+
+    @Override
+    protected void closeTransport() {
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOG.warn("Error closing channel: {}", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import shared.Log;
+
+/**
+ * One selector thread serving many non-blocking client channels.
+ * Other threads never touch the selector directly; they queue tasks and wake it up.
+ * An exception while serving one channel closes only that channel, never the loop.
+ */
+class NioEventLoop implements Runnable {
+    private static final Log LOG = Log.get("NioEventLoop");
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final Selector selector;
+    private final ServerBroadcaster broadcaster;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final Thread thread;
+    private volatile boolean running;
+
+    NioEventLoop(int index, ServerBroadcaster broadcaster) throws IOException {
+        this.selector = Selector.open();
+        this.broadcaster = broadcaster;
+        this.thread = new Thread(this, "nio-loop-" + index);
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        running = true;
+        thread.start();
+    }
+
+    void register(SocketChannel channel) {
+        execute(() -> {
+            try {
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                key.attach(new NioClientHandler(channel, key, this, broadcaster));
+            } catch (IOException e) {
+                LOG.warn("Failed to register channel: {}", e.getMessage());
+                closeQuietly(channel);
+            }
+        });
+    }
+
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread) selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                if (tasks.isEmpty()) selector.select(); else selector.selectNow();
+                runTasks();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    processKey(key);
+                }
+            } catch (IOException e) {
+                if (running) LOG.error("Selector error: {}", e.getMessage());
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof NioClientHandler handler) handler.disconnect();
+        }
+        closeQuietly(selector);
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                LOG.error("Task failed: {}", e.getMessage(), e);
+            }
+        }
+    }
+
+    private void processKey(SelectionKey key) {
+        NioClientHandler handler = (NioClientHandler) key.attachment();
+        if (!key.isValid()) {
+            handler.disconnect();
+            return;
+        }
+        try {
+            if (key.isReadable()) {
+                readBuffer.clear();
+                int read = ((SocketChannel) key.channel()).read(readBuffer);
+                if (read < 0) {
+                    handler.disconnect();
+                    return;
+                }
+                readBuffer.flip();
+                handler.onRead(readBuffer);
+            }
+            if (key.isValid() && key.isWritable()) handler.onWritable();
+        } catch (IOException e) {
+            LOG.warn("Error: {}", e.getMessage());
+            handler.disconnect();
+        } catch (RuntimeException e) {
+            // A bug handling one client's message must not stop the loop for every other client on it
+            LOG.error("Disconnecting {} after an unexpected error: {}", handler.getUsername(), e.getMessage(), e);
+            handler.disconnect();
+        }
+    }
+
+    void stop() {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
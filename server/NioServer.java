@@ -0,0 +1,56 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import shared.Log;
+
+/**
+ * Selector-based alternative to the thread-per-connection accept loop.
+ * Accepted channels are spread round-robin over a fixed pool of event loops.
+ */
+public class NioServer {
+    private static final Log LOG = Log.get("NioServer");
+    private final ServerBroadcaster broadcaster;
+    private final NioEventLoop[] loops;
+    private ServerSocketChannel serverChannel;
+    private volatile boolean running;
+
+    public NioServer(ServerBroadcaster broadcaster, int eventLoops) {
+        this.broadcaster = broadcaster;
+        this.loops = new NioEventLoop[eventLoops];
+    }
+
+    public void start(int port) throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new NioEventLoop(i, broadcaster);
+            loops[i].start();
+        }
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        running = true;
+        int next = 0;
+        while (running) {
+            SocketChannel channel = serverChannel.accept();
+            LOG.info("New connection from: {}", channel.getRemoteAddress());
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            loops[next].register(channel);
+            next = (next + 1) % loops.length;
+        }
+    }
+
+    public void stop() {
+        running = false;
+        try {
+            if (serverChannel != null) serverChannel.close();
+        } catch (IOException e) {
+            LOG.warn("Error closing server channel: {}", e.getMessage());
+        }
+        for (NioEventLoop loop : loops) {
+            if (loop != null) loop.stop();
+        }
+    }
+}
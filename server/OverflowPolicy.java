@@ -0,0 +1,13 @@
+package server;
+
+/**
+ * What happens to a client whose outbound queue is full.
+ */
+public enum OverflowPolicy {
+    /** Drop the new message; the client may drift until its next SYNC. */
+    DROP,
+    /** Close the connection. */
+    DISCONNECT,
+    /** Discard the backlog and queue a fresh SYNC of every document instead. */
+    RESYNC
+}
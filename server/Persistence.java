@@ -0,0 +1,186 @@
+package server;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import shared.Log;
+
+/**
+ * Keeps every room's documents on disk: one directory per room, and per document
+ * a write-ahead log of accepted edits plus the latest snapshot (see {@link DocumentLog}).
+ * <p>
+ * Appends only copy the record into memory. A single committer thread writes
+ * what accumulated every {@code syncMillis} and forces it to disk, so one fsync
+ * covers every edit of that window (group commit) and the edit path never waits
+ * for the disk. A crash loses at most the last window. A log that fails to
+ * commit keeps its records and is retried the next round.
+ */
+public class Persistence {
+    private static final Log LOG = Log.get("Persistence");
+    private static final Log.Sampler FAILURES = LOG.sampled(Log.Level.ERROR);
+    public static final int DEFAULT_SYNC_MILLIS = 10;
+    public static final long DEFAULT_SNAPSHOT_BYTES = 16L << 20;
+
+    private final Path directory;
+    private final long syncNanos;
+    private final long snapshotBytes;
+    private final Set<DocumentLog> logs = ConcurrentHashMap.newKeySet();
+    private final Set<DocumentLog> dirty = ConcurrentHashMap.newKeySet();
+    // Held for a commit round, so a log is never committed by two threads at once
+    private final ReentrantLock commitLock = new ReentrantLock();
+    private Thread committer;
+    private volatile boolean running;
+
+    /**
+     * @param syncMillis    how long appends collect before one write and fsync
+     * @param snapshotBytes how much log a document accumulates before it is snapshotted and the log truncated
+     */
+    public Persistence(Path directory, int syncMillis, long snapshotBytes) {
+        this.directory = directory;
+        this.syncNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, syncMillis));
+        this.snapshotBytes = snapshotBytes;
+    }
+
+    /** Creates the data directory if needed and starts the committer. */
+    public void start() throws IOException {
+        Files.createDirectories(directory);
+        running = true;
+        committer = Thread.ofPlatform().daemon().name("wal-committer").start(this::commitLoop);
+    }
+
+    /** Stops the committer and commits and closes every log. */
+    public void close() {
+        running = false;
+        if (committer != null) {
+            LockSupport.unpark(committer);
+            try {
+                committer.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (DocumentLog log : logs) {
+            if (!commit(log)) LOG.error("Edits to {} that were not written are lost", log.getName());
+            log.close();
+        }
+    }
+
+    private void commitLoop() {
+        while (running) {
+            LockSupport.parkNanos(syncNanos);
+            commitLock.lock();
+            List<DocumentLog> failed = new ArrayList<>();
+            try {
+                for (DocumentLog log : dirty) {
+                    dirty.remove(log);
+                    if (!commit(log)) failed.add(log);
+                }
+                dirty.addAll(failed);
+            } finally {
+                commitLock.unlock();
+            }
+        }
+    }
+
+    /** False if the log could not be written; it keeps what it did not write, see {@link DocumentLog#commit}. */
+    private static boolean commit(DocumentLog log) {
+        try {
+            log.commit();
+            return true;
+        } catch (IOException e) {
+            FAILURES.log("Could not write the log of {}, retrying: {}", log.getName(), e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Commits and closes the logs of an evicted room's documents, which no longer
+     * append to them. Returns once they are on disk, so the room can be restored;
+     * false, with every log still open and retried by the committer, if one could
+     * not be written.
+     */
+    boolean release(Collection<DocumentLog> released) {
+        commitLock.lock();
+        try {
+            boolean committed = true;
+            for (DocumentLog log : released) {
+                if (!commit(log)) {
+                    dirty.add(log);
+                    committed = false;
+                }
+            }
+            if (!committed) return false;
+            for (DocumentLog log : released) {
+                logs.remove(log);
+                dirty.remove(log);
+                log.close();
+            }
+            return true;
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    /** Called after an append; the committer picks the log up on its next round. */
+    void markDirty(DocumentLog log) {
+        dirty.add(log);
+    }
+
+    long getSnapshotBytes() { return snapshotBytes; }
+
+    /**
+     * Restores the document from its snapshot and log, if it has any, and opens its
+     * log for appending.
+     */
+    DocumentLog open(String room, Document document) throws IOException {
+        Path roomDirectory = Files.createDirectories(directory.resolve(fileName(room)));
+        DocumentLog log = DocumentLog.recover(this, roomDirectory, document);
+        logs.add(log);
+        return log;
+    }
+
+    /** Rooms with documents on disk. */
+    public List<String> roomNames() throws IOException {
+        try (Stream<Path> entries = Files.list(directory)) {
+            return entries.filter(Files::isDirectory).map(path -> name(path.getFileName().toString())).toList();
+        }
+    }
+
+    /** Documents the room has on disk. */
+    List<String> documentNames(String room) throws IOException {
+        Path roomDirectory = directory.resolve(fileName(room));
+        if (!Files.isDirectory(roomDirectory)) return List.of();
+        List<String> names = new ArrayList<>();
+        try (Stream<Path> entries = Files.list(roomDirectory)) {
+            for (Path entry : (Iterable<Path>) entries::iterator) {
+                String file = entry.getFileName().toString();
+                int dot = file.indexOf('.');
+                if (dot <= 0) continue;
+                String name = name(file.substring(0, dot));
+                if (!names.contains(name)) names.add(name);
+            }
+        }
+        return names;
+    }
+
+    /** Room and document names can hold any character; on disk they are URL-encoded, dots included. */
+    static String fileName(String name) {
+        return URLEncoder.encode(name, StandardCharsets.UTF_8).replace(".", "%2E").replace("*", "%2A");
+    }
+
+    static String name(String fileName) {
+        return URLDecoder.decode(fileName, StandardCharsets.UTF_8);
+    }
+}
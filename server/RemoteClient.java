@@ -0,0 +1,28 @@
+package server;
+
+import shared.Message;
+
+/**
+ * Stands in on a room's owner node for a client connected to another node, so
+ * its forwarded edits go through the same code as a local client's. Whatever the
+ * owner sends it (ACKs, errors, resyncs) is sent back to the client's node, which
+ * queues it for the connection; there is no queue, thread or socket here. It is
+ * not a member of the room on this node and goes away when its node reports the
+ * client has left.
+ */
+class RemoteClient extends ClientSession {
+    private final String node;
+
+    RemoteClient(ServerBroadcaster broadcaster, Room room, String node, long clientId, String username) {
+        super(broadcaster, clientId, room, username);
+        this.node = node;
+    }
+
+    @Override
+    public void sendMessage(Message message) {
+        broadcaster.reply(node, getId(), message);
+    }
+
+    @Override
+    String getNode() { return node; }
+}
@@ -0,0 +1,397 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import shared.Log;
+import shared.Message;
+import shared.RgaOp;
+import shared.SyncChunks;
+import shared.TextEdit;
+import static shared.SharedConstants.*;
+
+/**
+ * A named editing session: its own documents and the clients that joined it.
+ * Broadcasts reach only the room's members, so an edit costs O(room size)
+ * however many clients the server hosts. Members are kept in join order in a
+ * concurrent sorted map, so joining or leaving never copies the member list.
+ * <p>
+ * In a cluster every node has the room, with its own local members and a replica
+ * of the documents. Broadcasts are also published to the other nodes, which apply
+ * them to their replicas and deliver them to their members. A replica that misses
+ * an edit of the owner node, or fails to apply one, is out of step: it drops the
+ * document's edits until the owner's copy arrives, and its members get that copy
+ * as a SYNC.
+ * <p>
+ * Presence goes out once per {@link #PRESENCE_TICK_MILLIS}: a member that joined
+ * gets the full user list, everyone else a PRESENCE delta of who joined and who
+ * left since the previous tick, with a leave and a join of the same name netted
+ * out. A mass reconnect after a restart therefore costs each member one list or
+ * one small delta per tick rather than a full list per join. The tick is also
+ * where a room nobody is in any more is evicted (see {@link ServerBroadcaster#evictIfEmpty}),
+ * since it runs without any document lock held. A room that never had anyone in
+ * it, e.g. one loaded for another node's edits, is evicted the same way a while
+ * after it was loaded (see {@link #evictIfIdle}).
+ */
+public class Room {
+    private static final Log LOG = Log.get("Room");
+    private static final Log.Sampler BROADCASTS = LOG.sampled(Log.Level.DEBUG);
+    private static final Log.Sampler BROADCASTS_TO_ALL = LOG.sampled(Log.Level.DEBUG);
+    public static final int MAX_NAME_LENGTH = 64;
+    public static final int PRESENCE_TICK_MILLIS = 50;
+    // How long a replica out of step waits for the owner's copy before asking again
+    private static final long FETCH_RETRY_MILLIS = 2_000;
+    // How long a room loaded with nobody in it waits for a member before it is evicted
+    private static final long IDLE_EVICTION_MILLIS = 10_000;
+    private static final ScheduledExecutorService PRESENCE =
+            Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().daemon().name("presence").factory());
+    private final String name;
+    private final ServerBroadcaster broadcaster;
+    private final ConcurrentSkipListMap<Long, ConnectedClient> members = new ConcurrentSkipListMap<>();
+    // Usernames of the members connected to other nodes, per node
+    private final Map<String, String[]> remoteMembers = new ConcurrentHashMap<>();
+    private final DocumentStore documents;
+    // Presence changes since the last tick, and the members that still need the full list
+    private final ReentrantLock presenceLock = new ReentrantLock();
+    private final List<String> joinedNames = new ArrayList<>();
+    private final List<String> leftNames = new ArrayList<>();
+    private final List<ConnectedClient> newcomers = new ArrayList<>();
+    private final List<Long> leftIds = new ArrayList<>();
+    private boolean localMembersChanged;
+    private final AtomicBoolean presenceScheduled = new AtomicBoolean();
+    // Replicas out of step with the owner node, by document name; changed under the document lock
+    private final Set<String> stale = ConcurrentHashMap.newKeySet();
+
+    Room(String name, Convergence convergence, ServerBroadcaster broadcaster) {
+        this.name = name;
+        this.broadcaster = broadcaster;
+        this.documents = new DocumentStore(convergence, broadcaster.getPersistence(), name, broadcaster.getMaxDocuments());
+    }
+
+    void add(ConnectedClient client) {
+        presenceLock.lock();
+        try {
+            members.put(client.getId(), client);
+            joined(client.getUsername());
+            newcomers.add(client);
+            localMembersChanged = true;
+        } finally {
+            presenceLock.unlock();
+        }
+        schedulePresence();
+    }
+
+    void remove(ConnectedClient client) {
+        presenceLock.lock();
+        try {
+            if (!members.remove(client.getId(), client)) return;
+            left(client.getUsername());
+            newcomers.remove(client);
+            leftIds.add(client.getId());
+            localMembersChanged = true;
+        } finally {
+            presenceLock.unlock();
+        }
+        schedulePresence();
+    }
+
+    // Callers hold presenceLock. A leave cancels a pending join of the same name, and the other way round.
+    private void joined(String username) {
+        if (!leftNames.remove(username)) joinedNames.add(username);
+    }
+
+    private void left(String username) {
+        if (!joinedNames.remove(username)) leftNames.add(username);
+    }
+
+    private void schedulePresence() {
+        if (presenceScheduled.compareAndSet(false, true)) {
+            PRESENCE.schedule(this::flushPresence, PRESENCE_TICK_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Sends what changed since the last tick: the full list to members that joined,
+     * a PRESENCE|joined|left delta to the others, and this node's members to the
+     * other nodes. Deltas and lists are taken under the lock that membership changes
+     * hold, so every member's list stays exact.
+     */
+    private void flushPresence() {
+        presenceScheduled.set(false);
+        boolean publish;
+        List<Long> left;
+        presenceLock.lock();
+        try {
+            if (newcomers.isEmpty() && joinedNames.isEmpty() && leftNames.isEmpty() && !localMembersChanged) return;
+            Set<ConnectedClient> listed = new HashSet<>(newcomers);
+            Message list = Message.of(MSG_USER_LIST, String.join(USER_LIST_DELIMITER, getUsernames()));
+            Message delta = joinedNames.isEmpty() && leftNames.isEmpty() ? null : Message.of(MSG_PRESENCE,
+                    String.join(USER_LIST_DELIMITER, joinedNames), String.join(USER_LIST_DELIMITER, leftNames));
+            publish = localMembersChanged;
+            left = new ArrayList<>(leftIds);
+            joinedNames.clear();
+            leftNames.clear();
+            newcomers.clear();
+            leftIds.clear();
+            localMembersChanged = false;
+            for (ConnectedClient client : listed) {
+                if (client.isConnected()) client.sendMessage(list);
+            }
+            if (delta != null) {
+                for (ConnectedClient client : members.values()) {
+                    if (!listed.contains(client) && client.isConnected()) client.sendMessage(delta);
+                }
+            }
+        } finally {
+            presenceLock.unlock();
+        }
+        if (publish) broadcaster.publishMembers(this, left);
+        // CRDT ops of members that left and still wait for characters nobody typed never will
+        if (!left.isEmpty()) documents.discardPendingCrdt(left);
+        if (members.isEmpty()) broadcaster.evictIfEmpty(this);
+    }
+
+    /** Evicts the room after {@link #IDLE_EVICTION_MILLIS} if nobody is in it by then, on the presence thread like a tick. */
+    void evictIfIdle() {
+        PRESENCE.schedule(() -> broadcaster.evictIfEmpty(this), IDLE_EVICTION_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /** Sends to every member except {@code sender}, on this node and the others. */
+    public void broadcast(Message message, ClientSession sender) {
+        int sentCount = deliver(message, 0, sender);
+        broadcaster.publish(this, message, sender);
+        BROADCASTS.log("Message broadcasted to {} client(s) in {}", sentCount, name);
+    }
+
+    /**
+     * Sends to every member, sender included, e.g. SYNCs the sender must adopt too.
+     * A large SYNC goes to members in pieces (see {@link SyncChunks}); other nodes get it whole.
+     */
+    public void broadcastToAll(Message message) {
+        int sentCount = 0;
+        for (Message part : SyncChunks.split(message)) sentCount = deliver(part, 0, null);
+        broadcaster.publish(this, message, null);
+        BROADCASTS_TO_ALL.log("Message broadcasted to all {} client(s) in {}", sentCount, name);
+    }
+
+    /** Sends to this node's members only, skipping {@code sender} and the member with id {@code except} (0 for none). */
+    int deliver(Message message, long except, ClientSession sender) {
+        long started = System.nanoTime();
+        int sentCount = 0;
+        for (ConnectedClient client : members.values()) {
+            if (client != sender && client.getId() != except && client.isConnected()) {
+                client.sendMessage(message);
+                sentCount++;
+            }
+        }
+        broadcaster.getMetrics().fanOut(System.nanoTime() - started);
+        return sentCount;
+    }
+
+    /**
+     * Applies an edit that another node sequenced (or a CRDT op it received) to
+     * this node's replica, then delivers it to local members except {@code except}.
+     * Both happen under the document lock, so joiners see each edit exactly once.
+     * CRDT ops left waiting count against {@code source}, see {@link shared.Rga#apply(RgaOp, long)}.
+     * <p>
+     * An edit that does not follow the replica's revision, or does not apply, puts
+     * the replica out of step; it and the later edits are dropped until the owner's
+     * copy arrives, which already has them (see {@link #adopt}).
+     */
+    void applyRemote(Message message, long except, long source) {
+        String[] parts = message.parts();
+        if (parts.length < 2 || !DocumentStore.isValidName(parts[1])) {
+            deliver(message, except, null);
+            return;
+        }
+        Document document = documents.get(parts[1]);
+        if (document == null) {
+            LOG.warn("Replica of {} not created: the room has too many documents", name + "/" + parts[1]);
+            return;
+        }
+        document.lock();
+        try {
+            if (stale.contains(document.getName())) return;
+            if (replicate(document, parts, source)) {
+                for (Message part : SyncChunks.split(message)) deliver(part, except, null);
+            }
+        } catch (RuntimeException e) {
+            // IllegalArgumentException, IndexOutOfBoundsException: the replica is out of step, perhaps half way through a BATCH
+            LOG.warn("Could not apply {} to replica of {}: {}", parts[0], name + "/" + parts[1], e.getMessage());
+            if (!document.isCrdt()) outOfStep(document);
+        } finally {
+            document.unlock();
+        }
+    }
+
+    /** Applies the message to the replica; false if it does not follow the replica's revision, which is then out of step. */
+    private boolean replicate(Document document, String[] parts, long source) {
+        List<TextEdit> edits;
+        switch (parts[0]) {
+            case MSG_EDIT -> edits = List.of(TextEdit.insert(Integer.parseInt(parts[2]), parts[3]));
+            case MSG_DELETE -> edits = List.of(TextEdit.delete(Integer.parseInt(parts[2]), Integer.parseInt(parts[3])));
+            case MSG_REPLACE -> edits = List.of(TextEdit.replace(Integer.parseInt(parts[2]), Integer.parseInt(parts[3]), parts[4]));
+            case MSG_BATCH -> edits = TextEdit.decode(parts[2]);
+            case MSG_SYNC -> edits = null;
+            case MSG_CRDT -> {
+                document.applyCrdt(RgaOp.decode(parts[2]), source);
+                return true;
+            }
+            default -> {
+                return true;
+            }
+        }
+        // Sequenced edits end with the revision the owner gave them; each edit, and a SYNC, takes one.
+        int revision = Integer.parseInt(parts[parts.length - 1]);
+        int base = revision - (edits == null ? 1 : edits.size());
+        if (document.getRevision() != base) {
+            LOG.warn("Replica of {} at revision {}, owner sent revision {}", name + "/" + document.getName(), document.getRevision(), revision);
+            outOfStep(document);
+            return false;
+        }
+        if (edits == null) {
+            document.replaceAll(parts[2]);
+            return true;
+        }
+        for (TextEdit edit : edits) {
+            if (!edit.fits(document.length())) throw new IndexOutOfBoundsException(edit + " outside length " + document.length());
+            document.apply(edit);
+        }
+        return true;
+    }
+
+    /** Marks the replica out of step and asks the owner node for its copy, unless it already did. Caller holds the document lock. */
+    private void outOfStep(Document document) {
+        if (stale.add(document.getName())) fetch(document.getName());
+    }
+
+    /** Asks for the owner's copy, and again every {@link #FETCH_RETRY_MILLIS} until it arrives, in case the request or answer is lost. */
+    private void fetch(String documentName) {
+        if (!broadcaster.fetch(this, documentName)) return;
+        PRESENCE.schedule(() -> {
+            if (stale.contains(documentName)) fetch(documentName);
+        }, FETCH_RETRY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /** Puts every OT replica out of step, after edits from the owner node may have been lost. */
+    void refetch() {
+        for (String documentName : documents.names()) {
+            Document document = documents.find(documentName);
+            if (document == null || document.isCrdt()) continue;
+            document.lock();
+            try {
+                outOfStep(document);
+            } finally {
+                document.unlock();
+            }
+        }
+    }
+
+    /**
+     * Answers a FETCH from {@code node} with this node's copy of the document. Sent
+     * under the document lock, so it reaches that node after the edits it includes
+     * and before any later ones, which come the same way.
+     */
+    void sendSnapshot(String node, String documentName) {
+        Document document = documents.get(documentName);
+        if (document == null) {
+            // The room is full here, so the document never gets an edit
+            broadcaster.sendSnapshot(node, this, Message.of(MSG_SYNC, documentName, "", SERVER_SENDER, "0"));
+            return;
+        }
+        if (document.isCrdt()) return;
+        document.lock();
+        try {
+            broadcaster.sendSnapshot(node, this, DocumentStore.syncMessage(document));
+        } finally {
+            document.unlock();
+        }
+    }
+
+    /** Replaces a replica out of step with the owner's copy and sends it to the members, whose copies are out of step too. */
+    void adopt(Message snapshot) {
+        String[] parts = snapshot.parts();
+        Document document = documents.find(parts[1]);
+        if (document == null) return;
+        document.lock();
+        try {
+            if (!stale.remove(document.getName())) return;
+            int revision = Integer.parseInt(parts[4]);
+            document.adopt(parts[2], revision);
+            LOG.info("Replica of {} caught up with the owner at revision {}", name + "/" + document.getName(), revision);
+            for (Message part : SyncChunks.split(snapshot)) deliver(part, 0, null);
+        } finally {
+            document.unlock();
+        }
+    }
+
+    /** Brings a rejoining member up to date from the revisions it last saw. */
+    public void catchUp(Map<String, Integer> revisions, Consumer<Message> out) {
+        documents.catchUp(revisions, out);
+    }
+
+    /** Members on this node in join order, then those on other nodes. */
+    public String[] getUsernames() {
+        List<String> usernames = new ArrayList<>(List.of(getLocalUsernames()));
+        for (String node : broadcaster.getNodes()) {
+            String[] remote = remoteMembers.get(node);
+            if (remote != null) usernames.addAll(List.of(remote));
+        }
+        return usernames.toArray(String[]::new);
+    }
+
+    /** Members on this node in join order; one that lost its connection is listed until it is removed, as the deltas expect. */
+    String[] getLocalUsernames() {
+        return members.values().stream()
+                .map(ClientSession::getUsername)
+                .toArray(String[]::new);
+    }
+
+    /** The members another node has in this room now; the difference goes out with the next tick. */
+    void setRemoteMembers(String node, String[] usernames) {
+        presenceLock.lock();
+        try {
+            Map<String, Integer> change = new HashMap<>();
+            for (String username : remoteMembers.getOrDefault(node, new String[0])) change.merge(username, -1, Integer::sum);
+            for (String username : usernames) change.merge(username, 1, Integer::sum);
+            for (Map.Entry<String, Integer> entry : change.entrySet()) {
+                for (int i = 0; i < entry.getValue(); i++) joined(entry.getKey());
+                for (int i = 0; i > entry.getValue(); i--) left(entry.getKey());
+            }
+            if (usernames.length == 0) remoteMembers.remove(node);
+            else remoteMembers.put(node, usernames);
+        } finally {
+            presenceLock.unlock();
+        }
+        schedulePresence();
+    }
+
+    public static boolean isValidName(String name) {
+        return !name.isEmpty() && name.length() <= MAX_NAME_LENGTH;
+    }
+
+    /** True if nobody is in the room, on this node or another. */
+    boolean isEmpty() {
+        presenceLock.lock();
+        try {
+            return members.isEmpty() && remoteMembers.isEmpty();
+        } finally {
+            presenceLock.unlock();
+        }
+    }
+
+    public String getName() { return name; }
+    public DocumentStore getDocuments() { return documents; }
+    public int size() { return members.size(); }
+}
@@ -1,63 +1,322 @@
 package server;
-import java.util.concurrent.CopyOnWriteArrayList;
 import java.io.IOException;
-public class ServerBroadcaster {
-    private final CopyOnWriteArrayList<ClientHandler> clients;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import shared.Log;
+import shared.Message;
+import static shared.SharedConstants.*;
+/**
+ * The server's registry of rooms and connected clients. Rooms are created on
+ * first join, up to {@code maxRooms}; all fan-out happens per {@link Room}.
+ * With {@link Persistence}, a room nobody is in any more is evicted once its
+ * documents are on disk, and restored from there when someone joins it again.
+ * Without it, rooms keep their documents after their last member leaves.
+ * Restoring reads a room's logs back, so rooms are created on a loader thread,
+ * never under the map's lock nor on a selector thread (see {@link #load}).
+ * <p>
+ * With a {@link Backplane} the server is one node of a cluster. Each room's OT
+ * edits are sequenced by one owner node, chosen by hashing the room name over the
+ * node list: other nodes forward their clients' edits to it, and it publishes the
+ * sequenced edits to every node. Either way each envelope crosses the backplane
+ * once. CRDT ops need no sequencing and are published by whichever node gets them.
+ * A replica that misses an edit, or cannot apply one, fetches the owner's copy
+ * (see {@link Room#applyRemote}).
+ */
+public final class ServerBroadcaster implements Backplane.Receiver {
+    private static final Log LOG = Log.get("Broadcaster");
+    private static final Log.Sampler REFUSED = LOG.sampled(Log.Level.WARN);
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    public static final int DEFAULT_MAX_ROOMS = 10_000;
+    private static final ExecutorService LOADER =
+            Executors.newFixedThreadPool(4, Thread.ofPlatform().daemon().name("room-loader-", 0).factory());
+    private final Map<Long, ConnectedClient> clients;
+    private final Map<String, Room> rooms;
+    // Rooms being created on a loader thread; a name is here until its room is in rooms
+    private final Map<String, CompletableFuture<Room>> loading = new ConcurrentHashMap<>();
+    // Stand-ins for clients of other nodes whose edits this node sequences, by node/id
+    private final Map<String, RemoteClient> remoteClients;
+    private final int queueCapacity;
+    private final OverflowPolicy overflowPolicy;
+    private final Convergence convergence;
+    private final Backplane backplane;
+    private final Persistence persistence;
+    private final int maxRooms;
+    private final int maxDocuments;
+    private final ServerMetrics metrics = new ServerMetrics(this);
     public ServerBroadcaster() {
-        this.clients = new CopyOnWriteArrayList<>();
-    }
-    public void addClient(ClientHandler client) {
-        clients.add(client);
-        System.out.println("[Broadcaster] Client added. Total clients: " + clients.size());
-    }
-    public void removeClient(ClientHandler client) {
-        clients.remove(client);
-        System.out.println("[Broadcaster] Client removed. Total clients: " + clients.size());
-    }
-    public void broadcast(String message, ClientHandler sender) {
-        int sentCount = 0;
-        for (ClientHandler client : clients) {
-            if (client != sender && client.isConnected()) {
-                try {
-                    client.sendMessage(message);
-                    sentCount++;
-                } catch (IOException e) {
-                    System.err.println("[Broadcaster] Failed to send to client: " + e.getMessage());
-                }
+        this(DEFAULT_QUEUE_CAPACITY, OverflowPolicy.RESYNC, Convergence.OT);
+    }
+    public ServerBroadcaster(int queueCapacity, OverflowPolicy overflowPolicy, Convergence convergence) {
+        this(queueCapacity, overflowPolicy, convergence, null);
+    }
+    /** @param backplane the cluster this node belongs to, or null to run alone */
+    public ServerBroadcaster(int queueCapacity, OverflowPolicy overflowPolicy, Convergence convergence, Backplane backplane) {
+        this(queueCapacity, overflowPolicy, convergence, backplane, null);
+    }
+    /** @param persistence where documents are kept across restarts, or null to keep them in memory only */
+    public ServerBroadcaster(int queueCapacity, OverflowPolicy overflowPolicy, Convergence convergence, Backplane backplane,
+                             Persistence persistence) {
+        this(queueCapacity, overflowPolicy, convergence, backplane, persistence, DEFAULT_MAX_ROOMS, DocumentStore.DEFAULT_MAX_DOCUMENTS);
+    }
+    /**
+     * @param maxRooms     how many rooms the server holds before a JOIN to a new one is refused
+     * @param maxDocuments how many documents a room holds before edits to a new one are refused
+     */
+    public ServerBroadcaster(int queueCapacity, OverflowPolicy overflowPolicy, Convergence convergence, Backplane backplane,
+                             Persistence persistence, int maxRooms, int maxDocuments) {
+        this.clients = new ConcurrentHashMap<>();
+        this.rooms = new ConcurrentHashMap<>();
+        this.remoteClients = new ConcurrentHashMap<>();
+        this.queueCapacity = queueCapacity;
+        this.overflowPolicy = overflowPolicy;
+        this.convergence = convergence;
+        this.backplane = backplane;
+        this.persistence = persistence;
+        this.maxRooms = maxRooms;
+        this.maxDocuments = maxDocuments;
+    }
+    /** How many rooms have documents on disk; each is restored when it is first joined. */
+    public int storedRooms() throws IOException {
+        return persistence == null ? 0 : persistence.roomNames().size();
+    }
+    /**
+     * Adds the client to the named room, creating it on first use and waiting for
+     * that; null if the server has {@code maxRooms}, which concurrent joins may
+     * overshoot slightly.
+     */
+    public Room join(ConnectedClient client, String roomName) {
+        while (true) {
+            CompletableFuture<Room> loaded = load(roomName, true);
+            if (awaitRoom(loaded) == null) {
+                LOG.warn("{} could not join {}: the server has {} rooms", client.getUsername(), roomName, maxRooms);
+                return null;
             }
+            Room room = joinLoaded(client, roomName);
+            if (room != null) return room;
         }
-        System.out.println("[Broadcaster] Message broadcasted to " + sentCount + " client(s)");
     }
-
+    /** Adds the client to the named room if the server holds it now; null if it does not, e.g. it was evicted since it was loaded. */
+    Room joinLoaded(ConnectedClient client, String roomName) {
+        // Under the map's lock for the name, so the room cannot be evicted in between
+        Room room = rooms.computeIfPresent(roomName, (name, current) -> {
+            current.add(client);
+            return current;
+        });
+        if (room == null) return null;
+        clients.put(client.getId(), client);
+        LOG.info("{} joined room {}. Total clients: {}", client.getUsername(), roomName, clients.size());
+        return room;
+    }
     /**
-     * Broadcasts a message to ALL clients including sender
-     * Used for system messages like user list updates
-     *
-     * @param message The message to broadcast
+     * The named room, completed at once if the server holds it, or when a loader
+     * thread has restored it from disk. Completes with null if the room is new and
+     * {@code capped} and the server has {@code maxRooms}; exceptionally if the room
+     * could not be created.
      */
-    public void broadcastToAll(String message) {
-        int sentCount = 0;
-        for (ClientHandler client : clients) {
-            if (client.isConnected()) {
-                try {
-                    client.sendMessage(message);
-                    sentCount++;
-                } catch (IOException e) {
-                    System.err.println("[Broadcaster] Failed to send to client: " + e.getMessage());
+    CompletableFuture<Room> load(String name, boolean capped) {
+        while (true) {
+            Room room = rooms.get(name);
+            if (room != null) return CompletableFuture.completedFuture(room);
+            if (capped && !loading.containsKey(name) && rooms.size() + loading.size() >= maxRooms) {
+                return CompletableFuture.completedFuture(null);
+            }
+            CompletableFuture<Room> created = new CompletableFuture<>();
+            // Checked again under the lock for the name: a loader puts its room in rooms before it leaves loading
+            CompletableFuture<Room> pending = loading.computeIfAbsent(name, key -> rooms.containsKey(key) ? null : created);
+            if (pending == created) LOADER.execute(() -> create(name, created));
+            if (pending != null) return pending;
+        }
+    }
+    private void create(String name, CompletableFuture<Room> created) {
+        try {
+            Room room = new Room(name, convergence, this);
+            rooms.put(name, room);
+            loading.remove(name, created);
+            created.complete(room);
+            // A room loaded for the backplane, or for a client gone meanwhile, gets no presence tick to evict it
+            room.evictIfIdle();
+        } catch (RuntimeException e) {
+            loading.remove(name, created);
+            LOG.error("Could not create room {}: {}", name, e.getMessage(), e);
+            created.completeExceptionally(e);
+        }
+    }
+    /** The loaded room, or null if there is none. */
+    private static Room awaitRoom(CompletableFuture<Room> loaded) {
+        try {
+            return loaded.join();
+        } catch (CompletionException e) {
+            return null;
+        }
+    }
+    /** Takes the client out of its room, which tells the others with its next presence tick, and of the server. */
+    public void removeClient(ConnectedClient client) {
+        Room room = client.getRoom();
+        if (room != null) room.remove(client);
+        if (clients.remove(client.getId(), client) && room != null) {
+            LOG.info("{} left room {}. Total clients: {}", client.getUsername(), room.getName(), clients.size());
+        }
+    }
+    /**
+     * Drops the room if nobody is in it, once its documents are on disk. Under the
+     * map's lock for the name, so a JOIN to it waits and then restores it from disk.
+     * Called from the room's presence tick, which holds no document lock.
+     */
+    void evictIfEmpty(Room room) {
+        if (persistence == null) return;
+        rooms.computeIfPresent(room.getName(), (name, current) -> {
+            if (current != room || !room.isEmpty()) return current;
+            if (!room.getDocuments().release()) {
+                LOG.warn("Room {} is empty but stays: its documents could not be written to disk", name);
+                return current;
+            }
+            LOG.info("Room {} is empty, evicted", name);
+            return null;
+        });
+    }
+    /** The room with this name, creating it on first use and waiting for that; null if the server has {@code maxRooms} or it could not be created. */
+    public Room getRoom(String name) {
+        return awaitRoom(load(name, true));
+    }
+    /** The envelope's room, or null after logging that the envelope is dropped. */
+    private Room roomFor(Envelope envelope) {
+        Room room = getRoom(envelope.room());
+        if (room == null) REFUSED.log("Dropping {} for room {}: the server has {} rooms", envelope.kind(), envelope.room(), maxRooms);
+        return room;
+    }
+    /** Tells the other nodes which members this node now has in the room, and the ids of those that left. */
+    void publishMembers(Room room, List<Long> left) {
+        if (backplane == null) return;
+        String ids = left.stream().map(String::valueOf).collect(Collectors.joining(USER_LIST_DELIMITER));
+        Message local = Message.of(MSG_USER_LIST, String.join(USER_LIST_DELIMITER, room.getLocalUsernames()), ids);
+        backplane.publish(new Envelope(Envelope.Kind.MEMBERS, room.getName(), getLocalNode(), 0, "", local));
+    }
+    /** True if this node sequences the room's OT edits. */
+    boolean sequences(Room room) {
+        return backplane == null || owner(room).equals(getLocalNode());
+    }
+    /** The node that sequences the room's OT edits. */
+    private String owner(Room room) {
+        List<String> nodes = backplane.getNodes();
+        return nodes.get(Math.floorMod(room.getName().hashCode(), nodes.size()));
+    }
+    /** Hands a client's edit to the node that sequences its room. */
+    void forward(Room room, ClientSession client, Message message) {
+        backplane.send(owner(room), new Envelope(Envelope.Kind.FORWARD, room.getName(), getLocalNode(), client.getId(), client.getUsername(), message));
+    }
+    /** Asks the node that sequences the room for its copy of a document; false if the room is no longer this server's. */
+    boolean fetch(Room room, String document) {
+        if (backplane == null || rooms.get(room.getName()) != room) return false;
+        backplane.send(owner(room), new Envelope(Envelope.Kind.FETCH, room.getName(), getLocalNode(), 0, "", Message.of(MSG_SYNC, document)));
+        return true;
+    }
+    /** Answers a FETCH with this node's copy of a document, as a SYNC. */
+    void sendSnapshot(String node, Room room, Message sync) {
+        backplane.send(node, new Envelope(Envelope.Kind.SNAPSHOT, room.getName(), getLocalNode(), 0, "", sync));
+    }
+    /** Sends a message back to a client of another node. */
+    void reply(String node, long client, Message message) {
+        backplane.send(node, new Envelope(Envelope.Kind.REPLY, "", node, client, "", message));
+    }
+    /** Passes a room broadcast on to the other nodes; {@code sender} is left out there too. */
+    void publish(Room room, Message message, ClientSession sender) {
+        if (backplane == null) return;
+        String node = sender == null ? getLocalNode() : sender.getNode();
+        backplane.publish(new Envelope(Envelope.Kind.EVENT, room.getName(), node, sender == null ? 0 : sender.getId(), "", message));
+    }
+    @Override
+    public void receive(Envelope envelope) {
+        switch (envelope.kind()) {
+            case FORWARD -> {
+                Room room = roomFor(envelope);
+                if (room == null) {
+                    reply(envelope.node(), envelope.client(), Message.of(MSG_ERROR, "The server has too many rooms"));
+                    return;
+                }
+                String key = envelope.node() + "/" + envelope.client();
+                RemoteClient client = remoteClients.get(key);
+                if (client == null || client.getRoom() != room) {
+                    client = new RemoteClient(this, room, envelope.node(), envelope.client(), envelope.username());
+                    remoteClients.put(key, client);
+                }
+                client.handleMessage(envelope.message());
+            }
+            case EVENT -> {
+                long except = envelope.node().equals(getLocalNode()) ? envelope.client() : 0;
+                // Negative, so a client of another node never shares a local client's CRDT quota
+                Room room = roomFor(envelope);
+                if (room != null) room.applyRemote(envelope.message(), except, -envelope.client());
+            }
+            case REPLY -> {
+                ConnectedClient client = clients.get(envelope.client());
+                if (client != null) client.sendMessage(envelope.message());
+            }
+            case MEMBERS -> {
+                String[] parts = envelope.message().parts();
+                String list = parts.length > 1 ? parts[1] : "";
+                String[] usernames = list.isEmpty() ? new String[0] : list.split(USER_LIST_DELIMITER);
+                // Under the map's lock for the name, so the room cannot be evicted in between
+                // Nobody there and no room here: nothing to load it for
+                while ((usernames.length > 0 || rooms.containsKey(envelope.room())) && roomFor(envelope) != null) {
+                    Room room = rooms.computeIfPresent(envelope.room(), (name, current) -> {
+                        current.setRemoteMembers(envelope.node(), usernames);
+                        return current;
+                    });
+                    if (room != null) break;
                 }
+                if (parts.length > 2 && !parts[2].isEmpty()) {
+                    for (String id : parts[2].split(USER_LIST_DELIMITER)) remoteClients.remove(envelope.node() + "/" + id);
+                }
+            }
+            case FETCH -> {
+                Room room = roomFor(envelope);
+                if (room != null) room.sendSnapshot(envelope.node(), envelope.message().parts()[1]);
+            }
+            case SNAPSHOT -> {
+                Room room = rooms.get(envelope.room());
+                if (room != null) room.adopt(envelope.message());
             }
         }
-        System.out.println("[Broadcaster] Message broadcasted to all " + sentCount + " client(s)");
     }
-    public String[] getConnectedUsernames() {
-        return clients.stream()
-                .filter(ClientHandler::isConnected)
-                .map(ClientHandler::getUsername)
-                .toArray(String[]::new);
+    /** The replicas of rooms the node sequences may have missed edits: each fetches the owner's copy. */
+    @Override
+    public void lost(String node) {
+        if (backplane == null) return;
+        for (Room room : rooms.values()) {
+            if (owner(room).equals(node)) room.refetch();
+        }
+    }
+    Persistence getPersistence() { return persistence; }
+    int getMaxDocuments() { return maxDocuments; }
+    public ServerMetrics getMetrics() { return metrics; }
+    Collection<ConnectedClient> getClients() { return clients.values(); }
+    Collection<Room> getRooms() { return rooms.values(); }
+    String getLocalNode() {
+        return backplane == null ? "" : backplane.getLocalNode();
+    }
+    List<String> getNodes() {
+        return backplane == null ? List.of() : backplane.getNodes();
+    }
+    public int getQueueCapacity() { return queueCapacity; }
+    public OverflowPolicy getOverflowPolicy() { return overflowPolicy; }
+    public void disconnectAll() {
+        for (ConnectedClient client : clients.values()) {
+            client.disconnect();
+        }
     }
     public int getClientCount() {
-        return (int) clients.stream()
-                .filter(ClientHandler::isConnected)
+        return (int) clients.values().stream()
+                .filter(ConnectedClient::isConnected)
                 .count();
     }
+    public int getRoomCount() {
+        return rooms.size();
+    }
 }
\ No newline at end of file
@@ -0,0 +1,165 @@
+package server;
+
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import shared.Log;
+import static shared.SharedConstants.*;
+
+/**
+ * Startup options for ServerMain.
+ * Usage: ServerMain [port] [--mode=thread|virtual|nio] [--event-loops=N]
+ *                   [--queue-capacity=N] [--overflow=drop|disconnect|resync]
+ *                   [--convergence=ot|crdt]
+ *                   [--node=ID --cluster=ID=host:port,ID=host:port,...]
+ *                   [--data-dir=PATH [--wal-sync-millis=N] [--snapshot-mb=N]]
+ *                   [--max-rooms=N] [--max-documents=N]
+ *                   [--metrics-port=N]
+ * <p>
+ * With --cluster, the server is node ID of that cluster and listens for the other
+ * nodes on its own host:port from the list; every node gets the same list.
+ * With --data-dir, documents are logged to that directory; a room is restored from it
+ * when first joined and evicted from memory again when its last member leaves.
+ * With --metrics-port, metrics are also served as text at http://localhost:N/metrics;
+ * they are always available over JMX.
+ */
+public class ServerConfig {
+    private static final Log LOG = Log.get("ServerConfig");
+    public enum Mode { THREAD, VIRTUAL, NIO }
+
+    private int port = SERVER_PORT;
+    private Mode mode = Mode.THREAD;
+    private int eventLoops = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private int queueCapacity = ServerBroadcaster.DEFAULT_QUEUE_CAPACITY;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.RESYNC;
+    private Convergence convergence = Convergence.OT;
+    private String node;
+    private final Map<String, InetSocketAddress> cluster = new LinkedHashMap<>();
+    private Path dataDirectory;
+    private int walSyncMillis = Persistence.DEFAULT_SYNC_MILLIS;
+    private long snapshotBytes = Persistence.DEFAULT_SNAPSHOT_BYTES;
+    private int metricsPort;
+    private int maxRooms = ServerBroadcaster.DEFAULT_MAX_ROOMS;
+    private int maxDocuments = DocumentStore.DEFAULT_MAX_DOCUMENTS;
+
+    public static ServerConfig parse(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (String arg : args) {
+            if (arg.startsWith("--mode=")) {
+                String value = arg.substring("--mode=".length());
+                try {
+                    config.mode = Mode.valueOf(value.toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    LOG.warn("Unknown server mode '{}'. Using default: {}", value, config.mode);
+                }
+            } else if (arg.startsWith("--event-loops=")) {
+                try {
+                    config.eventLoops = Math.max(1, Integer.parseInt(arg.substring("--event-loops=".length())));
+                } catch (NumberFormatException e) {
+                    LOG.warn("Invalid event loop count. Using default: {}", config.eventLoops);
+                }
+            } else if (arg.startsWith("--queue-capacity=")) {
+                try {
+                    config.queueCapacity = Math.max(1, Integer.parseInt(arg.substring("--queue-capacity=".length())));
+                } catch (NumberFormatException e) {
+                    LOG.warn("Invalid queue capacity. Using default: {}", config.queueCapacity);
+                }
+            } else if (arg.startsWith("--overflow=")) {
+                String value = arg.substring("--overflow=".length());
+                try {
+                    config.overflowPolicy = OverflowPolicy.valueOf(value.toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    LOG.warn("Unknown overflow policy '{}'. Using default: {}", value, config.overflowPolicy);
+                }
+            } else if (arg.startsWith("--convergence=")) {
+                String value = arg.substring("--convergence=".length());
+                try {
+                    config.convergence = Convergence.valueOf(value.toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    LOG.warn("Unknown convergence mode '{}'. Using default: {}", value, config.convergence);
+                }
+            } else if (arg.startsWith("--node=")) {
+                config.node = arg.substring("--node=".length());
+            } else if (arg.startsWith("--cluster=")) {
+                parseCluster(arg.substring("--cluster=".length()), config.cluster);
+            } else if (arg.startsWith("--data-dir=")) {
+                config.dataDirectory = Path.of(arg.substring("--data-dir=".length()));
+            } else if (arg.startsWith("--wal-sync-millis=")) {
+                try {
+                    config.walSyncMillis = Math.max(1, Integer.parseInt(arg.substring("--wal-sync-millis=".length())));
+                } catch (NumberFormatException e) {
+                    LOG.warn("Invalid log sync interval. Using default: {}", config.walSyncMillis);
+                }
+            } else if (arg.startsWith("--snapshot-mb=")) {
+                try {
+                    config.snapshotBytes = Math.max(1, Integer.parseInt(arg.substring("--snapshot-mb=".length()))) * (1L << 20);
+                } catch (NumberFormatException e) {
+                    LOG.warn("Invalid snapshot size. Using default: {} MB", config.snapshotBytes >> 20);
+                }
+            } else if (arg.startsWith("--metrics-port=")) {
+                try {
+                    config.metricsPort = Math.max(0, Integer.parseInt(arg.substring("--metrics-port=".length())));
+                } catch (NumberFormatException e) {
+                    LOG.warn("Invalid metrics port. Metrics are served over JMX only");
+                }
+            } else if (arg.startsWith("--max-rooms=")) {
+                try {
+                    config.maxRooms = Math.max(1, Integer.parseInt(arg.substring("--max-rooms=".length())));
+                } catch (NumberFormatException e) {
+                    LOG.warn("Invalid room limit. Using default: {}", config.maxRooms);
+                }
+            } else if (arg.startsWith("--max-documents=")) {
+                try {
+                    config.maxDocuments = Math.max(1, Integer.parseInt(arg.substring("--max-documents=".length())));
+                } catch (NumberFormatException e) {
+                    LOG.warn("Invalid document limit. Using default: {}", config.maxDocuments);
+                }
+            } else {
+                try {
+                    config.port = Integer.parseInt(arg);
+                } catch (NumberFormatException e) {
+                    LOG.warn("Invalid port number. Using default: {}", SERVER_PORT);
+                }
+            }
+        }
+        if (!config.cluster.isEmpty() && (config.node == null || !config.cluster.containsKey(config.node))) {
+            LOG.warn("--node must name one of the --cluster nodes. Running without a cluster");
+            config.cluster.clear();
+        }
+        return config;
+    }
+
+    private static void parseCluster(String value, Map<String, InetSocketAddress> cluster) {
+        for (String entry : value.split(",")) {
+            int equals = entry.indexOf('=');
+            int colon = entry.lastIndexOf(':');
+            try {
+                if (equals <= 0 || colon < equals) throw new NumberFormatException();
+                int port = Integer.parseInt(entry.substring(colon + 1));
+                cluster.put(entry.substring(0, equals), new InetSocketAddress(entry.substring(equals + 1, colon), port));
+            } catch (NumberFormatException e) {
+                LOG.warn("Invalid cluster node '{}', expected ID=host:port", entry);
+            }
+        }
+    }
+
+    public int getPort() { return port; }
+    public Mode getMode() { return mode; }
+    public int getEventLoops() { return eventLoops; }
+    public int getQueueCapacity() { return queueCapacity; }
+    public OverflowPolicy getOverflowPolicy() { return overflowPolicy; }
+    public Convergence getConvergence() { return convergence; }
+    public String getNode() { return node; }
+    /** Every node's backplane address by id, in the order given; empty when not clustered. */
+    public Map<String, InetSocketAddress> getCluster() { return cluster; }
+    /** Where documents are persisted, or null to keep them in memory only. */
+    public Path getDataDirectory() { return dataDirectory; }
+    public int getWalSyncMillis() { return walSyncMillis; }
+    public long getSnapshotBytes() { return snapshotBytes; }
+    /** Port of the local metrics endpoint, or 0 for none. */
+    public int getMetricsPort() { return metricsPort; }
+    public int getMaxRooms() { return maxRooms; }
+    /** Documents per room, counting the TXT and JAVA documents every room has. */
+    public int getMaxDocuments() { return maxDocuments; }
+}
@@ -1,37 +1,83 @@
 package server;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.ServerSocket;
 import java.net.Socket;
-import static shared.SharedConstants.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import shared.Log;
 public class ServerMain {
+    private static final Log LOG = Log.get("Server");
+    private static final Log BANNER = Log.get("");
+    private final ServerConfig config;
     private ServerSocket serverSocket;
+    private NioServer nioServer;
+    private ExecutorService clientExecutor;
     private ServerBroadcaster broadcaster;
+    private Backplane backplane;
+    private Persistence persistence;
+    private MetricsEndpoint metricsEndpoint;
+    private ObjectName metricsName;
     private boolean running;
     public ServerMain() {
-        this.broadcaster = new ServerBroadcaster();
+        this(new ServerConfig());
+    }
+    public ServerMain(ServerConfig config) {
+        this.config = config;
+        if (!config.getCluster().isEmpty()) {
+            this.backplane = new TcpBackplane(config.getNode(), config.getCluster());
+        }
+        if (config.getDataDirectory() != null) {
+            this.persistence = new Persistence(config.getDataDirectory(), config.getWalSyncMillis(), config.getSnapshotBytes());
+        }
+        this.broadcaster = new ServerBroadcaster(config.getQueueCapacity(), config.getOverflowPolicy(), config.getConvergence(),
+                backplane, persistence, config.getMaxRooms(), config.getMaxDocuments());
         this.running = false;
     }
     public void start(int port) {
         try {
-            serverSocket = new ServerSocket(port);
             running = true;
-            System.out.println("========================================");
-            System.out.println("Collaborative Editor Server Started");
-            System.out.println("Listening on port: " + port);
-            System.out.println("Waiting for clients...");
-            System.out.println("========================================");
+            if (persistence != null) {
+                persistence.start();
+                LOG.info("{} room(s) on disk, each restored when it is first joined", broadcaster.storedRooms());
+            }
+            if (backplane != null) backplane.start(broadcaster);
+            startMetrics();
+            BANNER.info("========================================");
+            BANNER.info("Collaborative Editor Server Started");
+            BANNER.info("Listening on port: {}", port);
+            BANNER.info("Mode: {}, convergence: {}", config.getMode(), config.getConvergence());
+            if (backplane != null) BANNER.info("Cluster node {} of {}", backplane.getLocalNode(), backplane.getNodes());
+            BANNER.info("Waiting for clients...");
+            BANNER.info("========================================");
+            if (config.getMode() == ServerConfig.Mode.NIO) {
+                nioServer = new NioServer(broadcaster, config.getEventLoops());
+                nioServer.start(port);
+                return;
+            }
+            if (config.getMode() == ServerConfig.Mode.VIRTUAL) {
+                clientExecutor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("client-", 0).factory());
+            }
+            serverSocket = new ServerSocket(port);
             while (running) {
                 Socket clientSocket = serverSocket.accept();
-                System.out.println("\n[Server] New connection from: " + clientSocket.getRemoteSocketAddress());
+                LOG.info("New connection from: {}", clientSocket.getRemoteSocketAddress());
                 ClientHandler clientHandler = new ClientHandler(clientSocket, broadcaster);
-                Thread clientThread = new Thread(clientHandler);
-                clientThread.setDaemon(true);
-                clientThread.start();
+                if (clientExecutor != null) {
+                    clientExecutor.execute(clientHandler);
+                } else {
+                    Thread clientThread = new Thread(clientHandler);
+                    clientThread.setDaemon(true);
+                    clientThread.start();
+                }
             }
             
         } catch (IOException e) {
             if (running) {
-                System.err.println("[Server] Error accepting connection: " + e.getMessage());
+                LOG.error("Error accepting connection: {}", e.getMessage());
             }
         }
     }
@@ -41,25 +87,79 @@ public class ServerMain {
             if (serverSocket != null && !serverSocket.isClosed()) {
                 serverSocket.close();
             }
-            System.out.println("[Server] Server stopped");
+            if (nioServer != null) {
+                nioServer.stop();
+            }
+            if (clientExecutor != null) {
+                shutdownClientExecutor();
+            }
+            if (backplane != null) {
+                backplane.stop();
+            }
+            if (persistence != null) {
+                persistence.close();
+            }
+            stopMetrics();
+            LOG.info("Server stopped");
         } catch (IOException e) {
-            System.err.println("[Server] Error stopping server: " + e.getMessage());
+            LOG.error("Error stopping server: {}", e.getMessage());
         }
     }
-    public static void main(String[] args) {
-        int port = SERVER_PORT;
-        if (args.length > 0) {
+    private void startMetrics() {
+        try {
+            // Each node of an in-process cluster needs a name of its own
+            String name = ServerMetrics.OBJECT_NAME + (backplane != null ? ",node=" + ObjectName.quote(backplane.getLocalNode()) : "");
+            metricsName = new ObjectName(name);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(broadcaster.getMetrics(), metricsName);
+        } catch (JMException e) {
+            LOG.warn("Could not register metrics over JMX: {}", e.getMessage());
+            metricsName = null;
+        }
+        if (config.getMetricsPort() > 0) {
+            metricsEndpoint = new MetricsEndpoint(broadcaster.getMetrics());
+            try {
+                metricsEndpoint.start(config.getMetricsPort());
+            } catch (IOException e) {
+                LOG.warn("Could not serve metrics on port {}: {}", config.getMetricsPort(), e.getMessage());
+                metricsEndpoint = null;
+            }
+        }
+    }
+    private void stopMetrics() {
+        if (metricsEndpoint != null) {
+            metricsEndpoint.stop();
+        }
+        if (metricsName != null) {
             try {
-                port = Integer.parseInt(args[0]);
-            } catch (NumberFormatException e) {
-                System.err.println("Invalid port number. Using default: " + SERVER_PORT);
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+            } catch (JMException e) {
+                LOG.warn("Could not unregister metrics: {}", e.getMessage());
             }
         }
-        ServerMain server = new ServerMain();
+    }
+    private void shutdownClientExecutor() {
+        clientExecutor.shutdown();
+        broadcaster.disconnectAll();
+        try {
+            // Handlers that never sent JOIN are still blocked in readLine; interrupting a
+            // virtual thread blocked on a socket closes that socket.
+            if (!clientExecutor.awaitTermination(5, TimeUnit.SECONDS)) {
+                clientExecutor.shutdownNow();
+                clientExecutor.awaitTermination(5, TimeUnit.SECONDS);
+            }
+        } catch (InterruptedException e) {
+            clientExecutor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+    public static void main(String[] args) {
+        ServerConfig config = ServerConfig.parse(args);
+        ServerMain server = new ServerMain(config);
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            System.out.println("\n[Server] Shutting down...");
+            LOG.info("Shutting down...");
             server.stop();
+            Log.flush();
         }));
-        server.start(port);
+        server.start(config.getPort());
     }
 }
\ No newline at end of file
@@ -0,0 +1,164 @@
+package server;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * What one server is doing: traffic, parse failures, broadcast fan-out latency,
+ * clients per room and per-client backlogs. Exposed over JMX
+ * ({@link ServerMetricsMXBean}) and, with --metrics-port, as text in the
+ * Prometheus exposition format by {@link MetricsEndpoint}.
+ * <p>
+ * Recording sits on the per-message paths, so it never locks: counters are
+ * {@link LongAdder}s, which spread concurrent increments over cells instead of
+ * contending on one, and fan-out times go into a {@link LatencyHistogram}. Gauges
+ * are read from the broadcaster only when someone asks for them.
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+    public static final String OBJECT_NAME = "collab:type=ServerMetrics";
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final ServerBroadcaster broadcaster;
+    private final LongAdder messagesReceived = new LongAdder();
+    private final LongAdder messagesSent = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder parseFailures = new LongAdder();
+    private final LatencyHistogram fanOut = new LatencyHistogram();
+    private final Rate receivedRate = new Rate(messagesReceived);
+    private final Rate sentRate = new Rate(messagesSent);
+
+    ServerMetrics(ServerBroadcaster broadcaster) {
+        this.broadcaster = broadcaster;
+    }
+
+    void messageReceived() { messagesReceived.increment(); }
+
+    void messagesSent(int messages, long bytes) {
+        messagesSent.add(messages);
+        bytesSent.add(bytes);
+    }
+
+    /** A line, frame or field a client sent that could not be decoded. */
+    void parseFailure() { parseFailures.increment(); }
+
+    /** How long handing one message to a room's members took. */
+    void fanOut(long nanos) { fanOut.record(nanos); }
+
+    @Override public long getMessagesReceived() { return messagesReceived.sum(); }
+    @Override public long getMessagesSent() { return messagesSent.sum(); }
+    @Override public double getMessagesReceivedPerSecond() { return receivedRate.get(); }
+    @Override public double getMessagesSentPerSecond() { return sentRate.get(); }
+    @Override public long getBytesSent() { return bytesSent.sum(); }
+    @Override public long getParseFailures() { return parseFailures.sum(); }
+    @Override public int getConnectedClients() { return broadcaster.getClientCount(); }
+    @Override public long getBroadcastCount() { return fanOut.getCount(); }
+    @Override public double getBroadcastFanOutMicrosP50() { return fanOut.quantile(0.5) / 1e3; }
+    @Override public double getBroadcastFanOutMicrosP99() { return fanOut.quantile(0.99) / 1e3; }
+    @Override public double getBroadcastFanOutMicrosP999() { return fanOut.quantile(0.999) / 1e3; }
+    @Override public double getBroadcastFanOutMicrosMax() { return fanOut.getMax() / 1e3; }
+
+    @Override
+    public Map<String, Integer> getClientsPerRoom() {
+        Map<String, Integer> clients = new TreeMap<>();
+        for (Room room : broadcaster.getRooms()) clients.put(room.getName(), room.size());
+        return clients;
+    }
+
+    @Override
+    public Map<String, Integer> getOutboundBacklogPerClient() {
+        Map<String, Integer> backlogs = new TreeMap<>();
+        for (ConnectedClient client : broadcaster.getClients()) {
+            backlogs.put(client.getId() + " " + client.getUsername(), client.getOutboundBacklog());
+        }
+        return backlogs;
+    }
+
+    @Override
+    public int getMaxOutboundBacklog() {
+        int max = 0;
+        for (ConnectedClient client : broadcaster.getClients()) max = Math.max(max, client.getOutboundBacklog());
+        return max;
+    }
+
+    /** Everything in the Prometheus text format (version 0.0.4). */
+    public String toText() {
+        StringBuilder out = new StringBuilder(1024);
+        counter(out, "collab_messages_received_total", "Messages read from clients.", getMessagesReceived());
+        counter(out, "collab_messages_sent_total", "Messages written to clients.", getMessagesSent());
+        counter(out, "collab_bytes_sent_total", "Bytes written to clients, after compression.", getBytesSent());
+        counter(out, "collab_parse_failures_total", "Lines, frames or fields from clients that could not be decoded.", getParseFailures());
+
+        header(out, "collab_clients", "Connected clients.", "gauge");
+        out.append("collab_clients ").append(getConnectedClients()).append('\n');
+        header(out, "collab_room_clients", "Connected clients per room; each has all of the room's documents open.", "gauge");
+        for (Map.Entry<String, Integer> room : getClientsPerRoom().entrySet()) {
+            out.append("collab_room_clients{room=\"").append(escape(room.getKey())).append("\"} ").append(room.getValue()).append('\n');
+        }
+        header(out, "collab_client_outbound_backlog", "Messages waiting in a client's outbound queue.", "gauge");
+        for (ConnectedClient client : broadcaster.getClients()) {
+            out.append("collab_client_outbound_backlog{client=\"").append(client.getId())
+                    .append("\",user=\"").append(escape(client.getUsername())).append("\"} ")
+                    .append(client.getOutboundBacklog()).append('\n');
+        }
+
+        header(out, "collab_broadcast_fanout_seconds", "Time to hand one message to every member of a room.", "summary");
+        for (double q : QUANTILES) {
+            out.append("collab_broadcast_fanout_seconds{quantile=\"").append(q).append("\"} ")
+                    .append(seconds(fanOut.quantile(q))).append('\n');
+        }
+        out.append("collab_broadcast_fanout_seconds_sum ").append(seconds(fanOut.getSum())).append('\n');
+        out.append("collab_broadcast_fanout_seconds_count ").append(fanOut.getCount()).append('\n');
+        return out.toString();
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        header(out, name, help, "counter");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+
+    private static String escape(String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /** Per-second rate of a counter, over the time since the previous reading at least a second ago. */
+    private static final class Rate {
+        private static final long MIN_INTERVAL_NANOS = 1_000_000_000L;
+        private final LongAdder counter;
+        private final ReentrantLock lock = new ReentrantLock();
+        private long sampleNanos = System.nanoTime();
+        private long sampleCount;
+        private double rate;
+
+        Rate(LongAdder counter) {
+            this.counter = counter;
+        }
+
+        double get() {
+            lock.lock();
+            try {
+                long now = System.nanoTime();
+                if (now - sampleNanos >= MIN_INTERVAL_NANOS) {
+                    long count = counter.sum();
+                    rate = (count - sampleCount) * 1e9 / (now - sampleNanos);
+                    sampleNanos = now;
+                    sampleCount = count;
+                }
+                return rate;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package server;
+
+import java.util.Map;
+
+/**
+ * The server's metrics over JMX, registered as {@value ServerMetrics#OBJECT_NAME}.
+ * Counters are totals since startup; rates are per second over the time since the
+ * previous reading at least a second earlier.
+ */
+public interface ServerMetricsMXBean {
+    long getMessagesReceived();
+
+    long getMessagesSent();
+
+    double getMessagesReceivedPerSecond();
+
+    double getMessagesSentPerSecond();
+
+    long getBytesSent();
+
+    long getParseFailures();
+
+    int getConnectedClients();
+
+    /** Connected clients by room; every member of a room has all of its documents open. */
+    Map<String, Integer> getClientsPerRoom();
+
+    /** Messages waiting in each client's outbound queue, by "id username". */
+    Map<String, Integer> getOutboundBacklogPerClient();
+
+    int getMaxOutboundBacklog();
+
+    long getBroadcastCount();
+
+    double getBroadcastFanOutMicrosP50();
+
+    double getBroadcastFanOutMicrosP99();
+
+    double getBroadcastFanOutMicrosP999();
+
+    double getBroadcastFanOutMicrosMax();
+}
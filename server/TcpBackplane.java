@@ -0,0 +1,222 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import shared.Log;
+import shared.Message;
+import shared.MessageReader;
+import shared.MessageWriter;
+import shared.WireFormat;
+
+/**
+ * Full-mesh TCP backplane: every node listens on its own address and keeps one
+ * outgoing connection to every other node, so an envelope reaches any node in one
+ * hop. Each peer has its own queue and writer thread, and each inbound connection
+ * is read on one thread, so envelopes between two nodes keep their order. They
+ * travel as binary frames, opened by a HELLO frame naming the sending node.
+ * <p>
+ * A peer that is not reachable yet is retried; envelopes wait in its queue until
+ * then, up to {@link #MAX_QUEUED}. Envelopes lost with a broken connection are not
+ * resent: the receiving node is told through {@link Receiver#lost} when the
+ * connection ends. A full queue drops the envelope and closes the connection, so
+ * the peer hears of that loss the same way.
+ */
+public class TcpBackplane implements Backplane {
+    private static final Log LOG = Log.get("Backplane");
+    private static final String HELLO = "HELLO";
+    private static final long RETRY_MILLIS = 500;
+    /** Envelopes waiting for one peer before more are dropped. */
+    public static final int MAX_QUEUED = 65_536;
+    private static final Log.Sampler DROPS = LOG.sampled(Log.Level.WARN);
+    private final String localNode;
+    private final Map<String, InetSocketAddress> addresses;
+    private final List<String> nodes;
+    private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+    private final Set<Socket> inbound = ConcurrentHashMap.newKeySet();
+    private ServerSocket serverSocket;
+    private volatile boolean running;
+
+    /** @param addresses every node's backplane address, this node's included, in cluster order */
+    public TcpBackplane(String localNode, Map<String, InetSocketAddress> addresses) {
+        if (!addresses.containsKey(localNode)) throw new IllegalArgumentException("Node " + localNode + " is not in the cluster");
+        this.localNode = localNode;
+        this.addresses = addresses;
+        this.nodes = List.copyOf(addresses.keySet());
+    }
+
+    @Override
+    public void start(Receiver receiver) throws IOException {
+        running = true;
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(addresses.get(localNode));
+        Thread.ofPlatform().daemon().name("backplane-accept").start(() -> acceptLoop(receiver));
+        for (String node : nodes) {
+            if (node.equals(localNode)) continue;
+            Peer peer = new Peer(node, addresses.get(node));
+            peers.put(node, peer);
+            peer.thread = Thread.ofPlatform().daemon().name("backplane-to-" + node).start(peer);
+        }
+        LOG.info("Node {} listening on {} for {}", localNode, addresses.get(localNode), nodes);
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        try {
+            if (serverSocket != null) serverSocket.close();
+            for (Peer peer : peers.values()) peer.close();
+            for (Socket socket : inbound) socket.close();
+        } catch (IOException e) {
+            LOG.warn("Error closing backplane: {}", e.getMessage());
+        }
+    }
+
+    @Override
+    public String getLocalNode() { return localNode; }
+
+    @Override
+    public List<String> getNodes() { return nodes; }
+
+    @Override
+    public void publish(Envelope envelope) {
+        // One flattened message for all peers, so it is encoded once.
+        Message message = envelope.toMessage();
+        for (Peer peer : peers.values()) peer.enqueue(message);
+    }
+
+    @Override
+    public void send(String node, Envelope envelope) {
+        Peer peer = peers.get(node);
+        if (peer == null) {
+            LOG.warn("Unknown node {}, dropping {}", node, envelope.kind());
+            return;
+        }
+        peer.enqueue(envelope.toMessage());
+    }
+
+    private void acceptLoop(Receiver receiver) {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                inbound.add(socket);
+                Thread.ofPlatform().daemon().name("backplane-from-" + socket.getPort()).start(() -> readLoop(socket, receiver));
+            } catch (IOException e) {
+                if (running) LOG.warn("Backplane accept failed: {}", e.getMessage());
+            }
+        }
+    }
+
+    private void readLoop(Socket socket, Receiver receiver) {
+        String node = "?";
+        try (socket) {
+            MessageReader reader = new MessageReader(socket.getInputStream());
+            reader.setFormat(WireFormat.BINARY);
+            Message hello = reader.read();
+            if (hello == null || !hello.getType().equals(HELLO) || hello.parts().length < 2) {
+                LOG.warn("Backplane connection from {} did not say HELLO", socket.getRemoteSocketAddress());
+                return;
+            }
+            node = hello.parts()[1];
+            LOG.info("Node {} connected", node);
+            Message message;
+            while ((message = reader.read()) != null) {
+                try {
+                    receiver.receive(Envelope.fromMessage(message));
+                } catch (IllegalArgumentException e) {
+                    LOG.warn("Bad envelope from {}: {}", node, e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            if (running) LOG.warn("Backplane connection from {} failed: {}", node, e.getMessage());
+        } finally {
+            inbound.remove(socket);
+            // Whatever the node wrote after its last envelope read here is gone.
+            if (running && !node.equals("?")) receiver.lost(node);
+        }
+    }
+
+    /** The outgoing connection to one node, with the envelopes waiting for it. */
+    private final class Peer implements Runnable {
+        private final String node;
+        private final InetSocketAddress address;
+        private final BlockingQueue<Message> queue = new LinkedBlockingQueue<>(MAX_QUEUED);
+        private volatile Socket socket;
+        private Thread thread;
+
+        Peer(String node, InetSocketAddress address) {
+            this.node = node;
+            this.address = address;
+        }
+
+        @Override
+        public void run() {
+            List<Message> batch = new ArrayList<>();
+            boolean warned = false;
+            while (running) {
+                try (Socket connection = new Socket()) {
+                    socket = connection;
+                    connection.connect(address);
+                    connection.setTcpNoDelay(true);
+                    MessageWriter writer = new MessageWriter(connection.getOutputStream());
+                    writer.setFormat(WireFormat.BINARY);
+                    writer.write(Message.of(HELLO, localNode));
+                    writer.flush();
+                    LOG.info("Connected to node {} at {}", node, address);
+                    warned = false;
+                    while (running) {
+                        batch.add(queue.take());
+                        queue.drainTo(batch);
+                        for (Message message : batch) writer.write(message);
+                        writer.flush();
+                        batch.clear();
+                    }
+                } catch (IOException e) {
+                    if (!running) return;
+                    if (!batch.isEmpty()) LOG.warn("Lost {} envelope(s) to node {}", batch.size(), node);
+                    batch.clear();
+                    if (!warned) LOG.warn("Node {} at {} unreachable ({}), retrying", node, address, e.getMessage());
+                    warned = true;
+                    if (!sleep()) return;
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private boolean sleep() {
+            try {
+                Thread.sleep(RETRY_MILLIS);
+                return true;
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+
+        /** Queues the message; if the queue is full, drops it and breaks the connection so the peer knows. */
+        void enqueue(Message message) {
+            if (queue.offer(message)) return;
+            DROPS.log("{} envelopes queued for node {}, dropping {}", MAX_QUEUED, node, message.getType());
+            Socket current = socket;
+            try {
+                if (current != null) current.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        void close() throws IOException {
+            thread.interrupt();
+            Socket current = socket;
+            if (current != null) current.close();
+        }
+    }
+}
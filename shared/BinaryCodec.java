@@ -0,0 +1,252 @@
+package shared;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import static shared.SharedConstants.*;
+
+/**
+ * Version 1 of the binary wire protocol, negotiated at JOIN.
+ * <pre>
+ * frame := varint(bodyLength) body
+ * body  := typeCode:u8 [typeName:string if typeCode is 0] field*
+ *        | 0xFF deflated body (see {@link FrameCompression})
+ * field := varint (positions, lengths, revisions) | string
+ * string := varint(byteLength) UTF-8 bytes
+ * </pre>
+ * Each known type has a fixed layout saying which fields are numbers; fields past
+ * the layout are strings, and trailing fields may be left out. Varints are
+ * unsigned LEB128, so small numbers take one byte. Text needs no escaping.
+ */
+public final class BinaryCodec {
+    public static final String VERSION = "BIN1";
+    public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+    public static final int COMPRESSED_TYPE = 0xFF;
+    private static final int CUSTOM_TYPE = 0;
+
+    // Type code = index + 1. Layout: 's' string, 'i' non-negative int.
+    private static final String[] TYPES = {
+            MSG_JOIN, MSG_LEAVE, MSG_EDIT, MSG_DELETE, MSG_USER_LIST, MSG_SYNC,
+            MSG_ERROR, MSG_ACK, MSG_CRDT, MSG_CRDT_SYNC, MSG_PROTOCOL, MSG_BATCH, MSG_REPLACE, MSG_SYNC_PART, MSG_PRESENCE };
+    private static final String[] LAYOUTS = {
+            "ss", "s", "sissi", "siisi", "s", "sssi",
+            "s", "si", "sss", "sss", "s", "sssi", "siissi", "siis", "ss" };
+    private static final Map<String, Integer> CODES = new HashMap<>();
+
+    static {
+        for (int i = 0; i < TYPES.length; i++) CODES.put(TYPES[i], i + 1);
+    }
+
+    private BinaryCodec() {
+        throw new IllegalStateException("Utility class - cannot be instantiated");
+    }
+
+    /** Encodes one message as a complete frame, in a buffer of exactly the right size. */
+    public static ByteBuffer encode(Message message) {
+        int bodyLength = bodyLength(message);
+        ByteBuffer out = ByteBuffer.allocate(varintLength(bodyLength) + bodyLength);
+        putVarint(out, bodyLength);
+        putBody(message, out);
+        return out.flip();
+    }
+
+    /** Writes one frame; the buffer must have {@link #encodedLength} bytes left. */
+    public static void encode(Message message, ByteBuffer out) {
+        putVarint(out, bodyLength(message));
+        putBody(message, out);
+    }
+
+    public static int encodedLength(Message message) {
+        int bodyLength = bodyLength(message);
+        return varintLength(bodyLength) + bodyLength;
+    }
+
+    /**
+     * Decodes the frame at the buffer's position and moves past it.
+     * @return the message, or null (position unchanged) if the frame is not complete yet
+     * @throws IllegalArgumentException if the frame is malformed or too large
+     */
+    public static Message decode(ByteBuffer in) {
+        return decode(in, null, MAX_FRAME_LENGTH);
+    }
+
+    /**
+     * Decodes like {@link #decode(ByteBuffer)}, inflating compressed frames with the
+     * connection's decompressor (without one they are malformed), and refusing frames
+     * longer than {@code maxLength} bytes, compressed or inflated.
+     */
+    public static Message decode(ByteBuffer in, FrameCompression.Decompressor decompressor, int maxLength) {
+        int start = in.position();
+        int length = readVarint(in, in.limit());
+        if (length > maxLength) throw new IllegalArgumentException("Frame of " + length + " bytes is too large");
+        if (length < 0 || in.remaining() < length) {
+            in.position(start);
+            return null;
+        }
+        int end = in.position() + length;
+        Message message;
+        if (length > 0 && (in.get(in.position()) & 0xFF) == COMPRESSED_TYPE) {
+            if (decompressor == null) throw new IllegalArgumentException("Compressed frame on an uncompressed connection");
+            ByteBuffer body = decompressor.inflate(in.slice(in.position() + 1, length - 1), maxLength);
+            message = decodeBody(body, body.limit());
+        } else {
+            message = decodeBody(in, end);
+        }
+        in.position(end);
+        return message;
+    }
+
+    private static int bodyLength(Message message) {
+        String[] parts = message.parts();
+        Integer code = CODES.get(parts[0]);
+        String layout = code == null ? "" : LAYOUTS[code - 1];
+        int length = 1 + (code == null ? stringLength(parts[0]) : 0);
+        for (int i = 1; i < parts.length; i++) {
+            length += kind(layout, i - 1) == 'i' ? varintLength(number(parts, i)) : stringLength(parts[i]);
+        }
+        return length;
+    }
+
+    private static void putBody(Message message, ByteBuffer out) {
+        String[] parts = message.parts();
+        Integer code = CODES.get(parts[0]);
+        String layout = code == null ? "" : LAYOUTS[code - 1];
+        out.put((byte) (code == null ? CUSTOM_TYPE : code));
+        if (code == null) putString(out, parts[0]);
+        for (int i = 1; i < parts.length; i++) {
+            if (kind(layout, i - 1) == 'i') putVarint(out, number(parts, i));
+            else putString(out, parts[i]);
+        }
+    }
+
+    private static Message decodeBody(ByteBuffer in, int end) {
+        if (in.position() >= end) throw new IllegalArgumentException("Empty frame");
+        int code = in.get() & 0xFF;
+        if (code > TYPES.length) throw new IllegalArgumentException("Unknown message type " + code);
+        List<String> parts = new ArrayList<>();
+        parts.add(code == CUSTOM_TYPE ? readString(in, end) : TYPES[code - 1]);
+        String layout = code == CUSTOM_TYPE ? "" : LAYOUTS[code - 1];
+        while (in.position() < end) {
+            if (kind(layout, parts.size() - 1) == 'i') {
+                int value = readVarint(in, end);
+                if (value < 0) throw new IllegalArgumentException("Truncated number");
+                parts.add(Integer.toString(value));
+            } else {
+                parts.add(readString(in, end));
+            }
+        }
+        return Message.wrap(parts.toArray(new String[0]));
+    }
+
+    private static char kind(String layout, int field) {
+        return field < layout.length() ? layout.charAt(field) : 's';
+    }
+
+    private static int number(String[] parts, int index) {
+        try {
+            int value = Integer.parseInt(parts[index]);
+            if (value >= 0) return value;
+        } catch (NumberFormatException ignored) {
+        }
+        throw new IllegalArgumentException("Field " + index + " of " + parts[0] + " is not a count: " + parts[index]);
+    }
+
+    public static int varintLength(int value) {
+        int length = 1;
+        while ((value >>>= 7) != 0) length++;
+        return length;
+    }
+
+    public static void putVarint(ByteBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    /** @return the value, or -1 if the buffer ends (at {@code end}) before the varint does */
+    public static int readVarint(ByteBuffer in, int end) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (in.position() >= end) return -1;
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                if (value < 0 || (shift == 28 && (b & 0x70) != 0)) break;
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Varint out of range");
+    }
+
+    private static int stringLength(String value) {
+        int bytes = utf8Length(value);
+        return varintLength(bytes) + bytes;
+    }
+
+    private static void putString(ByteBuffer out, String value) {
+        putVarint(out, utf8Length(value));
+        putUtf8(out, value);
+    }
+
+    private static String readString(ByteBuffer in, int end) {
+        int length = readVarint(in, end);
+        if (length < 0 || length > end - in.position()) throw new IllegalArgumentException("Truncated string");
+        String value;
+        if (in.hasArray()) {
+            value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return value;
+    }
+
+    /** Bytes {@link #putUtf8} writes; unpaired surrogates count as one byte ('?'), as in String.getBytes. */
+    public static int utf8Length(String value) {
+        int length = value.length();
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) continue;
+            if (c < 0x800) {
+                length++;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 2;
+                i++;
+            } else if (!Character.isSurrogate(c)) {
+                length += 2;
+            }
+        }
+        return length;
+    }
+
+    public static void putUtf8(ByteBuffer out, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xC0 | (c >> 6)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                out.put((byte) (0xF0 | (codePoint >> 18)));
+                out.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                out.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (codePoint & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                out.put((byte) '?');
+            } else {
+                out.put((byte) (0xE0 | (c >> 12)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package shared;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Optional DEFLATE compression of binary frames, negotiated at JOIN next to
+ * {@link BinaryCodec#VERSION} (see {@link WireFormat}).
+ * <p>
+ * Each direction of a connection is one deflate stream: the sender keeps its
+ * {@link Deflater} and the receiver its {@link Inflater} for the whole connection,
+ * so a SYNC of a document the client already received, or a paste of code that
+ * resembles what is on screen, compresses against everything sent before it.
+ * Every compressed frame ends with a sync flush, so it inflates on its own.
+ * <p>
+ * Frames below the threshold are sent as they are and stay out of the stream:
+ * single keystrokes would barely shrink, and skipping them keeps the broadcast
+ * path free of per-connection work. A compressed frame is an ordinary frame whose
+ * body starts with {@link BinaryCodec#COMPRESSED_TYPE} followed by the deflated body.
+ * <p>
+ * Settings: -Dcompression=none turns it off (for offering and accepting),
+ * -Dcompression.threshold=bytes sets the smallest frame that is compressed.
+ */
+public final class FrameCompression {
+    public static final String NAME = "DEFLATE";
+    public static final boolean ENABLED = !"none".equalsIgnoreCase(System.getProperty("compression"));
+    public static final int THRESHOLD = Math.max(1, Integer.getInteger("compression.threshold", 256));
+
+    private FrameCompression() {
+        throw new IllegalStateException("Utility class - cannot be instantiated");
+    }
+
+    /** The sending half; one per connection, used by its writer only. */
+    public static final class Compressor {
+        // BEST_SPEED: several times faster than the default level on code for a few percent more bytes.
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        private final int threshold;
+
+        public Compressor() {
+            this(THRESHOLD);
+        }
+
+        public Compressor(int threshold) {
+            this.threshold = threshold;
+        }
+
+        /**
+         * @param frame a complete binary frame; its position is not moved
+         * @return the frame itself if it is below the threshold, otherwise a new, compressed frame
+         */
+        public ByteBuffer compress(ByteBuffer frame) {
+            if (frame.remaining() < threshold) return frame;
+            ByteBuffer body = frame.duplicate();
+            BinaryCodec.readVarint(body, body.limit());
+            deflater.setInput(body);
+            byte[] output = new byte[Math.max(64, body.remaining() / 2)];
+            int length = 0;
+            while (true) {
+                length += deflater.deflate(output, length, output.length - length, Deflater.SYNC_FLUSH);
+                // A full buffer may mean the flush is not complete yet.
+                if (length < output.length) break;
+                output = Arrays.copyOf(output, output.length * 2);
+            }
+            ByteBuffer out = ByteBuffer.allocate(BinaryCodec.varintLength(length + 1) + length + 1);
+            BinaryCodec.putVarint(out, length + 1);
+            out.put((byte) BinaryCodec.COMPRESSED_TYPE);
+            out.put(output, 0, length);
+            return out.flip();
+        }
+    }
+
+    /** The receiving half; one per connection, used by its reader only. */
+    public static final class Decompressor {
+        private Inflater inflater;
+
+        /**
+         * Inflates the rest of one compressed body.
+         * @throws IllegalArgumentException if the data is not part of the stream or inflates past {@code maxLength}
+         */
+        ByteBuffer inflate(ByteBuffer compressed, int maxLength) {
+            // Created on the first compressed frame: most connections never see one.
+            if (inflater == null) inflater = new Inflater(true);
+            inflater.setInput(compressed);
+            byte[] output = new byte[(int) Math.min(maxLength + 1L, Math.max(1024, 4L * compressed.remaining()))];
+            int length = 0;
+            try {
+                while (true) {
+                    length += inflater.inflate(output, length, output.length - length);
+                    if (length == output.length) {
+                        if (length > maxLength) throw new IllegalArgumentException("Inflated frame is too large");
+                        output = Arrays.copyOf(output, (int) Math.min(maxLength + 1L, 2L * length));
+                    } else if (inflater.needsInput()) {
+                        return ByteBuffer.wrap(output, 0, length);
+                    } else if (inflater.finished() || inflater.needsDictionary()) {
+                        throw new IllegalArgumentException("Compressed stream ended");
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new IllegalArgumentException("Corrupt compressed frame: " + e.getMessage(), e);
+            }
+        }
+    }
+}
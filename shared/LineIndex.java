@@ -0,0 +1,250 @@
+package shared;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Where the lines of a document start, kept up to date edit by edit, for
+ * converting between offsets and line/column.
+ * <p>
+ * The text is covered by segments in an implicit treap ordered by position, like
+ * {@link PieceTable}; a segment holds only the offsets of its newlines, and every
+ * node counts the characters and newlines of its subtree. Edits, offset to line
+ * and line to offset are O(log n), plus the size of one segment and of the
+ * inserted text. Lines and columns are 0-based here.
+ * Not thread-safe.
+ */
+public class LineIndex {
+    // Segments grow in place up to this size; larger inserts become segments of their own
+    private static final int MAX_SEGMENT_CHARS = 4096;
+
+    private static final class Segment {
+        int length;
+        // Offsets of the newlines within the segment, ascending
+        int[] newlines;
+        final int priority = ThreadLocalRandom.current().nextInt();
+        Segment left, right;
+        int subtreeLength;
+        int subtreeNewlines;
+
+        Segment(int length, int[] newlines) {
+            this.length = length;
+            this.newlines = newlines;
+            update(this);
+        }
+    }
+
+    private Segment root;
+
+    public LineIndex() {
+    }
+
+    public LineIndex(String text) {
+        root = build(text);
+    }
+
+    public int length() {
+        return size(root);
+    }
+
+    /** Newlines plus one: an empty document, or one ending in a newline, has an empty last line. */
+    public int lineCount() {
+        return newlines(root) + 1;
+    }
+
+    public void apply(TextEdit edit) {
+        replace(edit.getPosition(), edit.getDeleteLength(), edit.getText());
+    }
+
+    /** Replaces [position, position + deleteLength) with text. */
+    public void replace(int position, int deleteLength, String text) {
+        if (position < 0 || deleteLength < 0 || position + deleteLength > length()) {
+            throw new IndexOutOfBoundsException("range [" + position + ", " + (position + deleteLength) + ") outside length " + length());
+        }
+        if (deleteLength == 0 && text.isEmpty()) return;
+        // Typing and small deletes stay inside one segment, so they add no nodes.
+        if (text.length() <= MAX_SEGMENT_CHARS && root != null
+                && editInPlace(root, position, deleteLength, text.length(), newlines(text, 0, text.length()))) {
+            return;
+        }
+        Segment[] head = split(root, position);
+        Segment[] tail = split(head[1], deleteLength);
+        root = merge(merge(head[0], build(text)), tail[1]);
+    }
+
+    /** The line the offset is on; the end of the document is on the last line. */
+    public int lineOf(int offset) {
+        if (offset < 0 || offset > length()) throw new IndexOutOfBoundsException("offset " + offset + ", length " + length());
+        int line = 0;
+        Segment node = root;
+        while (node != null) {
+            int leftSize = size(node.left);
+            if (offset < leftSize) {
+                node = node.left;
+                continue;
+            }
+            line += newlines(node.left);
+            if (offset < leftSize + node.length) {
+                for (int newline : node.newlines) {
+                    if (newline >= offset - leftSize) break;
+                    line++;
+                }
+                break;
+            }
+            line += node.newlines.length;
+            offset -= leftSize + node.length;
+            node = node.right;
+        }
+        return line;
+    }
+
+    public int columnOf(int offset) {
+        return offset - lineStart(lineOf(offset));
+    }
+
+    /** The offset of the first character of the line. */
+    public int lineStart(int line) {
+        if (line < 0 || line >= lineCount()) throw new IndexOutOfBoundsException("line " + line + ", lines " + lineCount());
+        if (line == 0) return 0;
+        // The line starts after its line-th newline.
+        int rank = line;
+        int base = 0;
+        Segment node = root;
+        while (true) {
+            int leftNewlines = newlines(node.left);
+            if (rank <= leftNewlines) {
+                node = node.left;
+                continue;
+            }
+            rank -= leftNewlines;
+            base += size(node.left);
+            if (rank <= node.newlines.length) return base + node.newlines[rank - 1] + 1;
+            rank -= node.newlines.length;
+            base += node.length;
+            node = node.right;
+        }
+    }
+
+    /** The offset just past the last character of the line, not counting its newline. */
+    public int lineEnd(int line) {
+        return line + 1 < lineCount() ? lineStart(line + 1) - 1 : length();
+    }
+
+    /** @return the offset of line/column, or -1 if there is no such line or the line is shorter */
+    public int offsetOf(int line, int column) {
+        if (line < 0 || line >= lineCount() || column < 0) return -1;
+        int start = lineStart(line);
+        return column <= lineEnd(line) - start ? start + column : -1;
+    }
+
+    private static boolean editInPlace(Segment node, int offset, int deleteLength, int insertLength, int[] inserted) {
+        int leftSize = size(node.left);
+        boolean handled;
+        if (node.left != null && offset + deleteLength <= leftSize) {
+            handled = editInPlace(node.left, offset, deleteLength, insertLength, inserted);
+        } else if (offset >= leftSize && offset + deleteLength <= leftSize + node.length) {
+            if (node.length - deleteLength + insertLength > MAX_SEGMENT_CHARS) return false;
+            replaceInSegment(node, offset - leftSize, deleteLength, insertLength, inserted);
+            handled = true;
+        } else if (node.right != null && offset >= leftSize + node.length) {
+            handled = editInPlace(node.right, offset - leftSize - node.length, deleteLength, insertLength, inserted);
+        } else {
+            return false;
+        }
+        if (handled) update(node);
+        return handled;
+    }
+
+    private static void replaceInSegment(Segment segment, int cut, int deleteLength, int insertLength, int[] inserted) {
+        int delta = insertLength - deleteLength;
+        int[] result = new int[segment.newlines.length + inserted.length];
+        int count = 0;
+        for (int newline : segment.newlines) {
+            if (newline >= cut) break;
+            result[count++] = newline;
+        }
+        for (int newline : inserted) result[count++] = newline + cut;
+        for (int newline : segment.newlines) {
+            if (newline >= cut + deleteLength) result[count++] = newline + delta;
+        }
+        segment.newlines = Arrays.copyOf(result, count);
+        segment.length += delta;
+    }
+
+    private static Segment build(String text) {
+        Segment result = null;
+        for (int start = 0; start < text.length(); start += MAX_SEGMENT_CHARS / 2) {
+            int end = Math.min(text.length(), start + MAX_SEGMENT_CHARS / 2);
+            result = merge(result, new Segment(end - start, newlines(text, start, end)));
+        }
+        return result;
+    }
+
+    /** The newlines in [start, end) of the text, relative to start. Scans only that range, not to the end of the text. */
+    private static int[] newlines(String text, int start, int end) {
+        int count = 0;
+        int[] newlines = new int[8];
+        for (int i = start; i < end; i++) {
+            if (text.charAt(i) != '\n') continue;
+            if (count == newlines.length) newlines = Arrays.copyOf(newlines, count * 2);
+            newlines[count++] = i - start;
+        }
+        return Arrays.copyOf(newlines, count);
+    }
+
+    private static int size(Segment node) {
+        return node == null ? 0 : node.subtreeLength;
+    }
+
+    private static int newlines(Segment node) {
+        return node == null ? 0 : node.subtreeNewlines;
+    }
+
+    private static void update(Segment node) {
+        node.subtreeLength = size(node.left) + node.length + size(node.right);
+        node.subtreeNewlines = newlines(node.left) + node.newlines.length + newlines(node.right);
+    }
+
+    /** Splits into segments covering [0, offset) and [offset, end), cutting one segment if needed. */
+    private static Segment[] split(Segment node, int offset) {
+        if (node == null) return new Segment[2];
+        int leftSize = size(node.left);
+        if (offset <= leftSize) {
+            Segment[] parts = split(node.left, offset);
+            node.left = parts[1];
+            update(node);
+            return new Segment[]{parts[0], node};
+        }
+        if (offset >= leftSize + node.length) {
+            Segment[] parts = split(node.right, offset - leftSize - node.length);
+            node.right = parts[0];
+            update(node);
+            return new Segment[]{node, parts[1]};
+        }
+        int cut = offset - leftSize;
+        int first = 0;
+        while (first < node.newlines.length && node.newlines[first] < cut) first++;
+        int[] tailNewlines = new int[node.newlines.length - first];
+        for (int i = first; i < node.newlines.length; i++) tailNewlines[i - first] = node.newlines[i] - cut;
+        Segment tail = new Segment(node.length - cut, tailNewlines);
+        Segment rest = merge(tail, node.right);
+        node.newlines = Arrays.copyOf(node.newlines, first);
+        node.length = cut;
+        node.right = null;
+        update(node);
+        return new Segment[]{node, rest};
+    }
+
+    private static Segment merge(Segment left, Segment right) {
+        if (left == null) return right;
+        if (right == null) return left;
+        if (left.priority > right.priority) {
+            left.right = merge(left.right, right);
+            update(left);
+            return left;
+        }
+        right.left = merge(left, right.left);
+        update(right);
+        return right;
+    }
+}
@@ -0,0 +1,271 @@
+package shared;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Leveled logging that keeps console I/O off the calling thread.
+ * <p>
+ * A call below the current level returns after one comparison: nothing is
+ * formatted or allocated. Enabled events are copied into a fixed ring buffer
+ * (template plus up to three arguments) and a daemon thread formats and prints
+ * them, INFO and below to stdout and WARN/ERROR to stderr, as "[Tag] message".
+ * When the ring is full the event is dropped and counted rather than blocking
+ * the caller. Templates use "{}" placeholders; a Throwable after the last
+ * placeholder's argument has its stack trace printed.
+ * <p>
+ * Settings: -Dlog.level=TRACE|DEBUG|INFO|WARN|ERROR|OFF (default INFO) and
+ * -Dlog.sample=N, how many per-message events a {@link Sampler} skips per one it logs (default 100).
+ */
+public final class Log {
+    public enum Level { TRACE, DEBUG, INFO, WARN, ERROR, OFF }
+
+    private static final int RING_SIZE = 8192;
+    private static final int DEFAULT_SAMPLE = Math.max(1, Integer.getInteger("log.sample", 100));
+    private static volatile Level threshold = parseLevel(System.getProperty("log.level"));
+
+    private final String tag;
+
+    private Log(String tag) {
+        this.tag = tag;
+    }
+
+    /** @param tag printed in brackets before each message; empty for none */
+    public static Log get(String tag) {
+        return new Log(tag);
+    }
+
+    public static void setLevel(Level level) { threshold = level; }
+    public static Level getLevel() { return threshold; }
+
+    /** Prints everything logged so far before returning, e.g. at the end of a shutdown hook. */
+    public static void flush() {
+        Ring.INSTANCE.drain();
+    }
+
+    public boolean isEnabled(Level level) {
+        return level.ordinal() >= threshold.ordinal() && level != Level.OFF;
+    }
+
+    public void trace(String template) { log(Level.TRACE, template, null, null, null, 0); }
+    public void trace(String template, Object a) { log(Level.TRACE, template, a, null, null, 1); }
+    public void trace(String template, Object a, Object b) { log(Level.TRACE, template, a, b, null, 2); }
+    public void trace(String template, Object a, Object b, Object c) { log(Level.TRACE, template, a, b, c, 3); }
+
+    public void debug(String template) { log(Level.DEBUG, template, null, null, null, 0); }
+    public void debug(String template, Object a) { log(Level.DEBUG, template, a, null, null, 1); }
+    public void debug(String template, Object a, Object b) { log(Level.DEBUG, template, a, b, null, 2); }
+    public void debug(String template, Object a, Object b, Object c) { log(Level.DEBUG, template, a, b, c, 3); }
+
+    public void info(String template) { log(Level.INFO, template, null, null, null, 0); }
+    public void info(String template, Object a) { log(Level.INFO, template, a, null, null, 1); }
+    public void info(String template, Object a, Object b) { log(Level.INFO, template, a, b, null, 2); }
+    public void info(String template, Object a, Object b, Object c) { log(Level.INFO, template, a, b, c, 3); }
+
+    public void warn(String template) { log(Level.WARN, template, null, null, null, 0); }
+    public void warn(String template, Object a) { log(Level.WARN, template, a, null, null, 1); }
+    public void warn(String template, Object a, Object b) { log(Level.WARN, template, a, b, null, 2); }
+    public void warn(String template, Object a, Object b, Object c) { log(Level.WARN, template, a, b, c, 3); }
+
+    public void error(String template) { log(Level.ERROR, template, null, null, null, 0); }
+    public void error(String template, Object a) { log(Level.ERROR, template, a, null, null, 1); }
+    public void error(String template, Object a, Object b) { log(Level.ERROR, template, a, b, null, 2); }
+    public void error(String template, Object a, Object b, Object c) { log(Level.ERROR, template, a, b, c, 3); }
+
+    private void log(Level level, String template, Object a, Object b, Object c, int arguments) {
+        if (!isEnabled(level)) return;
+        Ring.INSTANCE.publish(this, level, template, a, b, c, arguments, 0);
+    }
+
+    /** A sampler for an event that happens per message; create one per call site and keep it in a static field. */
+    public Sampler sampled(Level level) {
+        return new Sampler(level, DEFAULT_SAMPLE);
+    }
+
+    /**
+     * Logs the first of every {@code every} calls and says how many it stands for,
+     * so per-message events stay visible without costing a line each.
+     */
+    public final class Sampler {
+        private final Level level;
+        private final int every;
+        private final AtomicLong calls = new AtomicLong();
+
+        private Sampler(Level level, int every) {
+            this.level = level;
+            this.every = every;
+        }
+
+        public void log(String template) { sample(template, null, null, null, 0); }
+        public void log(String template, Object a) { sample(template, a, null, null, 1); }
+        public void log(String template, Object a, Object b) { sample(template, a, b, null, 2); }
+        public void log(String template, Object a, Object b, Object c) { sample(template, a, b, c, 3); }
+
+        private void sample(String template, Object a, Object b, Object c, int arguments) {
+            if (!isEnabled(level)) return;
+            if (calls.getAndIncrement() % every != 0) return;
+            Ring.INSTANCE.publish(Log.this, level, template, a, b, c, arguments, every);
+        }
+    }
+
+    private static Level parseLevel(String value) {
+        if (value == null) return Level.INFO;
+        try {
+            return Level.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return Level.INFO;
+        }
+    }
+
+    /**
+     * Bounded multi-producer, single-consumer ring of preallocated events. A slot's
+     * sequence number says whose turn it is: producers claim a slot by advancing
+     * {@code tail}, fill it and publish it by bumping its sequence; the writer
+     * thread does the reverse. No locks, so it is also safe on virtual threads.
+     */
+    private static final class Ring implements Runnable {
+        static final Ring INSTANCE = new Ring();
+
+        private static final class Event {
+            Log log;
+            Level level;
+            String template;
+            Object a, b, c;
+            int arguments;
+            int sampled;
+        }
+
+        private final Event[] events = new Event[RING_SIZE];
+        private final AtomicLongArray sequences = new AtomicLongArray(RING_SIZE);
+        private final AtomicLong tail = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        // The writer thread and the shutdown hook both drain
+        private final ReentrantLock drainLock = new ReentrantLock();
+        private final Thread writer;
+        private long head;
+
+        private Ring() {
+            for (int i = 0; i < RING_SIZE; i++) {
+                events[i] = new Event();
+                sequences.set(i, i);
+            }
+            writer = new Thread(this, "log-writer");
+            writer.setDaemon(true);
+            writer.start();
+            try {
+                Runtime.getRuntime().addShutdownHook(new Thread(this::drain, "log-flush"));
+            } catch (IllegalStateException e) {
+                // First used by a thread that outlived main while the JVM shuts down
+            }
+        }
+
+        void publish(Log log, Level level, String template, Object a, Object b, Object c, int arguments, int sampled) {
+            long position;
+            while (true) {
+                position = tail.get();
+                long difference = sequences.get((int) (position & (RING_SIZE - 1))) - position;
+                if (difference < 0) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+                if (difference == 0 && tail.compareAndSet(position, position + 1)) break;
+            }
+            int slot = (int) (position & (RING_SIZE - 1));
+            Event event = events[slot];
+            event.log = log;
+            event.level = level;
+            event.template = template;
+            event.a = a;
+            event.b = b;
+            event.c = c;
+            event.arguments = arguments;
+            event.sampled = sampled;
+            sequences.set(slot, position + 1);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                if (!drain()) LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(5));
+            }
+        }
+
+        /** Prints everything published so far; true if there was anything. */
+        private boolean drain() {
+            drainLock.lock();
+            try {
+                return drainLocked();
+            } finally {
+                drainLock.unlock();
+            }
+        }
+
+        private boolean drainLocked() {
+            PrintStream out = System.out;
+            PrintStream err = System.err;
+            boolean wroteOut = false, wroteErr = false;
+            while (true) {
+                int slot = (int) (head & (RING_SIZE - 1));
+                if (sequences.get(slot) != head + 1) break;
+                Event event = events[slot];
+                String line = format(event);
+                boolean error = event.level.ordinal() >= Level.WARN.ordinal();
+                Throwable thrown = trailingThrowable(event);
+                event.a = event.b = event.c = null;
+                event.template = null;
+                sequences.set(slot, head + RING_SIZE);
+                head++;
+                PrintStream target = error ? err : out;
+                target.println(line);
+                if (thrown != null) thrown.printStackTrace(target);
+                if (error) wroteErr = true; else wroteOut = true;
+            }
+            long lost = dropped.getAndSet(0);
+            if (lost > 0) {
+                err.println("[Log] Dropped " + lost + " log event(s): ring buffer full");
+                wroteErr = true;
+            }
+            if (wroteOut) out.flush();
+            if (wroteErr) err.flush();
+            return wroteOut || wroteErr;
+        }
+
+        private static String format(Event event) {
+            StringBuilder line = new StringBuilder(event.template.length() + 32);
+            if (!event.log.tag.isEmpty()) line.append('[').append(event.log.tag).append("] ");
+            int argument = 0;
+            int start = 0;
+            int placeholder;
+            while ((placeholder = event.template.indexOf("{}", start)) >= 0) {
+                line.append(event.template, start, placeholder);
+                line.append(argument < event.arguments ? argument(event, argument) : "{}");
+                argument++;
+                start = placeholder + 2;
+            }
+            line.append(event.template, start, event.template.length());
+            if (event.sampled > 1) line.append(" (1 of ").append(event.sampled).append(')');
+            return line.toString();
+        }
+
+        private static Throwable trailingThrowable(Event event) {
+            if (event.arguments == 0) return null;
+            Object last = argument(event, event.arguments - 1);
+            if (!(last instanceof Throwable thrown)) return null;
+            int placeholders = 0;
+            for (int i = event.template.indexOf("{}"); i >= 0; i = event.template.indexOf("{}", i + 2)) placeholders++;
+            return placeholders < event.arguments ? thrown : null;
+        }
+
+        private static Object argument(Event event, int index) {
+            return switch (index) {
+                case 0 -> event.a;
+                case 1 -> event.b;
+                default -> event.c;
+            };
+        }
+    }
+}
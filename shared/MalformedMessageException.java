@@ -0,0 +1,16 @@
+package shared;
+
+import java.io.IOException;
+
+/** The peer sent a line or frame that cannot be decoded; the connection cannot continue. */
+public class MalformedMessageException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public MalformedMessageException(String message) {
+        super(message);
+    }
+
+    public MalformedMessageException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,79 @@
+package shared;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import static shared.SharedConstants.*;
+
+/**
+ * One protocol message: its type followed by its fields, laid out like the
+ * array {@link SharedConstants#parseMessage} returns. The same message can be
+ * written in either {@link WireFormat}; nothing is escaped or split until then.
+ * Treat {@link #parts()} as read-only.
+ * <p>
+ * Each format is encoded at most once per message and the bytes are shared by
+ * every connection that writes it, so a broadcast costs one encoding however many
+ * clients receive it. A message read as a text line keeps that line and relays it
+ * unchanged.
+ */
+public final class Message {
+    private final String[] parts;
+    private final String line;
+    // Written at most once each (a race only encodes twice); never modified afterwards
+    private volatile ByteBuffer textFrame;
+    private volatile ByteBuffer binaryFrame;
+
+    private Message(String[] parts, String line) {
+        this.parts = parts;
+        this.line = line;
+    }
+
+    public static Message of(String type, String... fields) {
+        String[] parts = new String[fields.length + 1];
+        parts[0] = type;
+        for (int i = 0; i < fields.length; i++) parts[i + 1] = fields[i] == null ? "" : fields[i];
+        return new Message(parts, null);
+    }
+
+    /** Wraps decoded fields without copying; parts[0] is the type. */
+    static Message wrap(String[] parts) {
+        return new Message(parts, null);
+    }
+
+    /** Parses one line of the text protocol. */
+    public static Message fromText(String line) {
+        return new Message(parseMessage(line), line);
+    }
+
+    /** The line this message is in the text protocol, without the trailing newline. */
+    public String toText() {
+        if (line != null) return line;
+        return buildMessage(parts[0], Arrays.copyOfRange(parts, 1, parts.length));
+    }
+
+    /**
+     * The message as it goes on the wire in {@code format}: a read-only view of the
+     * shared encoding, with its own position for the caller to consume.
+     */
+    public ByteBuffer encoded(WireFormat format) {
+        return frame(format).asReadOnlyBuffer();
+    }
+
+    /** The shared encoding itself, for writers in this package that copy out of its array. */
+    ByteBuffer frame(WireFormat format) {
+        ByteBuffer frame = format == WireFormat.BINARY ? binaryFrame : textFrame;
+        if (frame == null) {
+            frame = format.encode(this);
+            if (format == WireFormat.BINARY) binaryFrame = frame;
+            else textFrame = frame;
+        }
+        return frame;
+    }
+
+    public String getType() { return parts[0]; }
+    public String[] parts() { return parts; }
+
+    @Override
+    public String toString() {
+        return String.join(PROTOCOL_DELIMITER, parts);
+    }
+}
@@ -0,0 +1,99 @@
+package shared;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads messages from a stream in either {@link WireFormat}. Unlike a BufferedReader
+ * it keeps read-ahead bytes when the format changes, so a switch to BINARY right
+ * after a text line loses nothing. A PROTOCOL message switches the format itself.
+ * Compressed frames are inflated whenever they arrive. Not thread-safe.
+ */
+public class MessageReader {
+    private final InputStream in;
+    private final int maxLength;
+    private byte[] buffer = new byte[8192];
+    private int position;
+    private int limit;
+    private WireFormat format = WireFormat.TEXT;
+    private final FrameCompression.Decompressor decompressor = new FrameCompression.Decompressor();
+
+    public MessageReader(InputStream in) {
+        this(in, BinaryCodec.MAX_FRAME_LENGTH);
+    }
+
+    /** @param maxLength the longest line or frame accepted, in bytes; a longer one fails the read */
+    public MessageReader(InputStream in, int maxLength) {
+        this.in = in;
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * @return the next message, or null at end of stream
+     * @throws MalformedMessageException if the line is too long or the frame cannot be decoded
+     */
+    public Message read() throws IOException {
+        Message message = format == WireFormat.TEXT ? readLine() : readFrame();
+        if (message != null) {
+            WireFormat announced = WireFormat.announcedBy(message);
+            if (announced != null) format = announced;
+        }
+        return message;
+    }
+
+    private Message readLine() throws IOException {
+        int scan = position;
+        while (true) {
+            for (int i = scan; i < limit; i++) {
+                if (buffer[i] != '\n') continue;
+                int end = i > position && buffer[i - 1] == '\r' ? i - 1 : i;
+                String line = new String(buffer, position, end - position, StandardCharsets.UTF_8);
+                position = i + 1;
+                return Message.fromText(line);
+            }
+            scan = limit - position;
+            if (scan > maxLength) throw new MalformedMessageException("Line longer than " + maxLength + " bytes");
+            if (!fill()) return null;
+        }
+    }
+
+    private Message readFrame() throws IOException {
+        while (true) {
+            ByteBuffer view = ByteBuffer.wrap(buffer, position, limit - position);
+            try {
+                Message message = BinaryCodec.decode(view, decompressor, maxLength);
+                if (message != null) {
+                    position = view.position();
+                    return message;
+                }
+            } catch (IllegalArgumentException e) {
+                throw new MalformedMessageException("Malformed frame: " + e.getMessage(), e);
+            }
+            if (!fill()) return null;
+        }
+    }
+
+    /** Moves unread bytes to the front, grows the buffer if it is full, and reads more. */
+    private boolean fill() throws IOException {
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+        }
+        if (limit == buffer.length) buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        int read = in.read(buffer, limit, buffer.length - limit);
+        if (read < 0) return false;
+        limit += read;
+        return true;
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+
+    public void setFormat(WireFormat format) { this.format = format; }
+    public WireFormat getFormat() { return format; }
+}
@@ -0,0 +1,50 @@
+package shared;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes messages to a stream in either {@link WireFormat}, buffering until
+ * {@link #flush()}. Writing a PROTOCOL message switches the format after it,
+ * and turns on compression if it announces it. Not thread-safe.
+ */
+public class MessageWriter {
+    private final OutputStream out;
+    private WireFormat format = WireFormat.TEXT;
+    private FrameCompression.Compressor compressor;
+
+    public MessageWriter(OutputStream out) {
+        // BufferedOutputStream locks without a monitor, so it does not pin virtual threads.
+        this.out = new BufferedOutputStream(out, 8192);
+    }
+
+    /** @return the bytes written for the message, after compression */
+    public int write(Message message) throws IOException {
+        ByteBuffer frame = message.frame(format);
+        if (compressor != null) frame = compressor.compress(frame);
+        int length = frame.remaining();
+        out.write(frame.array(), frame.arrayOffset() + frame.position(), length);
+        WireFormat announced = WireFormat.announcedBy(message);
+        if (announced != null) format = announced;
+        if (WireFormat.announcesCompression(message)) enableCompression();
+        return length;
+    }
+
+    /** Compresses large frames from the next message on; only valid in BINARY. */
+    public void enableCompression() {
+        if (compressor == null) compressor = new FrameCompression.Compressor();
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    public void close() throws IOException {
+        out.close();
+    }
+
+    public void setFormat(WireFormat format) { this.format = format; }
+    public WireFormat getFormat() { return format; }
+}
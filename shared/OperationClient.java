@@ -0,0 +1,152 @@
+package shared;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Client side of revisioned OT for one document.
+ * Local edits are buffered (and composed where possible) until {@link #flush()}
+ * sends them as one batch. At most one batch is in flight to the server; edits
+ * made while waiting for its ACK stay buffered. Remote edits are transformed past
+ * both before they are applied locally, so every replica converges on the
+ * server's order. Not thread-safe; drive it from a single thread.
+ */
+public class OperationClient {
+    private static final int EDIT_OVERHEAD = 24;
+    private int revision;
+    private boolean synced;
+    private boolean awaitingAck;
+    private List<TextEdit> outstanding = List.of();
+    private List<TextEdit> buffer = new ArrayList<>();
+
+    /** Adopts a server snapshot at {@code revision}, dropping anything unacknowledged. */
+    public void reset(int revision) {
+        this.revision = revision;
+        this.synced = true;
+        this.awaitingAck = false;
+        this.outstanding = List.of();
+        this.buffer = new ArrayList<>();
+    }
+
+    /** Records an edit the user already made locally; the next {@link #flush()} sends it. */
+    public void localEdit(TextEdit edit) {
+        if (synced) TextEdit.append(buffer, edit);
+    }
+
+    /**
+     * Takes what is buffered as the next batch to send. A batch carries at most
+     * {@link SharedConstants#CHUNK_CHARS} characters of text; a larger paste is split
+     * into consecutive inserts that go out one batch per ACK, so other clients' edits
+     * are sequenced in between instead of waiting behind one huge message.
+     * @return the edits to send in order, based on {@link #getRevision()}; empty while
+     *         nothing is buffered or an earlier batch still awaits its ACK
+     */
+    public List<TextEdit> flush() {
+        if (awaitingAck || buffer.isEmpty()) return List.of();
+        awaitingAck = true;
+        int chars = 0;
+        int count = 0;
+        while (count < buffer.size()) {
+            TextEdit edit = buffer.get(count);
+            if (edit.getText().length() > SharedConstants.CHUNK_CHARS) {
+                buffer.remove(count);
+                buffer.addAll(count, split(edit));
+                edit = buffer.get(count);
+            }
+            // Position and lengths take up to about this much of the encoded batch too.
+            chars += edit.getText().length() + EDIT_OVERHEAD;
+            if (count > 0 && chars > SharedConstants.CHUNK_CHARS) break;
+            count++;
+        }
+        if (count == buffer.size()) {
+            outstanding = buffer;
+            buffer = new ArrayList<>();
+        } else {
+            outstanding = new ArrayList<>(buffer.subList(0, count));
+            buffer.subList(0, count).clear();
+        }
+        return outstanding;
+    }
+
+    /** The edit as a replace with the first piece of its text, then inserts of the rest after it. */
+    private static List<TextEdit> split(TextEdit edit) {
+        String text = edit.getText();
+        List<TextEdit> pieces = new ArrayList<>();
+        int offset = 0;
+        while (offset < text.length()) {
+            int end = Math.min(text.length(), offset + SharedConstants.CHUNK_CHARS);
+            if (end < text.length() && Character.isHighSurrogate(text.charAt(end - 1))) end--;
+            String piece = text.substring(offset, end);
+            int position = edit.getPosition() + offset;
+            pieces.add(offset == 0 ? TextEdit.replace(position, edit.getDeleteLength(), piece) : TextEdit.insert(position, piece));
+            offset = end;
+        }
+        return pieces;
+    }
+
+    /**
+     * The server applied our in-flight batch; its last edit became {@code revision}.
+     * @return the edits buffered meanwhile, to send now as the next batch (may be empty)
+     */
+    public List<TextEdit> acknowledge(int revision) {
+        this.revision = revision;
+        this.awaitingAck = false;
+        this.outstanding = List.of();
+        return flush();
+    }
+
+    /**
+     * Another client's edit, sequenced by the server as {@code revision}.
+     * @return the edits to apply to the local text, in order
+     */
+    public List<TextEdit> remoteEdit(TextEdit edit, int revision) {
+        if (!synced || revision <= this.revision) return List.of();
+        this.revision = revision;
+        OperationTransform.Result pastOutstanding = OperationTransform.transform(List.of(edit), outstanding, true);
+        outstanding = pastOutstanding.against();
+        OperationTransform.Result pastBuffer = OperationTransform.transform(pastOutstanding.ops(), buffer, true);
+        buffer = new ArrayList<>(pastBuffer.against());
+        return pastBuffer.ops();
+    }
+
+    /**
+     * True if the server's revision is all a reconnecting client needs to send to
+     * catch up: no batch is in flight, whose fate the dropped connection left unknown.
+     */
+    public boolean canResume() {
+        return synced && !awaitingAck;
+    }
+
+    /**
+     * The revisions to resume from, as the JOIN field {@code name=revision,...}; documents
+     * that cannot resume are left out, so the server sends them a full SYNC.
+     */
+    public static String encodeRevisions(Map<String, OperationClient> clients) {
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, OperationClient> entry : clients.entrySet()) {
+            if (!entry.getValue().canResume()) continue;
+            if (out.length() > 0) out.append(',');
+            out.append(entry.getKey()).append('=').append(entry.getValue().getRevision());
+        }
+        return out.toString();
+    }
+
+    /** Parses {@link #encodeRevisions}; malformed entries are skipped. */
+    public static Map<String, Integer> decodeRevisions(String encoded) {
+        Map<String, Integer> revisions = new HashMap<>();
+        for (String entry : encoded.split(",")) {
+            int equals = entry.lastIndexOf('=');
+            if (equals <= 0) continue;
+            try {
+                revisions.put(entry.substring(0, equals), Integer.parseInt(entry.substring(equals + 1)));
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return revisions;
+    }
+
+    public int getRevision() { return revision; }
+    public boolean isSynced() { return synced; }
+}
@@ -0,0 +1,84 @@
+package shared;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Operational transformation for {@link TextEdit}s.
+ * <p>
+ * {@code transform(a, b, aFirst)} rewrites {@code a}, which was made against the
+ * same document state as {@code b}, so it can be applied after {@code b}. For any
+ * state S: apply(apply(S, a), transform(b, a, !aFirst)) equals
+ * apply(apply(S, b), transform(a, b, aFirst)). {@code aFirst} breaks ties when
+ * both edits insert at the same position; the server's already-sequenced edit
+ * always goes first.
+ * <p>
+ * Overlapping deletes merge, and text inserted inside a range the other edit
+ * deleted is kept. That is why a single edit can transform into two.
+ */
+public final class OperationTransform {
+    public record Result(List<TextEdit> ops, List<TextEdit> against) { }
+
+    private OperationTransform() {
+        throw new IllegalStateException("Utility class - cannot be instantiated");
+    }
+
+    /** Transforms {@code op} to apply after {@code against}. Returns 0-2 edits, applied in order. */
+    public static List<TextEdit> transform(TextEdit op, TextEdit against, boolean opFirst) {
+        if (op.isNoop()) return List.of();
+        if (against.isNoop()) return List.of(op);
+        int p1 = op.getPosition(), e1 = op.end();
+        int p2 = against.getPosition(), e2 = against.end();
+        int inserted = against.getText().length();
+
+        if (op.getDeleteLength() == 0 && against.getDeleteLength() == 0 && p1 == p2) {
+            return List.of(opFirst ? op : op.shift(inserted));
+        }
+        if (e1 <= p2) return List.of(op);
+        if (e2 <= p1) return List.of(op.shift(against.lengthDelta()));
+
+        // Overlap: keep the parts of op's range that survive against, and put op's text
+        // on the side of against's text where op started.
+        boolean before = p1 < p2 || (p1 == p2 && opFirst);
+        int afterAgainst = p2 + inserted;
+        int leftLength = Math.max(0, p2 - p1);
+        int rightLength = Math.max(0, e1 - e2);
+        TextEdit left = TextEdit.replace(Math.min(p1, p2), leftLength, before ? op.getText() : "");
+        TextEdit right = TextEdit.replace(afterAgainst, rightLength, before ? "" : op.getText());
+        // Right first: it sits after the left edit, so neither shifts the other.
+        List<TextEdit> result = new ArrayList<>(2);
+        if (!right.isNoop()) result.add(right);
+        if (!left.isNoop()) result.add(left);
+        return result;
+    }
+
+    /**
+     * Transforms two concurrent edit sequences against each other.
+     * {@code ops} comes back rewritten to follow {@code against}, and {@code against}
+     * rewritten to follow {@code ops}.
+     */
+    public static Result transform(List<TextEdit> ops, List<TextEdit> against, boolean opsFirst) {
+        if (ops.isEmpty() || against.isEmpty()) return new Result(ops, against);
+        if (ops.size() == 1 && against.size() == 1) {
+            return new Result(transform(ops.get(0), against.get(0), opsFirst),
+                    transform(against.get(0), ops.get(0), !opsFirst));
+        }
+        if (ops.size() > 1) {
+            Result head = transform(ops.subList(0, 1), against, opsFirst);
+            Result rest = transform(ops.subList(1, ops.size()), head.against(), opsFirst);
+            return new Result(concat(head.ops(), rest.ops()), rest.against());
+        }
+        Result head = transform(ops, against.subList(0, 1), opsFirst);
+        Result rest = transform(head.ops(), against.subList(1, against.size()), opsFirst);
+        return new Result(rest.ops(), concat(head.against(), rest.against()));
+    }
+
+    private static List<TextEdit> concat(List<TextEdit> first, List<TextEdit> second) {
+        if (first.isEmpty()) return second;
+        if (second.isEmpty()) return first;
+        List<TextEdit> joined = new ArrayList<>(first.size() + second.size());
+        joined.addAll(first);
+        joined.addAll(second);
+        return joined;
+    }
+}
@@ -0,0 +1,181 @@
+package shared;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Editable text stored as a piece table: the original text plus an append-only
+ * buffer of inserted text, described by a sequence of pieces.
+ * The pieces live in an implicit treap ordered by position, so insert and delete
+ * at any offset are O(log n) and never copy the document.
+ * Not thread-safe.
+ */
+public class PieceTable {
+    private static final class Piece {
+        final boolean added;
+        final int start;
+        int length;
+        final int priority = ThreadLocalRandom.current().nextInt();
+        Piece left, right;
+        int subtreeLength;
+
+        Piece(boolean added, int start, int length) {
+            this.added = added;
+            this.start = start;
+            this.length = length;
+            this.subtreeLength = length;
+        }
+    }
+
+    private final String original;
+    private final StringBuilder addBuffer = new StringBuilder();
+    private Piece root;
+
+    public PieceTable() {
+        this("");
+    }
+
+    public PieceTable(String text) {
+        this.original = text;
+        this.root = text.isEmpty() ? null : new Piece(false, 0, text.length());
+    }
+
+    public int length() {
+        return size(root);
+    }
+
+    public void insert(int offset, String text) {
+        checkRange(offset, 0);
+        if (text.isEmpty()) return;
+        Piece[] halves = split(root, offset);
+        Piece left = halves[0];
+        // Consecutive typing keeps growing the newest piece instead of adding a node per keystroke.
+        if (left != null && extendsLastAppend(rightmost(left))) {
+            addBuffer.append(text);
+            growRightmost(left, text.length());
+            root = merge(left, halves[1]);
+            return;
+        }
+        Piece piece = new Piece(true, addBuffer.length(), text.length());
+        addBuffer.append(text);
+        root = merge(merge(left, piece), halves[1]);
+    }
+
+    public void delete(int offset, int length) {
+        checkRange(offset, length);
+        if (length == 0) return;
+        Piece[] head = split(root, offset);
+        Piece[] tail = split(head[1], length);
+        root = merge(head[0], tail[1]);
+    }
+
+    public char charAt(int index) {
+        if (index < 0 || index >= length()) throw new IndexOutOfBoundsException("index " + index + ", length " + length());
+        Piece node = root;
+        while (true) {
+            int leftSize = size(node.left);
+            if (index < leftSize) {
+                node = node.left;
+            } else if (index < leftSize + node.length) {
+                return buffer(node).charAt(node.start + index - leftSize);
+            } else {
+                index -= leftSize + node.length;
+                node = node.right;
+            }
+        }
+    }
+
+    public String substring(int start, int end) {
+        checkRange(start, end - start);
+        StringBuilder out = new StringBuilder(end - start);
+        appendRange(root, start, end, out);
+        return out.toString();
+    }
+
+    @Override
+    public String toString() {
+        return substring(0, length());
+    }
+
+    private void appendRange(Piece node, int start, int end, StringBuilder out) {
+        if (node == null || start >= end) return;
+        int leftSize = size(node.left);
+        if (start < leftSize) appendRange(node.left, start, Math.min(end, leftSize), out);
+        int from = Math.max(start, leftSize);
+        int to = Math.min(end, leftSize + node.length);
+        if (from < to) out.append(buffer(node), node.start + from - leftSize, node.start + to - leftSize);
+        int rightOffset = leftSize + node.length;
+        if (end > rightOffset) appendRange(node.right, Math.max(0, start - rightOffset), end - rightOffset, out);
+    }
+
+    private void checkRange(int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > length()) {
+            throw new IndexOutOfBoundsException("range [" + offset + ", " + (offset + length) + ") outside length " + length());
+        }
+    }
+
+    private CharSequence buffer(Piece piece) {
+        return piece.added ? addBuffer : original;
+    }
+
+    private boolean extendsLastAppend(Piece piece) {
+        return piece.added && piece.start + piece.length == addBuffer.length();
+    }
+
+    private static Piece rightmost(Piece node) {
+        while (node.right != null) node = node.right;
+        return node;
+    }
+
+    private static void growRightmost(Piece node, int extra) {
+        for (Piece n = node; n != null; n = n.right) {
+            n.subtreeLength += extra;
+            if (n.right == null) n.length += extra;
+        }
+    }
+
+    private static int size(Piece node) {
+        return node == null ? 0 : node.subtreeLength;
+    }
+
+    private static void update(Piece node) {
+        node.subtreeLength = size(node.left) + node.length + size(node.right);
+    }
+
+    /** Splits into pieces covering [0, offset) and [offset, end), cutting one piece if needed. */
+    private static Piece[] split(Piece node, int offset) {
+        if (node == null) return new Piece[2];
+        int leftSize = size(node.left);
+        if (offset <= leftSize) {
+            Piece[] parts = split(node.left, offset);
+            node.left = parts[1];
+            update(node);
+            return new Piece[]{parts[0], node};
+        }
+        if (offset >= leftSize + node.length) {
+            Piece[] parts = split(node.right, offset - leftSize - node.length);
+            node.right = parts[0];
+            update(node);
+            return new Piece[]{node, parts[1]};
+        }
+        int cut = offset - leftSize;
+        Piece tail = new Piece(node.added, node.start + cut, node.length - cut);
+        Piece rest = merge(tail, node.right);
+        node.length = cut;
+        node.right = null;
+        update(node);
+        return new Piece[]{node, rest};
+    }
+
+    private static Piece merge(Piece left, Piece right) {
+        if (left == null) return right;
+        if (right == null) return left;
+        if (left.priority > right.priority) {
+            left.right = merge(left.right, right);
+            update(left);
+            return left;
+        }
+        right.left = merge(left, right.left);
+        update(right);
+        return right;
+    }
+}
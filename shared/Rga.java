@@ -0,0 +1,365 @@
+package shared;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Replicated Growable Array: a sequence CRDT for one document.
+ * <p>
+ * Every character has a unique id (replica, counter), where counters follow a
+ * Lamport clock. A character is placed after the character it was typed after;
+ * concurrent inserts at the same spot are ordered by descending id. Deleted
+ * characters stay behind as tombstones. Replicas that apply the same set of ops,
+ * in any causal order, end up with the same text, and applying an op twice has no
+ * effect. Ops that arrive before the characters they refer to wait, indexed by
+ * the character they need, and are retried only once it is inserted. Each source
+ * of ops may have at most {@link #MAX_PENDING} of them waiting, so ops that refer
+ * to characters no replica ever typed cannot grow the replica without bound.
+ * <p>
+ * Characters are stored in runs: consecutive characters typed by one replica share
+ * one item, so the per-character metadata cost is spread across the run.
+ * Not thread-safe.
+ */
+public class Rga {
+    /** Runs stop growing here, so appending to one stays cheap. */
+    static final int MAX_RUN = 1024;
+    /** How many ops one source other than 0 may have waiting for characters this replica has not seen. */
+    public static final int MAX_PENDING = 1024;
+
+    private static final class Item {
+        final int replica;
+        final int counter;
+        final int originReplica;
+        final int originCounter;
+        String content;
+        int length;
+        boolean deleted;
+        Item prev, next;
+
+        Item(int replica, int counter, int originReplica, int originCounter, String content, int length) {
+            this.replica = replica;
+            this.counter = counter;
+            this.originReplica = originReplica;
+            this.originCounter = originCounter;
+            this.content = content;
+            this.length = length;
+        }
+
+        int visibleLength() { return deleted ? 0 : length; }
+        int lastCounter() { return counter + length - 1; }
+    }
+
+    private record Waiting(RgaOp op, long source) { }
+
+    private final int replica;
+    private final Item head = new Item(RgaOp.START, RgaOp.START, RgaOp.START, RgaOp.START, "", 0);
+    private final Map<Integer, TreeMap<Integer, Item>> index = new HashMap<>();
+    // Ops that wait, by the replica and counter of the character they need
+    private final Map<Integer, TreeMap<Integer, List<Waiting>>> waiting = new HashMap<>();
+    private final Map<Long, Integer> waitingBySource = new HashMap<>();
+    private int pendingCount;
+    private int clock;
+    private int visibleLength;
+    private int itemCount;
+
+    /** @param replica this replica's id; must be unique among collaborators and not {@link RgaOp#START} */
+    public Rga(int replica) {
+        if (replica == RgaOp.START) throw new IllegalArgumentException("replica id 0 is reserved");
+        this.replica = replica;
+    }
+
+    public int getReplica() { return replica; }
+    public int length() { return visibleLength; }
+    public int itemCount() { return itemCount; }
+    public int pendingCount() { return pendingCount; }
+
+    public String text() {
+        StringBuilder out = new StringBuilder(visibleLength);
+        for (Item item = head.next; item != null; item = item.next) {
+            if (!item.deleted) out.append(item.content);
+        }
+        return out.toString();
+    }
+
+    /** Inserts text typed at a visible index and returns the op to send to the other replicas. */
+    public RgaOp localInsert(int position, String text) {
+        if (position < 0 || position > visibleLength) throw new IndexOutOfBoundsException("position " + position);
+        if (text.isEmpty()) throw new IllegalArgumentException("empty insert");
+        Item origin = head;
+        int originCounter = RgaOp.START;
+        if (position > 0) {
+            int[] offset = new int[1];
+            origin = findVisible(position - 1, offset);
+            originCounter = origin.counter + offset[0];
+        }
+        RgaOp op = RgaOp.insert(replica, clock + 1, origin == head ? RgaOp.START : origin.replica, originCounter, text);
+        integrateInsert(op);
+        return op;
+    }
+
+    /** Deletes a visible range and returns the ops to send, one per run of consecutive ids. */
+    public List<RgaOp> localDelete(int position, int length) {
+        if (position < 0 || length < 0 || position + length > visibleLength) {
+            throw new IndexOutOfBoundsException("range " + position + "+" + length);
+        }
+        List<RgaOp> ops = new ArrayList<>();
+        while (length > 0) {
+            int[] offset = new int[1];
+            Item item = findVisible(position, offset);
+            if (offset[0] > 0) item = split(item, offset[0]);
+            if (item.length > length) split(item, length);
+            item.deleted = true;
+            item.content = null;
+            visibleLength -= item.length;
+            length -= item.length;
+            RgaOp last = ops.isEmpty() ? null : ops.get(ops.size() - 1);
+            if (last != null && last.getReplica() == item.replica && last.getCounter() + last.getLength() == item.counter) {
+                ops.set(ops.size() - 1, RgaOp.delete(item.replica, last.getCounter(), last.getLength() + item.length));
+            } else {
+                ops.add(RgaOp.delete(item.replica, item.counter, item.length));
+            }
+        }
+        return ops;
+    }
+
+    /**
+     * Applies an op from another replica.
+     * @return how the visible text changed, as edits to apply in order (empty for duplicates and ops still waiting)
+     */
+    public List<TextEdit> apply(RgaOp op) {
+        return apply(op, 0);
+    }
+
+    /**
+     * Applies an op received from {@code source}, e.g. one connection, which any ops
+     * it leaves waiting are counted against. Source 0 is not limited; {@link #apply(RgaOp)}
+     * uses it for ops that were already limited, e.g. replayed from a log.
+     * @throws IllegalStateException if the op has to wait and {@link #MAX_PENDING} ops of the source already do; the op is dropped
+     */
+    public List<TextEdit> apply(RgaOp op, long source) {
+        List<TextEdit> edits = new ArrayList<>();
+        if (!tryApply(op, edits)) {
+            if (source != 0 && waitingBySource.getOrDefault(source, 0) >= MAX_PENDING) {
+                throw new IllegalStateException(MAX_PENDING + " ops already wait for characters this replica has not seen");
+            }
+            park(new Waiting(op, source));
+            waitingBySource.merge(source, 1, Integer::sum);
+            pendingCount++;
+            return edits;
+        }
+        if (pendingCount > 0 && op.isInsert()) wake(op, edits);
+        return edits;
+    }
+
+    /** Drops the ops of {@code source} that are still waiting, e.g. when it is disconnected; returns how many. */
+    public int discardPending(long source) {
+        Integer count = waitingBySource.remove(source);
+        if (count == null) return 0;
+        for (Iterator<TreeMap<Integer, List<Waiting>>> replicas = waiting.values().iterator(); replicas.hasNext(); ) {
+            TreeMap<Integer, List<Waiting>> byCounter = replicas.next();
+            for (Iterator<List<Waiting>> lists = byCounter.values().iterator(); lists.hasNext(); ) {
+                List<Waiting> ops = lists.next();
+                ops.removeIf(entry -> entry.source() == source);
+                if (ops.isEmpty()) lists.remove();
+            }
+            if (byCounter.isEmpty()) replicas.remove();
+        }
+        pendingCount -= count;
+        return count;
+    }
+
+    /** Files the op under the first character it needs that is missing. */
+    private void park(Waiting entry) {
+        RgaOp op = entry.op();
+        int needReplica = op.isInsert() ? op.getOriginReplica() : op.getReplica();
+        int needCounter = op.isInsert() ? op.getOriginCounter() : op.getCounter();
+        if (!op.isInsert()) {
+            while (find(needReplica, needCounter) != null) needCounter++;
+        }
+        waiting.computeIfAbsent(needReplica, r -> new TreeMap<>()).computeIfAbsent(needCounter, c -> new ArrayList<>(1)).add(entry);
+    }
+
+    /** Retries the ops waiting for a character that {@code inserted} typed, then those waiting for theirs, and so on. */
+    private void wake(RgaOp inserted, List<TextEdit> edits) {
+        ArrayDeque<RgaOp> applied = new ArrayDeque<>();
+        applied.add(inserted);
+        while (!applied.isEmpty() && pendingCount > 0) {
+            RgaOp op = applied.poll();
+            TreeMap<Integer, List<Waiting>> byCounter = waiting.get(op.getReplica());
+            if (byCounter == null) continue;
+            Map<Integer, List<Waiting>> ready = byCounter.subMap(op.getCounter(), true, op.getCounter() + op.getLength() - 1, true);
+            if (ready.isEmpty()) continue;
+            List<Waiting> retry = new ArrayList<>();
+            for (List<Waiting> ops : ready.values()) retry.addAll(ops);
+            ready.clear();
+            if (byCounter.isEmpty()) waiting.remove(op.getReplica());
+            for (Waiting entry : retry) {
+                if (!tryApply(entry.op(), edits)) {
+                    // A delete that needs a later character of the range as well
+                    park(entry);
+                    continue;
+                }
+                waitingBySource.computeIfPresent(entry.source(), (source, count) -> count == 1 ? null : count - 1);
+                pendingCount--;
+                if (entry.op().isInsert()) applied.add(entry.op());
+            }
+        }
+    }
+
+    private boolean tryApply(RgaOp op, List<TextEdit> edits) {
+        if (op.isInsert()) {
+            if (find(op.getReplica(), op.getCounter()) != null) return true;
+            if (op.getOriginReplica() != RgaOp.START && find(op.getOriginReplica(), op.getOriginCounter()) == null) return false;
+            Item item = integrateInsert(op);
+            edits.add(TextEdit.insert(visibleIndexOf(item) + item.length - op.getLength(), op.getText()));
+            return true;
+        }
+        for (int c = op.getCounter(); c < op.getCounter() + op.getLength(); c++) {
+            if (find(op.getReplica(), c) == null) return false;
+        }
+        int counter = op.getCounter();
+        int remaining = op.getLength();
+        while (remaining > 0) {
+            Item item = find(op.getReplica(), counter);
+            if (item.counter < counter) item = split(item, counter - item.counter);
+            if (item.length > remaining) split(item, remaining);
+            if (!item.deleted) {
+                // Adjacent deleted runs merge into one edit, as a local range delete would produce.
+                int position = visibleIndexOf(item);
+                TextEdit last = edits.isEmpty() ? null : edits.get(edits.size() - 1);
+                if (last != null && last.isDelete() && last.getPosition() == position) {
+                    edits.set(edits.size() - 1, TextEdit.delete(position, last.getDeleteLength() + item.length));
+                } else {
+                    edits.add(TextEdit.delete(position, item.length));
+                }
+                item.deleted = true;
+                item.content = null;
+                visibleLength -= item.length;
+            }
+            counter += item.length;
+            remaining -= item.length;
+        }
+        return true;
+    }
+
+    /** Places the op's run and returns the item now ending with it (a run it extended, or a new item). */
+    private Item integrateInsert(RgaOp op) {
+        clock = Math.max(clock, op.getCounter() + op.getLength() - 1);
+        Item left = head;
+        if (op.getOriginReplica() != RgaOp.START) {
+            left = find(op.getOriginReplica(), op.getOriginCounter());
+            if (left.lastCounter() != op.getOriginCounter()) split(left, op.getOriginCounter() - left.counter + 1);
+        }
+        // Skip concurrent inserts at the same spot (and everything typed after them) that outrank this one.
+        Item right = left.next;
+        while (right != null && outranks(right, op)) {
+            left = right;
+            right = right.next;
+        }
+        visibleLength += op.getLength();
+        if (left != head && left.replica == op.getReplica() && !left.deleted
+                && left.lastCounter() + 1 == op.getCounter()
+                && left.lastCounter() == op.getOriginCounter() && left.replica == op.getOriginReplica()
+                && left.length + op.getLength() <= MAX_RUN) {
+            left.content += op.getText();
+            left.length += op.getLength();
+            return left;
+        }
+        Item item = new Item(op.getReplica(), op.getCounter(), op.getOriginReplica(), op.getOriginCounter(), op.getText(), op.getLength());
+        linkAfter(left, item);
+        return item;
+    }
+
+    private static boolean outranks(Item item, RgaOp op) {
+        if (item.counter != op.getCounter()) return item.counter > op.getCounter();
+        return item.replica > op.getReplica();
+    }
+
+    private void linkAfter(Item left, Item item) {
+        item.prev = left;
+        item.next = left.next;
+        if (left.next != null) left.next.prev = item;
+        left.next = item;
+        index.computeIfAbsent(item.replica, r -> new TreeMap<>()).put(item.counter, item);
+        itemCount++;
+    }
+
+    /** Splits an item so the second half starts {@code offset} characters in; returns the second half. */
+    private Item split(Item item, int offset) {
+        int counter = item.counter + offset;
+        Item tail = new Item(item.replica, counter, item.replica, counter - 1,
+                item.deleted ? null : item.content.substring(offset), item.length - offset);
+        tail.deleted = item.deleted;
+        if (!item.deleted) item.content = item.content.substring(0, offset);
+        item.length = offset;
+        linkAfter(item, tail);
+        return tail;
+    }
+
+    private Item find(int replica, int counter) {
+        TreeMap<Integer, Item> items = index.get(replica);
+        if (items == null) return null;
+        Map.Entry<Integer, Item> entry = items.floorEntry(counter);
+        if (entry == null || entry.getValue().lastCounter() < counter) return null;
+        return entry.getValue();
+    }
+
+    /** The item holding the visible character at {@code position}; offset[0] receives its offset in the item. */
+    private Item findVisible(int position, int[] offset) {
+        for (Item item = head.next; item != null; item = item.next) {
+            if (position < item.visibleLength()) {
+                offset[0] = position;
+                return item;
+            }
+            position -= item.visibleLength();
+        }
+        throw new IndexOutOfBoundsException("position beyond end");
+    }
+
+    private int visibleIndexOf(Item target) {
+        int position = 0;
+        for (Item item = head.next; item != target; item = item.next) position += item.visibleLength();
+        return position;
+    }
+
+    /** Encodes the full state, tombstones included, so a new replica can continue from it. */
+    public String encodeState() {
+        StringBuilder out = new StringBuilder();
+        for (Item item = head.next; item != null; item = item.next) {
+            out.append(item.deleted ? 'x' : 'i')
+                    .append(Integer.toString(item.replica, 36)).append('.')
+                    .append(Integer.toString(item.counter, 36)).append('.')
+                    .append(Integer.toString(item.originReplica, 36)).append('.')
+                    .append(Integer.toString(item.originCounter, 36)).append('.')
+                    .append(Integer.toString(item.length, 36)).append(':');
+            if (!item.deleted) out.append(item.content);
+        }
+        return out.toString();
+    }
+
+    public static Rga decodeState(String state, int replica) {
+        Rga rga = new Rga(replica);
+        RgaOp.Cursor cursor = new RgaOp.Cursor(state);
+        Item last = rga.head;
+        while (cursor.pos < state.length()) {
+            boolean deleted = state.charAt(cursor.pos++) == 'x';
+            int itemReplica = cursor.number('.');
+            int counter = cursor.number('.');
+            int originReplica = cursor.number('.');
+            int originCounter = cursor.number('.');
+            int length = cursor.number(':');
+            Item item = new Item(itemReplica, counter, originReplica, originCounter, deleted ? null : cursor.text(length), length);
+            item.deleted = deleted;
+            rga.linkAfter(last, item);
+            if (!deleted) rga.visibleLength += length;
+            rga.clock = Math.max(rga.clock, item.lastCounter());
+            last = item;
+        }
+        return rga;
+    }
+}
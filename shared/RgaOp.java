@@ -0,0 +1,145 @@
+package shared;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One operation of the {@link Rga} sequence CRDT.
+ * An insert carries a run of characters whose ids are (replica, counter),
+ * (replica, counter + 1), ... and the id of the character it was typed after.
+ * A delete names a run of consecutive ids of one replica.
+ * <p>
+ * Ops encode as compact text: numbers are base 36 and text is length-prefixed, e.g.
+ * {@code i1x.2s.1x.2r.5:hello} (insert) or {@code d1x.2s.3;} (delete), so a
+ * list of ops is just their encodings concatenated.
+ */
+public final class RgaOp {
+    public static final int START = 0;
+
+    private final boolean insert;
+    private final int replica;
+    private final int counter;
+    private final int originReplica;
+    private final int originCounter;
+    private final String text;
+    private final int length;
+
+    private RgaOp(boolean insert, int replica, int counter, int originReplica, int originCounter, String text, int length) {
+        this.insert = insert;
+        this.replica = replica;
+        this.counter = counter;
+        this.originReplica = originReplica;
+        this.originCounter = originCounter;
+        this.text = text;
+        this.length = length;
+    }
+
+    /** Origin (START, START) means the beginning of the document. */
+    public static RgaOp insert(int replica, int counter, int originReplica, int originCounter, String text) {
+        return new RgaOp(true, replica, counter, originReplica, originCounter, text, text.length());
+    }
+
+    public static RgaOp delete(int replica, int counter, int length) {
+        return new RgaOp(false, replica, counter, START, START, null, length);
+    }
+
+    public boolean isInsert() { return insert; }
+    public int getReplica() { return replica; }
+    public int getCounter() { return counter; }
+    public int getOriginReplica() { return originReplica; }
+    public int getOriginCounter() { return originCounter; }
+    public String getText() { return text; }
+    public int getLength() { return length; }
+
+    /**
+     * One op equivalent to this op followed by {@code next}, or null if they do not
+     * form one run: an insert typed right after this one's last character by the same
+     * replica, or a delete of the ids right after this one's.
+     */
+    public RgaOp merge(RgaOp next) {
+        if (insert != next.insert || replica != next.replica || counter + length != next.counter) return null;
+        if (!insert) return delete(replica, counter, length + next.length);
+        if (next.originReplica != replica || next.originCounter != next.counter - 1) return null;
+        return insert(replica, counter, originReplica, originCounter, text + next.text);
+    }
+
+    public void encodeTo(StringBuilder out) {
+        out.append(insert ? 'i' : 'd')
+                .append(Integer.toString(replica, 36)).append('.')
+                .append(Integer.toString(counter, 36)).append('.');
+        if (insert) {
+            out.append(Integer.toString(originReplica, 36)).append('.')
+                    .append(Integer.toString(originCounter, 36)).append('.')
+                    .append(Integer.toString(length, 36)).append(':')
+                    .append(text);
+        } else {
+            out.append(Integer.toString(length, 36)).append(';');
+        }
+    }
+
+    public static String encode(List<RgaOp> ops) {
+        StringBuilder out = new StringBuilder();
+        for (RgaOp op : ops) op.encodeTo(out);
+        return out.toString();
+    }
+
+    public static List<RgaOp> decode(String encoded) {
+        List<RgaOp> ops = new ArrayList<>();
+        Cursor cursor = new Cursor(encoded);
+        while (cursor.pos < encoded.length()) {
+            char kind = encoded.charAt(cursor.pos++);
+            int replica = cursor.number('.');
+            int counter = cursor.number('.');
+            if (replica == START || counter == START) throw new IllegalArgumentException("Reserved id at " + cursor.pos);
+            if (kind == 'i') {
+                int originReplica = cursor.number('.');
+                int originCounter = cursor.number('.');
+                int length = cursor.number(':');
+                if (length == 0) throw new IllegalArgumentException("Empty insert at " + cursor.pos);
+                ops.add(insert(replica, counter, originReplica, originCounter, cursor.text(length)));
+            } else if (kind == 'd') {
+                int length = cursor.number(';');
+                if (length == 0) throw new IllegalArgumentException("Empty delete at " + cursor.pos);
+                ops.add(delete(replica, counter, length));
+            } else {
+                throw new IllegalArgumentException("Unknown op kind '" + kind + "' at " + (cursor.pos - 1));
+            }
+        }
+        return ops;
+    }
+
+    /** Reads base-36 numbers and length-prefixed text. Package-private for {@link Rga}'s snapshot format. */
+    static final class Cursor {
+        private final String source;
+        int pos;
+
+        Cursor(String source) {
+            this.source = source;
+        }
+
+        /** Reads a base-36 number followed by {@code terminator}. */
+        int number(char terminator) {
+            int start = pos;
+            while (pos < source.length() && Character.digit(source.charAt(pos), 36) >= 0) pos++;
+            if (start == pos) throw new IllegalArgumentException("Expected a number at " + start);
+            if (pos >= source.length() || source.charAt(pos) != terminator) {
+                throw new IllegalArgumentException("Expected '" + terminator + "' at " + pos);
+            }
+            return Integer.parseInt(source, start, pos++, 36);
+        }
+
+        String text(int length) {
+            if (pos + length > source.length()) throw new IllegalArgumentException("Truncated text at " + pos);
+            String value = source.substring(pos, pos + length);
+            pos += length;
+            return value;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder();
+        encodeTo(out);
+        return out.toString();
+    }
+}
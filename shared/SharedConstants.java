@@ -10,11 +10,35 @@ public class SharedConstants {
     public static final String MSG_USER_LIST = "USER_LIST";
     public static final String MSG_SYNC = "SYNC";
     public static final String MSG_ERROR = "ERROR";
+    public static final String MSG_ACK = "ACK";
+    public static final String MSG_CRDT = "CRDT";
+    public static final String MSG_CRDT_SYNC = "CRDT_SYNC";
+    public static final String MSG_PROTOCOL = "PROTOCOL";
+    public static final String MSG_BATCH = "BATCH";
+    public static final String MSG_REPLACE = "REPLACE";
+    public static final String MSG_SYNC_PART = "SYNC_PART";
+    /** PRESENCE|joined|left: usernames that joined and left a room since the last one, each USER_LIST_DELIMITER-joined. */
+    public static final String MSG_PRESENCE = "PRESENCE";
+    public static final String FILE_TYPE_TXT = "TXT";
+    public static final String FILE_TYPE_JAVA = "JAVA";
+    public static final String SERVER_SENDER = "SERVER";
     public static final String PROTOCOL_DELIMITER = "|";
     public static final String USER_LIST_DELIMITER = ",";
     public static final String DEFAULT_USERNAME = "Anonymous";
+    public static final String DEFAULT_ROOM = "default";
     public static final int MAX_USERNAME_LENGTH = 20;
-    public static final int MAX_MESSAGE_LENGTH = 10000;
+    /** The longest line or frame, in bytes, a server reads from a client; a longer one drops the connection. */
+    public static final int MAX_MESSAGE_LENGTH = 256 * 1024;
+    /**
+     * Text longer than this many characters travels in pieces of at most this size:
+     * snapshots as SYNC_PART messages (see {@link SyncChunks}), pastes as consecutive
+     * batches (see {@link OperationClient#flush}). Three UTF-8 bytes per character
+     * still fit in {@link #MAX_MESSAGE_LENGTH}.
+     */
+    public static final int CHUNK_CHARS = 64 * 1024;
+    private static final Log LOG = Log.get("SharedConstants");
+    private static final Log.Sampler BUILT = LOG.sampled(Log.Level.DEBUG);
+    private static final Log.Sampler PARSED = LOG.sampled(Log.Level.DEBUG);
 
     private SharedConstants() {
         throw new IllegalStateException("Utility class - cannot be instantiated");
@@ -26,17 +50,16 @@ public class SharedConstants {
             message.append(PROTOCOL_DELIMITER).append(escapeText(part));
         }
         String result = message.toString();
-        System.out.println("[SharedConstants] Built message: " + result);
+        BUILT.log("Built message: {}", result);
         return result;
     }
 
     public static String[] parseMessage(String message) {
-        System.out.println("[SharedConstants] Parsing message: " + message);
         String[] parts = message.split("\\" + PROTOCOL_DELIMITER, -1);
         for (int i = 0; i < parts.length; i++) {
             parts[i] = unescapeText(parts[i]);
         }
-        System.out.println("[SharedConstants] Parsed into " + parts.length + " parts");
+        PARSED.log("Parsed into {} parts: {}", parts.length, message);
         return parts;
     }
 
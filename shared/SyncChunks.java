@@ -0,0 +1,115 @@
+package shared;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import static shared.SharedConstants.*;
+
+/**
+ * Sends snapshots of large documents in pieces. A SYNC or CRDT_SYNC whose text is
+ * longer than {@link SharedConstants#CHUNK_CHARS} becomes
+ * <pre>
+ * SYNC_PART|file|offset|totalLength|text     for every piece but the last
+ * SYNC|file|lastPiece|sender|revision|offset  (or CRDT_SYNC|file|lastPiece|sender|offset)
+ * </pre>
+ * so no frame is larger than a piece, the receiver appends each piece to one
+ * buffer of the final size instead of holding a huge line or frame several times
+ * over, and other messages can go out between the pieces. The offsets let a
+ * receiver notice a transfer that was cut short, such as a backlog that was
+ * collapsed into a fresh snapshot halfway through.
+ */
+public final class SyncChunks {
+    private static final Log LOG = Log.get("SyncChunks");
+    private static final int TEXT_FIELD = 2;
+
+    private SyncChunks() {
+        throw new IllegalStateException("Utility class - cannot be instantiated");
+    }
+
+    /** The message itself if it is small or not a snapshot, otherwise its pieces in order. */
+    public static List<Message> split(Message message) {
+        String[] parts = message.parts();
+        int fields = fields(parts[0]);
+        if (fields < 0 || parts.length != fields) return List.of(message);
+        String text = parts[TEXT_FIELD];
+        if (text.length() <= CHUNK_CHARS) return List.of(message);
+        List<Message> pieces = new ArrayList<>();
+        String total = String.valueOf(text.length());
+        int offset = 0;
+        while (text.length() - offset > CHUNK_CHARS) {
+            int end = offset + CHUNK_CHARS;
+            // Never split a surrogate pair: each piece is encoded on its own.
+            if (Character.isHighSurrogate(text.charAt(end - 1))) end--;
+            pieces.add(Message.of(MSG_SYNC_PART, parts[1], String.valueOf(offset), total, text.substring(offset, end)));
+            offset = end;
+        }
+        String[] last = Arrays.copyOf(parts, fields + 1);
+        last[TEXT_FIELD] = text.substring(offset);
+        last[fields] = String.valueOf(offset);
+        pieces.add(Message.wrap(last));
+        return pieces;
+    }
+
+    /** Fields of a complete snapshot message, or -1 for types that are not snapshots. */
+    private static int fields(String type) {
+        return switch (type) {
+            case MSG_SYNC -> 5;
+            case MSG_CRDT_SYNC -> 4;
+            default -> -1;
+        };
+    }
+
+    /** Puts the pieces back together on the receiving side; one per connection. Not thread-safe. */
+    public static final class Assembler {
+        private final Map<String, StringBuilder> pending = new HashMap<>();
+
+        /**
+         * @return the message to handle: the message itself, a whole snapshot once its
+         *         last piece arrived, or null for a piece or a snapshot that lost pieces
+         */
+        public Message accept(Message message) {
+            String[] parts = message.parts();
+            if (parts[0].equals(MSG_SYNC_PART)) {
+                acceptPiece(parts);
+                return null;
+            }
+            int fields = fields(parts[0]);
+            if (fields < 0 || parts.length < 2) return message;
+            StringBuilder text = pending.remove(parts[1]);
+            if (parts.length != fields + 1) return message;
+            int offset = number(parts[fields]);
+            if (text == null || text.length() != offset) {
+                LOG.warn("Dropped an incomplete {} of {}", parts[0], parts[1]);
+                return null;
+            }
+            String[] whole = Arrays.copyOf(parts, fields);
+            whole[TEXT_FIELD] = text.append(parts[TEXT_FIELD]).toString();
+            return Message.wrap(whole);
+        }
+
+        private void acceptPiece(String[] parts) {
+            if (parts.length < 5) return;
+            int offset = number(parts[2]);
+            StringBuilder text = pending.get(parts[1]);
+            if (offset == 0) {
+                // Sized for the whole text up front, so the pieces are copied once.
+                text = new StringBuilder(Math.max(0, Math.min(number(parts[3]), BinaryCodec.MAX_FRAME_LENGTH * 4)));
+                pending.put(parts[1], text);
+            } else if (text == null || text.length() != offset) {
+                pending.remove(parts[1]);
+                return;
+            }
+            text.append(parts[4]);
+        }
+
+        private static int number(String value) {
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package shared;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * One edit to a document: delete {@code deleteLength} characters at {@code position},
+ * then insert {@code text} there. Plain inserts and deletes are the special cases
+ * with an empty delete range or empty text. Immutable.
+ */
+public final class TextEdit {
+    private final int position;
+    private final int deleteLength;
+    private final String text;
+
+    private TextEdit(int position, int deleteLength, String text) {
+        if (position < 0 || deleteLength < 0) {
+            throw new IllegalArgumentException("negative position or length: " + position + ", " + deleteLength);
+        }
+        this.position = position;
+        this.deleteLength = deleteLength;
+        this.text = text;
+    }
+
+    public static TextEdit insert(int position, String text) {
+        return new TextEdit(position, 0, text);
+    }
+
+    public static TextEdit delete(int position, int length) {
+        return new TextEdit(position, length, "");
+    }
+
+    public static TextEdit replace(int position, int deleteLength, String text) {
+        return new TextEdit(position, deleteLength, text);
+    }
+
+    /**
+     * The single edit that turns {@code oldValue} into {@code newValue}: whatever lies
+     * between their common prefix and common suffix is replaced. Null when they are equal.
+     */
+    public static TextEdit diff(String oldValue, String newValue) {
+        int oldLen = oldValue.length(), newLen = newValue.length();
+        int shorter = Math.min(oldLen, newLen), prefix = 0, suffix = 0;
+        while (prefix < shorter && oldValue.charAt(prefix) == newValue.charAt(prefix)) prefix++;
+        if (prefix == oldLen && prefix == newLen) return null;
+        while (suffix < shorter - prefix && oldValue.charAt(oldLen - 1 - suffix) == newValue.charAt(newLen - 1 - suffix)) suffix++;
+        return replace(prefix, oldLen - prefix - suffix, newValue.substring(prefix, newLen - suffix));
+    }
+
+    public int getPosition() { return position; }
+    public int getDeleteLength() { return deleteLength; }
+    public String getText() { return text; }
+    public int end() { return position + deleteLength; }
+    public int lengthDelta() { return text.length() - deleteLength; }
+
+    public boolean isNoop() { return deleteLength == 0 && text.isEmpty(); }
+    public boolean isInsert() { return deleteLength == 0 && !text.isEmpty(); }
+    public boolean isDelete() { return deleteLength > 0 && text.isEmpty(); }
+
+    public TextEdit shift(int delta) {
+        return delta == 0 ? this : new TextEdit(position + delta, deleteLength, text);
+    }
+
+    /** True if the edit fits a document of the given length; checked without computing {@link #end()}, which may overflow. */
+    public boolean fits(int documentLength) {
+        return isNoop() || (position >= 0 && deleteLength >= 0 && position <= documentLength
+                && deleteLength <= documentLength - position);
+    }
+
+    public String applyTo(String document) {
+        if (isNoop()) return document;
+        return document.substring(0, position) + text + document.substring(end());
+    }
+
+    public void applyTo(PieceTable document) {
+        if (deleteLength > 0) document.delete(position, deleteLength);
+        if (!text.isEmpty()) document.insert(position, text);
+    }
+
+    /**
+     * Where an index (e.g. a caret) ends up after this edit. Indices inside the
+     * deleted range move to the end of the inserted text; an index exactly at an
+     * insertion point moves past the insertion.
+     */
+    public int transformIndex(int index) {
+        if (index < position) return index;
+        if (index >= end()) return index + lengthDelta();
+        return position + text.length();
+    }
+
+    /**
+     * A single edit equivalent to applying this edit and then {@code next}, or null
+     * if {@code next} does not touch the text this edit produced.
+     */
+    public TextEdit compose(TextEdit next) {
+        int insertedEnd = position + text.length();
+        if (next.position > insertedEnd || next.end() < position) return null;
+        String head = next.position > position ? text.substring(0, next.position - position) : "";
+        String tail = next.end() < insertedEnd ? text.substring(next.end() - position) : "";
+        int start = Math.min(position, next.position);
+        int originalEnd = Math.max(end(), next.end() - lengthDelta());
+        return new TextEdit(start, originalEnd - start, head + next.text + tail);
+    }
+
+    /**
+     * Appends {@code next} to a sequence of edits applied in order, composing it
+     * into the last edit where it touches that edit's text, so runs of adjacent
+     * edits stay one edit.
+     */
+    public static void append(List<TextEdit> edits, TextEdit next) {
+        if (next.isNoop()) return;
+        if (!edits.isEmpty()) {
+            TextEdit composed = edits.get(edits.size() - 1).compose(next);
+            if (composed != null) {
+                if (composed.isNoop()) edits.remove(edits.size() - 1);
+                else edits.set(edits.size() - 1, composed);
+                return;
+            }
+        }
+        edits.add(next);
+    }
+
+    /**
+     * Encodes a sequence of edits as compact text for a BATCH message: per edit the
+     * position, delete length and text length in base 36, then the text, e.g.
+     * {@code 2s.0.5:hello} or {@code 2s.3.0:}, concatenated.
+     */
+    public static String encode(List<TextEdit> edits) {
+        StringBuilder out = new StringBuilder();
+        for (TextEdit edit : edits) {
+            out.append(Integer.toString(edit.position, 36)).append('.')
+                    .append(Integer.toString(edit.deleteLength, 36)).append('.')
+                    .append(Integer.toString(edit.text.length(), 36)).append(':')
+                    .append(edit.text);
+        }
+        return out.toString();
+    }
+
+    /** @throws IllegalArgumentException if the text is not a valid {@link #encode} result */
+    public static List<TextEdit> decode(String encoded) {
+        List<TextEdit> edits = new ArrayList<>();
+        RgaOp.Cursor cursor = new RgaOp.Cursor(encoded);
+        while (cursor.pos < encoded.length()) {
+            int position = cursor.number('.');
+            int deleteLength = cursor.number('.');
+            int textLength = cursor.number(':');
+            edits.add(new TextEdit(position, deleteLength, cursor.text(textLength)));
+        }
+        return edits;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof TextEdit other)) return false;
+        return position == other.position && deleteLength == other.deleteLength && text.equals(other.text);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(position, deleteLength, text);
+    }
+
+    @Override
+    public String toString() {
+        return "TextEdit{" + position + ", -" + deleteLength + ", +\"" + text + "\"}";
+    }
+}
@@ -0,0 +1,66 @@
+package shared;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import static shared.SharedConstants.*;
+
+/**
+ * How messages are framed on a connection. Every connection starts in TEXT.
+ * A client offers {@link BinaryCodec#VERSION} as the second JOIN field; a server
+ * that accepts answers with a PROTOCOL line, the last text it sends. The client
+ * sends nothing after JOIN until it has seen the server's first reply, so both
+ * directions switch at a known point and old text clients are unaffected.
+ * <p>
+ * The offer may list {@link FrameCompression#NAME} after the version, comma-separated;
+ * a server that accepts it adds it to PROTOCOL, and from then on both sides
+ * compress their large frames.
+ */
+public enum WireFormat {
+    /** '\n'-terminated lines of escaped, '|'-delimited fields. */
+    TEXT,
+    /** Length-prefixed frames, see {@link BinaryCodec}. */
+    BINARY;
+
+    /** Encodes the message afresh; writers use {@link Message#encoded}, which encodes once. */
+    public ByteBuffer encode(Message message) {
+        if (this == BINARY) return BinaryCodec.encode(message);
+        return ByteBuffer.wrap((message.toText() + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** The format a PROTOCOL message switches its connection to, or null for any other message. */
+    public static WireFormat announcedBy(Message message) {
+        String[] parts = message.parts();
+        if (parts.length >= 2 && parts[0].equals(MSG_PROTOCOL) && parts[1].equals(BinaryCodec.VERSION)) return BINARY;
+        return null;
+    }
+
+    /** True if a PROTOCOL message also turns on compression. */
+    public static boolean announcesCompression(Message message) {
+        String[] parts = message.parts();
+        return announcedBy(message) == BINARY && parts.length >= 3 && parts[2].equals(FrameCompression.NAME);
+    }
+
+    /** What a client offers in its JOIN: the binary version, and compression unless it is turned off. */
+    public static String offer() {
+        return FrameCompression.ENABLED ? BinaryCodec.VERSION + "," + FrameCompression.NAME : BinaryCodec.VERSION;
+    }
+
+    /** True if a JOIN offers a binary protocol version this build speaks. */
+    public static boolean offersBinary(Message join) {
+        return offers(join, BinaryCodec.VERSION);
+    }
+
+    /** True if a JOIN offers binary frames with compression, and compression is not turned off here. */
+    public static boolean offersCompression(Message join) {
+        return FrameCompression.ENABLED && offersBinary(join) && offers(join, FrameCompression.NAME);
+    }
+
+    private static boolean offers(Message join, String token) {
+        String[] parts = join.parts();
+        if (parts.length < 3 || !parts[0].equals(MSG_JOIN)) return false;
+        for (String offered : parts[2].split(",")) {
+            if (offered.equals(token)) return true;
+        }
+        return false;
+    }
+}
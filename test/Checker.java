@@ -0,0 +1,52 @@
+package test;
+
+import java.io.PrintStream;
+import java.util.Random;
+
+/**
+ * Runs randomized properties: each is checked for a number of rounds, every round
+ * with a {@link Random} of its own derived from the seed, the property name and the
+ * round, so a failure can be replayed with the seed it reports.
+ */
+public final class Checker {
+    /** One round of a property; throws {@link AssertionError} when it does not hold. */
+    public interface Property {
+        void check(Random random);
+    }
+
+    private final String filter;
+    private final long seed;
+    private final int scale;
+    private final PrintStream out;
+    private int failures;
+
+    public Checker(String filter, long seed, int scale, PrintStream out) {
+        this.filter = filter;
+        this.seed = seed;
+        this.scale = scale;
+        this.out = out;
+    }
+
+    /** Checks {@code property} for {@code rounds} times the scale, stopping at its first failure. */
+    public void property(String name, int rounds, Property property) {
+        if (filter != null && !name.contains(filter)) return;
+        long started = System.nanoTime();
+        long total = (long) rounds * scale;
+        for (long round = 0; round < total; round++) {
+            try {
+                property.check(new Random(seed ^ name.hashCode() * 0x9E3779B97F4A7C15L ^ round));
+            } catch (AssertionError | RuntimeException e) {
+                failures++;
+                out.printf("%-28s FAILED in round %d (--seed=%d): %s%n", name, round, seed, e);
+                return;
+            }
+        }
+        out.printf("%-28s ok  %,9d rounds  %6d ms%n", name, total, (System.nanoTime() - started) / 1_000_000);
+    }
+
+    public int getFailures() { return failures; }
+
+    public static void expect(boolean condition, String format, Object... args) {
+        if (!condition) throw new AssertionError(String.format(format, args));
+    }
+}
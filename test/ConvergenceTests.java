@@ -0,0 +1,112 @@
+package test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import server.Document;
+import shared.OperationClient;
+import shared.TextEdit;
+
+/**
+ * Several {@link OperationClient}s editing one {@link Document} as the server does
+ * it: batches rebased and applied in arrival order, relayed to the others as
+ * encoded BATCHes and acknowledged to the sender. Clients type, flush and receive
+ * at random; once everything is delivered every client has the server's text.
+ */
+public final class ConvergenceTests {
+    private ConvergenceTests() {
+    }
+
+    public static void run(Checker checker) {
+        checker.property("convergence.ot", 2_000, ConvergenceTests::converge);
+    }
+
+    /** What the server sends a client, in order: others' edits ending at a revision, or the ACK of its batch (no edits). */
+    private record Download(String edits, int revision) { }
+
+    private static final class Client {
+        final OperationClient ot = new OperationClient();
+        final ArrayDeque<Download> downloads = new ArrayDeque<>();
+        String text;
+        List<TextEdit> upload = List.of();
+        int uploadBase;
+
+        Client(String text) {
+            this.text = text;
+            ot.reset(0);
+        }
+    }
+
+    private static void converge(Random random) {
+        Document document = new Document("TXT");
+        List<Client> clients = new ArrayList<>();
+        for (int i = 2 + random.nextInt(4); i > 0; i--) clients.add(new Client(""));
+        for (int step = 0; step < 400; step++) {
+            Client client = clients.get(random.nextInt(clients.size()));
+            switch (random.nextInt(4)) {
+                case 0 -> {
+                    TextEdit edit = RandomEdits.edit(random, client.text.length());
+                    client.ot.localEdit(edit);
+                    client.text = edit.applyTo(client.text);
+                }
+                case 1 -> flush(client);
+                case 2 -> receive(document, clients, client);
+                default -> deliver(client);
+            }
+        }
+        boolean busy = true;
+        while (busy) {
+            busy = false;
+            for (Client client : clients) {
+                while (flush(client) | receive(document, clients, client) | deliver(client)) busy = true;
+            }
+        }
+        for (Client client : clients) {
+            Checker.expect(client.text.equals(document.getText()), "client '%s' vs server '%s'", client.text, document.getText());
+        }
+    }
+
+    private static boolean flush(Client client) {
+        List<TextEdit> batch = client.ot.flush();
+        if (batch.isEmpty()) return false;
+        client.upload = batch;
+        client.uploadBase = client.ot.getRevision();
+        return true;
+    }
+
+    /** The server takes the client's batch, as ClientSession does for a BATCH. */
+    private static boolean receive(Document document, List<Client> clients, Client sender) {
+        if (sender.upload.isEmpty()) return false;
+        List<TextEdit> edits = TextEdit.decode(TextEdit.encode(sender.upload));
+        sender.upload = List.of();
+        List<TextEdit> ops = document.rebase(edits, sender.uploadBase);
+        Checker.expect(ops != null && document.fits(ops), "server refused %s at %d", edits, sender.uploadBase);
+        for (TextEdit op : ops) document.apply(op);
+        if (!ops.isEmpty()) {
+            String relayed = TextEdit.encode(ops);
+            for (Client client : clients) {
+                if (client != sender) client.downloads.add(new Download(relayed, document.getRevision()));
+            }
+        }
+        sender.downloads.add(new Download(null, document.getRevision()));
+        return true;
+    }
+
+    private static boolean deliver(Client client) {
+        Download download = client.downloads.poll();
+        if (download == null) return false;
+        if (download.edits() == null) {
+            List<TextEdit> next = client.ot.acknowledge(download.revision());
+            if (!next.isEmpty()) {
+                client.upload = next;
+                client.uploadBase = client.ot.getRevision();
+            }
+            return true;
+        }
+        List<TextEdit> edits = TextEdit.decode(download.edits());
+        int revision = download.revision() - edits.size();
+        for (TextEdit edit : edits) client.text = RandomEdits.apply(client.text, client.ot.remoteEdit(edit, ++revision));
+        return true;
+    }
+}
@@ -0,0 +1,89 @@
+package test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import server.Document;
+import shared.OperationTransform;
+import shared.TextEdit;
+
+/**
+ * {@link Document#rebase}: edits made against an older revision, rebased past
+ * everything applied since, give the text the two orders agree on by TP1; and
+ * revisions outside the history are refused. Edits that never fit the text they
+ * were made against are refused before they are rebased, however large their
+ * positions and lengths.
+ */
+public final class DocumentRebaseTests {
+    private DocumentRebaseTests() {
+    }
+
+    public static void run(Checker checker) {
+        checker.property("document.rebase", 30_000, DocumentRebaseTests::rebase);
+        checker.property("document.rebaseBounds", 20, DocumentRebaseTests::bounds);
+        checker.property("document.fitsAtBase", 30_000, DocumentRebaseTests::fitsAtBase);
+    }
+
+    private static void rebase(Random random) {
+        Document document = new Document("TXT");
+        document.apply(TextEdit.insert(0, RandomEdits.text(random, 12)));
+        List<String> texts = new ArrayList<>();
+        texts.add(document.getText());
+        for (int i = random.nextInt(8); i > 0; i--) {
+            document.apply(RandomEdits.edit(random, document.length()));
+            texts.add(document.getText());
+        }
+        int base = 1 + random.nextInt(texts.size());
+        String baseText = texts.get(base - 1);
+        List<TextEdit> edits = OperationTransformTests.sequence(random, baseText);
+        List<TextEdit> since = document.editsSince(base);
+
+        List<TextEdit> ops = document.rebase(edits, base);
+        Checker.expect(ops != null && document.fits(ops), "rebase of %s at %d refused", edits, base);
+        for (TextEdit op : ops) document.apply(op);
+
+        // The other order: the client's edits first, then the server's transformed past them
+        String clientFirst = RandomEdits.apply(RandomEdits.apply(baseText, edits), OperationTransform.transform(since, edits, true).ops());
+        Checker.expect(document.getText().equals(clientFirst), "'%s' %s at %d past %s: '%s' vs '%s'",
+                baseText, edits, base, since, document.getText(), clientFirst);
+    }
+
+    private static void fitsAtBase(Random random) {
+        Document document = new Document("TXT");
+        document.apply(TextEdit.insert(0, RandomEdits.text(random, 12)));
+        List<String> texts = new ArrayList<>();
+        texts.add(document.getText());
+        for (int i = random.nextInt(8); i > 0; i--) {
+            document.apply(RandomEdits.edit(random, document.length()));
+            texts.add(document.getText());
+        }
+        int base = 1 + random.nextInt(texts.size());
+        String baseText = texts.get(base - 1);
+        List<TextEdit> edits = OperationTransformTests.sequence(random, baseText);
+        Checker.expect(document.fits(edits, base), "%s made against '%s' at %d refused", edits, baseText, base);
+
+        // One edit reaching past the base text, anywhere in the sequence
+        List<TextEdit> outside = new ArrayList<>(edits.subList(0, random.nextInt(edits.size() + 1)));
+        int length = RandomEdits.apply(baseText, outside).length();
+        outside.add(switch (random.nextInt(4)) {
+            case 0 -> TextEdit.insert(length + 1 + random.nextInt(3), "x");
+            case 1 -> TextEdit.delete(random.nextInt(length + 1), length + 1);
+            case 2 -> TextEdit.delete(Integer.MAX_VALUE - random.nextInt(3), 1 + random.nextInt(3));
+            default -> TextEdit.replace(random.nextInt(length + 1), Integer.MAX_VALUE - random.nextInt(3), "x");
+        });
+        Checker.expect(!document.fits(outside, base), "%s made against '%s' at %d accepted", outside, baseText, base);
+        Checker.expect(!document.fits(edits, document.getRevision() + 1), "edits against a future revision accepted");
+    }
+
+    private static void bounds(Random random) {
+        Document document = new Document("TXT");
+        int applied = Document.HISTORY_LIMIT + 1 + random.nextInt(100);
+        for (int i = 0; i < applied; i++) document.apply(RandomEdits.edit(random, document.length()));
+        List<TextEdit> edit = List.of(TextEdit.insert(0, "x"));
+        int oldest = applied - Document.HISTORY_LIMIT;
+        Checker.expect(document.rebase(edit, oldest - 1) == null, "rebase past the history accepted");
+        Checker.expect(document.rebase(edit, applied + 1) == null, "rebase from a future revision accepted");
+        Checker.expect(document.rebase(edit, oldest) != null, "rebase from the oldest revision refused");
+        Checker.expect(document.rebase(edit, applied).equals(edit), "rebase from the current revision changed the edits");
+    }
+}
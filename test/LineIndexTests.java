@@ -0,0 +1,105 @@
+package test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import shared.LineIndex;
+import shared.TextEdit;
+
+/**
+ * {@link LineIndex} against splitting the text at its newlines: built from a text
+ * and kept up to date edit by edit, it has the same lines, and offsets and
+ * line/column convert the same way. Long lines, with no newline for hundreds of
+ * thousands of characters, are covered too, and building the index of one stays
+ * linear in its length.
+ */
+public final class LineIndexTests {
+    private static final String LINE_ALPHABET = "abc\n";
+
+    private LineIndexTests() {
+    }
+
+    public static void run(Checker checker) {
+        checker.property("lineIndex.edits", 2_000, LineIndexTests::edits);
+        checker.property("lineIndex.longLines", 20, LineIndexTests::longLines);
+        checker.property("lineIndex.buildLinear", 1, random -> buildLinear());
+    }
+
+    /** Random edits, some inserting more than a segment holds, applied to the text and the index. */
+    private static void edits(Random random) {
+        String text = RandomEdits.text(random, 200);
+        LineIndex index = new LineIndex(text);
+        for (int i = random.nextInt(30); i >= 0; i--) {
+            TextEdit edit = random.nextInt(10) == 0
+                    ? TextEdit.insert(random.nextInt(text.length() + 1), text(random, 5_000 + random.nextInt(10_000), 200))
+                    : RandomEdits.edit(random, text.length());
+            text = edit.applyTo(text);
+            index.apply(edit);
+        }
+        check(text, index, random);
+    }
+
+    /** A few lines hundreds of thousands of characters long, built at once and edited. */
+    private static void longLines(Random random) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = random.nextInt(3); i >= 0; i--) {
+            builder.append("x".repeat(random.nextInt(400_000)));
+            if (random.nextBoolean()) builder.append('\n');
+        }
+        String text = builder.toString();
+        LineIndex index = new LineIndex(text);
+        check(text, index, random);
+        TextEdit edit = TextEdit.replace(random.nextInt(text.length() + 1), 0, "y\ny");
+        index.apply(edit);
+        check(edit.applyTo(text), index, random);
+    }
+
+    /** Used to rescan to the end of the text for every segment: a 4M character line took over a second. */
+    private static void buildLinear() {
+        String line = "x".repeat(32_000_000);
+        long started = System.nanoTime();
+        LineIndex index = new LineIndex(line);
+        long millis = (System.nanoTime() - started) / 1_000_000;
+        Checker.expect(index.lineCount() == 1 && index.length() == line.length(), "%d lines of %d", index.lineCount(), index.length());
+        Checker.expect(millis < 2_000, "indexing one line of %d characters took %d ms", line.length(), millis);
+    }
+
+    /** Random text with a newline about every {@code lineLength} characters. */
+    private static String text(Random random, int length, int lineLength) {
+        StringBuilder text = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            text.append(random.nextInt(lineLength) == 0 ? '\n' : LINE_ALPHABET.charAt(random.nextInt(LINE_ALPHABET.length() - 1)));
+        }
+        return text.toString();
+    }
+
+    private static void check(String text, LineIndex index, Random random) {
+        List<Integer> starts = new ArrayList<>();
+        starts.add(0);
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n') starts.add(i + 1);
+        }
+        Checker.expect(index.length() == text.length(), "length %d, text %d", index.length(), text.length());
+        Checker.expect(index.lineCount() == starts.size(), "%d lines, text has %d", index.lineCount(), starts.size());
+        for (int line = 0; line < starts.size(); line++) {
+            Checker.expect(index.lineStart(line) == starts.get(line), "line %d starts at %d, not %d", line, index.lineStart(line), starts.get(line));
+        }
+        for (int i = 0; i < 50; i++) {
+            int offset = random.nextInt(text.length() + 1);
+            int line = lineOf(starts, offset);
+            int column = offset - starts.get(line);
+            Checker.expect(index.lineOf(offset) == line, "offset %d on line %d, not %d", offset, index.lineOf(offset), line);
+            Checker.expect(index.columnOf(offset) == column, "offset %d at column %d, not %d", offset, index.columnOf(offset), column);
+            Checker.expect(index.offsetOf(line, column) == offset, "%d:%d at %d, not %d", line, column, index.offsetOf(line, column), offset);
+        }
+        int last = starts.size() - 1;
+        Checker.expect(index.offsetOf(last, text.length() - starts.get(last) + 1) == -1, "a column past the last line's end accepted");
+        Checker.expect(index.offsetOf(starts.size(), 0) == -1, "a line past the end accepted");
+    }
+
+    private static int lineOf(List<Integer> starts, int offset) {
+        int found = Collections.binarySearch(starts, offset);
+        return found >= 0 ? found : -found - 2;
+    }
+}
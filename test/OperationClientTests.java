@@ -0,0 +1,136 @@
+package test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import shared.OperationClient;
+import shared.OperationTransform;
+import shared.SharedConstants;
+import shared.TextEdit;
+
+/**
+ * {@link OperationClient} against a server that only sequences: what the client
+ * flushes reproduces its text, batches stay within {@link SharedConstants#CHUNK_CHARS},
+ * and remote edits transformed past the client's unacknowledged ones converge.
+ */
+public final class OperationClientTests {
+    private OperationClientTests() {
+    }
+
+    public static void run(Checker checker) {
+        checker.property("client.flush", 50_000, random -> flush(random, 0));
+        checker.property("client.flushLargePaste", 50, random -> flush(random, SharedConstants.CHUNK_CHARS * 3));
+        checker.property("client.remoteEdits", 20_000, OperationClientTests::remoteEdits);
+    }
+
+    /** Local edits only: batch after batch, the server ends up with the client's text. */
+    private static void flush(Random random, int pasteChars) {
+        String server = RandomEdits.text(random, 12);
+        String local = server;
+        OperationClient client = new OperationClient();
+        client.reset(0);
+        for (int i = random.nextInt(8); i >= 0; i--) {
+            TextEdit edit = pasteChars > 0 && random.nextInt(3) == 0
+                    ? TextEdit.insert(random.nextInt(local.length() + 1), "p".repeat(1 + random.nextInt(pasteChars)))
+                    : RandomEdits.edit(random, local.length());
+            client.localEdit(edit);
+            local = edit.applyTo(local);
+        }
+        int revision = 0;
+        for (List<TextEdit> batch = client.flush(); !batch.isEmpty(); batch = client.acknowledge(revision)) {
+            Checker.expect(client.flush().isEmpty(), "a second batch went out before the ACK");
+            int chars = 0;
+            for (TextEdit edit : batch) chars += edit.getText().length();
+            Checker.expect(chars <= SharedConstants.CHUNK_CHARS, "batch of %d characters", chars);
+            server = RandomEdits.apply(server, batch);
+            revision += batch.size();
+        }
+        Checker.expect(server.equals(local), "server '%s' vs client '%s'", server, local);
+    }
+
+    /**
+     * One client, and edits another client makes meanwhile; the server sequences
+     * both, and its messages reach the client in order at random points between
+     * the client's own edits and flushes.
+     */
+    private static void remoteEdits(Random random) {
+        Session session = new Session(RandomEdits.text(random, 12));
+        for (int step = 0; step < 60; step++) {
+            switch (random.nextInt(5)) {
+                case 0 -> session.localEdit(RandomEdits.edit(random, session.local.length()));
+                case 1 -> session.otherEdit(RandomEdits.edit(random, session.server.length()));
+                case 2 -> session.receiveUpload();
+                case 3 -> session.deliver();
+                default -> session.flush();
+            }
+        }
+        while (session.receiveUpload() || session.deliver() || session.flush()) {
+            // Until nothing is in flight
+        }
+        Checker.expect(session.local.equals(session.server), "client '%s' vs server '%s'", session.local, session.server);
+    }
+
+    /** A client's text and {@link OperationClient}, and a server that sequences edits into a history. */
+    private static final class Session {
+        /** What the server sends the client, in order: another client's edit, or the ACK of the client's batch (no edit). */
+        private record Download(TextEdit edit, int revision) { }
+
+        private final OperationClient client = new OperationClient();
+        private final List<TextEdit> history = new ArrayList<>();
+        private final ArrayDeque<Download> downloads = new ArrayDeque<>();
+        private String server;
+        private String local;
+        private List<TextEdit> upload = List.of();
+        private int uploadBase;
+
+        Session(String text) {
+            server = text;
+            local = text;
+            client.reset(0);
+        }
+
+        void localEdit(TextEdit edit) {
+            client.localEdit(edit);
+            local = edit.applyTo(local);
+        }
+
+        void otherEdit(TextEdit edit) {
+            server = edit.applyTo(server);
+            history.add(edit);
+            downloads.add(new Download(edit, history.size()));
+        }
+
+        /** The server rebases the batch past what it sequenced since the batch's base, as {@code Document.rebase} does. */
+        boolean receiveUpload() {
+            if (upload.isEmpty()) return false;
+            List<TextEdit> since = new ArrayList<>(history.subList(uploadBase, history.size()));
+            List<TextEdit> ops = OperationTransform.transform(upload, since, false).ops();
+            server = RandomEdits.apply(server, ops);
+            history.addAll(ops);
+            downloads.add(new Download(null, history.size()));
+            upload = List.of();
+            return true;
+        }
+
+        boolean deliver() {
+            Download download = downloads.poll();
+            if (download == null) return false;
+            if (download.edit() == null) {
+                upload = client.acknowledge(download.revision());
+                uploadBase = client.getRevision();
+            } else {
+                local = RandomEdits.apply(local, client.remoteEdit(download.edit(), download.revision()));
+            }
+            return true;
+        }
+
+        boolean flush() {
+            List<TextEdit> batch = client.flush();
+            if (batch.isEmpty()) return false;
+            upload = batch;
+            uploadBase = client.getRevision();
+            return true;
+        }
+    }
+}
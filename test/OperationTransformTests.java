@@ -0,0 +1,65 @@
+package test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import shared.OperationTransform;
+import shared.TextEdit;
+
+/**
+ * TP1 for {@link OperationTransform}: two edits made against the same text, each
+ * applied after the other transformed past it, give the same text whichever goes
+ * first. Also for sequences of edits, and for {@link TextEdit#compose}.
+ */
+public final class OperationTransformTests {
+    private OperationTransformTests() {
+    }
+
+    public static void run(Checker checker) {
+        checker.property("ot.tp1.single", 200_000, OperationTransformTests::tp1Single);
+        checker.property("ot.tp1.sequences", 50_000, OperationTransformTests::tp1Sequences);
+        checker.property("ot.compose", 100_000, OperationTransformTests::compose);
+    }
+
+    private static void tp1Single(Random random) {
+        String text = RandomEdits.text(random, 12);
+        TextEdit a = RandomEdits.edit(random, text.length());
+        TextEdit b = RandomEdits.edit(random, text.length());
+        boolean aFirst = random.nextBoolean();
+        String afterA = RandomEdits.apply(a.applyTo(text), OperationTransform.transform(b, a, !aFirst));
+        String afterB = RandomEdits.apply(b.applyTo(text), OperationTransform.transform(a, b, aFirst));
+        Checker.expect(afterA.equals(afterB), "'%s' a=%s b=%s aFirst=%s: '%s' vs '%s'", text, a, b, aFirst, afterA, afterB);
+    }
+
+    private static void tp1Sequences(Random random) {
+        String text = RandomEdits.text(random, 12);
+        List<TextEdit> a = sequence(random, text);
+        List<TextEdit> b = sequence(random, text);
+        boolean aFirst = random.nextBoolean();
+        OperationTransform.Result result = OperationTransform.transform(a, b, aFirst);
+        String afterA = RandomEdits.apply(RandomEdits.apply(text, a), result.against());
+        String afterB = RandomEdits.apply(RandomEdits.apply(text, b), result.ops());
+        Checker.expect(afterA.equals(afterB), "'%s' a=%s b=%s aFirst=%s: '%s' vs '%s'", text, a, b, aFirst, afterA, afterB);
+    }
+
+    private static void compose(Random random) {
+        String text = RandomEdits.text(random, 12);
+        TextEdit first = RandomEdits.edit(random, text.length());
+        String between = first.applyTo(text);
+        TextEdit second = RandomEdits.edit(random, between.length());
+        TextEdit composed = first.compose(second);
+        if (composed == null) return;
+        Checker.expect(composed.applyTo(text).equals(second.applyTo(between)), "'%s' %s then %s composed to %s", text, first, second, composed);
+    }
+
+    /** One to four consecutive edits starting from {@code text}. */
+    static List<TextEdit> sequence(Random random, String text) {
+        List<TextEdit> edits = new ArrayList<>();
+        for (int i = random.nextInt(4); i >= 0; i--) {
+            TextEdit edit = RandomEdits.edit(random, text.length());
+            edits.add(edit);
+            text = edit.applyTo(text);
+        }
+        return edits;
+    }
+}
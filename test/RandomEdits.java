@@ -0,0 +1,40 @@
+package test;
+
+import java.util.List;
+import java.util.Random;
+import shared.TextEdit;
+
+/** Random documents and edits for the properties, small enough that edits often collide. */
+final class RandomEdits {
+    private static final String ALPHABET = "abcdefghij\n";
+
+    private RandomEdits() {
+    }
+
+    static String text(Random random, int maxLength) {
+        int length = random.nextInt(maxLength + 1);
+        StringBuilder text = new StringBuilder(length);
+        for (int i = 0; i < length; i++) text.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+        return text.toString();
+    }
+
+    /** An insert, delete or replace that fits a document of {@code length}; sometimes a no-op. */
+    static TextEdit edit(Random random, int length) {
+        int position = random.nextInt(length + 1);
+        int deleteLength = Math.min(random.nextInt(length - position + 1), random.nextInt(5));
+        return switch (random.nextInt(3)) {
+            case 0 -> TextEdit.insert(position, text(random, 3) + "X");
+            case 1 -> TextEdit.delete(position, deleteLength);
+            default -> TextEdit.replace(position, deleteLength, text(random, 3));
+        };
+    }
+
+    /** Applies the edits in order, failing if one falls outside the document. */
+    static String apply(String document, List<TextEdit> edits) {
+        for (TextEdit edit : edits) {
+            Checker.expect(edit.fits(document.length()), "%s does not fit a document of %d", edit, document.length());
+            document = edit.applyTo(document);
+        }
+        return document;
+    }
+}
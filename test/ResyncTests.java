@@ -0,0 +1,175 @@
+package test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+import server.ConnectedClient;
+import server.Convergence;
+import server.Document;
+import server.OverflowPolicy;
+import server.Room;
+import server.ServerBroadcaster;
+import shared.Message;
+import shared.TextEdit;
+import static shared.SharedConstants.*;
+
+/**
+ * {@link OverflowPolicy#RESYNC} with two documents edited on two threads, each
+ * broadcasting under its document's lock as the server does, and two clients that
+ * drain their queues only now and then. Overflowing while a document is locked
+ * must not wait for the other document's lock, and once the clients catch up
+ * their copies match the server's.
+ */
+public final class ResyncTests {
+    private static final int QUEUE_CAPACITY = 16;
+    private static final int EDITS = 3_000;
+
+    private ResyncTests() {
+    }
+
+    public static void run(Checker checker) {
+        checker.property("server.resyncTwoDocuments", 10, ResyncTests::twoDocuments);
+    }
+
+    /** A client without a socket that takes what is queued for it only every few messages, and applies it to its copies. */
+    private static final class SlowClient extends ConnectedClient {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final List<Message> drained = new ArrayList<>();
+        private final Map<String, String> texts = new HashMap<>(Map.of(FILE_TYPE_TXT, "", FILE_TYPE_JAVA, ""));
+        private volatile boolean draining;
+        private int syncs;
+        private String error;
+
+        SlowClient(ServerBroadcaster broadcaster) {
+            super(broadcaster);
+        }
+
+        /** Joins the default room as a JOIN would, without the catch-up: the documents are still empty. */
+        Room join() {
+            room = broadcaster.join(this, DEFAULT_ROOM);
+            return room;
+        }
+
+        @Override
+        protected void switchInputToBinary() {
+        }
+
+        @Override
+        protected void closeTransport() {
+        }
+
+        @Override
+        protected void onOutboundReady() {
+            if (draining || ThreadLocalRandom.current().nextInt(4) == 0) drain();
+        }
+
+        void drain() {
+            lock.lock();
+            try {
+                drainOutbound(drained);
+                for (Message message : drained) receive(message.parts());
+                drained.clear();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void receive(String[] parts) {
+            switch (parts[0]) {
+                case MSG_SYNC -> {
+                    texts.put(parts[1], parts[2]);
+                    syncs++;
+                }
+                case MSG_BATCH -> {
+                    String text = texts.get(parts[1]);
+                    for (TextEdit edit : TextEdit.decode(parts[2])) {
+                        if (!edit.fits(text.length())) {
+                            if (error == null) error = edit + " outside " + parts[1] + " of length " + text.length();
+                            return;
+                        }
+                        text = edit.applyTo(text);
+                    }
+                    texts.put(parts[1], text);
+                }
+                default -> {
+                }
+            }
+        }
+
+        boolean matches(Room room) {
+            lock.lock();
+            try {
+                for (Map.Entry<String, String> entry : texts.entrySet()) {
+                    Document document = room.getDocuments().get(entry.getKey());
+                    document.lock();
+                    try {
+                        if (!document.getText().equals(entry.getValue())) return false;
+                    } finally {
+                        document.unlock();
+                    }
+                }
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static void twoDocuments(Random random) {
+        ServerBroadcaster broadcaster = new ServerBroadcaster(QUEUE_CAPACITY, OverflowPolicy.RESYNC, Convergence.OT);
+        List<SlowClient> clients = List.of(new SlowClient(broadcaster), new SlowClient(broadcaster));
+        Room room = null;
+        for (SlowClient client : clients) room = client.join();
+        List<Thread> editors = new ArrayList<>();
+        for (String name : List.of(FILE_TYPE_TXT, FILE_TYPE_JAVA)) {
+            Document document = room.getDocuments().get(name);
+            Random edits = new Random(random.nextLong());
+            Room target = room;
+            editors.add(Thread.ofPlatform().daemon().name("editor-" + name).start(() -> edit(target, document, edits)));
+        }
+        try {
+            for (Thread editor : editors) editor.join(10_000);
+            for (Thread editor : editors) Checker.expect(!editor.isAlive(), "%s still waiting after 10 s: deadlocked", editor.getName());
+            long deadline = System.nanoTime() + 5_000_000_000L;
+            for (SlowClient client : clients) {
+                client.draining = true;
+                client.drain();
+                while (!client.matches(room) && System.nanoTime() < deadline) {
+                    Thread.sleep(1);
+                    client.drain();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AssertionError(e);
+        }
+        int syncs = 0;
+        for (SlowClient client : clients) {
+            Checker.expect(client.isConnected(), "a slow client was disconnected");
+            Checker.expect(client.error == null, "%s", client.error);
+            Checker.expect(client.matches(room), "a client's copies %s differ from the server's", client.texts);
+            syncs += client.syncs;
+        }
+        Checker.expect(syncs > 0, "the queues never overflowed");
+    }
+
+    /** Edits the document and broadcasts each edit while holding its lock, as ClientSession does. */
+    private static void edit(Room room, Document document, Random random) {
+        for (int i = 0; i < EDITS; i++) {
+            document.lock();
+            try {
+                TextEdit edit = RandomEdits.edit(random, document.length());
+                if (edit.isNoop()) continue;
+                int revision = document.apply(edit);
+                room.broadcast(Message.of(MSG_BATCH, document.getName(), TextEdit.encode(List.of(edit)), "editor",
+                        String.valueOf(revision)), null);
+            } finally {
+                document.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import shared.Rga;
+import shared.RgaOp;
+
+/**
+ * {@link Rga} replicas that type and delete concurrently and exchange their ops
+ * in random order, ops arriving before the characters they refer to included,
+ * end up with the same text, and the edits each op reports reproduce it. Ops
+ * delivered twice change nothing. A source may leave at most {@link Rga#MAX_PENDING}
+ * ops waiting, and a replica decoded from another's state has its text and keeps
+ * converging with it.
+ */
+public final class RgaTests {
+    private RgaTests() {
+    }
+
+    public static void run(Checker checker) {
+        checker.property("rga.convergence", 500, RgaTests::convergence);
+        checker.property("rga.redelivery", 500, RgaTests::redelivery);
+        checker.property("rga.pendingCap", 20, RgaTests::pendingCap);
+        checker.property("rga.stateRoundTrip", 300, RgaTests::stateRoundTrip);
+    }
+
+    /** One replica, the ops it has not been sent yet, and its text as rebuilt from the edits {@link Rga#apply} reported. */
+    private static final class Replica {
+        final Rga rga;
+        final List<RgaOp> unseen = new ArrayList<>();
+        String text;
+
+        Replica(Rga rga) {
+            this.rga = rga;
+            this.text = rga.text();
+        }
+
+        void receive(RgaOp op) {
+            text = RandomEdits.apply(text, rga.apply(op));
+            Checker.expect(text.equals(rga.text()), "replica %d reported edits giving \"%s\", its text is \"%s\"", rga.getReplica(), text, rga.text());
+        }
+    }
+
+    private static void convergence(Random random) {
+        List<Replica> replicas = replicas(random);
+        edit(random, replicas, 1 + random.nextInt(40));
+        deliverAll(random, replicas);
+        expectConverged(replicas);
+    }
+
+    /** Every op delivered again, in another order, once all of them have been. */
+    private static void redelivery(Random random) {
+        List<Replica> replicas = replicas(random);
+        List<RgaOp> all = edit(random, replicas, 1 + random.nextInt(30));
+        deliverAll(random, replicas);
+        for (Replica replica : replicas) {
+            String text = replica.rga.text();
+            int items = replica.rga.itemCount();
+            Collections.shuffle(all, random);
+            for (RgaOp op : all) {
+                Checker.expect(replica.rga.apply(op).isEmpty(), "redelivered %s changed replica %d", op, replica.rga.getReplica());
+            }
+            Checker.expect(replica.rga.text().equals(text), "redelivery changed \"%s\" into \"%s\"", text, replica.rga.text());
+            Checker.expect(replica.rga.itemCount() == items, "redelivery changed %d items into %d", items, replica.rga.itemCount());
+            Checker.expect(replica.rga.pendingCount() == 0, "%d ops wait after redelivery", replica.rga.pendingCount());
+        }
+    }
+
+    /** Ops after characters no replica typed wait up to the cap per source; discarding them frees the source. */
+    private static void pendingCap(Random random) {
+        Rga rga = new Rga(2);
+        long source = 1 + random.nextInt(1_000);
+        int counter = 1;
+        for (int i = 0; i < Rga.MAX_PENDING; i++) {
+            rga.apply(RgaOp.insert(3, counter++, 9, 1 + random.nextInt(5), "a"), source);
+        }
+        Checker.expect(rga.pendingCount() == Rga.MAX_PENDING, "%d ops wait, not %d", rga.pendingCount(), Rga.MAX_PENDING);
+        boolean refused = false;
+        try {
+            rga.apply(RgaOp.insert(3, counter++, 9, 1, "a"), source);
+        } catch (IllegalStateException e) {
+            refused = true;
+        }
+        Checker.expect(refused, "op %d past the cap accepted", Rga.MAX_PENDING + 1);
+        Checker.expect(rga.pendingCount() == Rga.MAX_PENDING, "the refused op was kept: %d ops wait", rga.pendingCount());
+        // Other sources, and source 0, are not held back by this one.
+        rga.apply(RgaOp.insert(3, counter++, 9, 1, "b"), source + 1);
+        rga.apply(RgaOp.insert(3, counter++, 9, 1, "c"));
+        int discarded = rga.discardPending(source);
+        Checker.expect(discarded == Rga.MAX_PENDING, "discarded %d ops, not %d", discarded, Rga.MAX_PENDING);
+        Checker.expect(rga.discardPending(source) == 0, "discarded the same source twice");
+        Checker.expect(rga.pendingCount() == 2, "%d ops wait after discarding, not 2", rga.pendingCount());
+        rga.apply(RgaOp.insert(3, counter, 9, 1, "d"), source);
+        // The character they all wait for arrives: only the ops that were not discarded apply.
+        rga.apply(RgaOp.insert(9, 1, RgaOp.START, RgaOp.START, "x"));
+        Checker.expect(rga.pendingCount() == 0, "%d ops still wait", rga.pendingCount());
+        Checker.expect(rga.length() == 4, "\"%s\" holds discarded ops", rga.text());
+    }
+
+    /** A replica decoded from another's state, tombstones and all, then edited alongside the others. */
+    private static void stateRoundTrip(Random random) {
+        List<Replica> replicas = replicas(random);
+        edit(random, replicas, random.nextInt(30));
+        deliverAll(random, replicas);
+        Replica from = replicas.get(random.nextInt(replicas.size()));
+        Rga decoded = Rga.decodeState(from.rga.encodeState(), 2 + replicas.size());
+        Checker.expect(decoded.text().equals(from.rga.text()), "decoded \"%s\" from \"%s\"", decoded.text(), from.rga.text());
+        Checker.expect(decoded.length() == from.rga.length(), "decoded length %d, not %d", decoded.length(), from.rga.length());
+        Checker.expect(decoded.encodeState().equals(from.rga.encodeState()), "the decoded state encodes differently");
+        replicas.add(new Replica(decoded));
+        edit(random, replicas, 1 + random.nextInt(30));
+        deliverAll(random, replicas);
+        expectConverged(replicas);
+    }
+
+    /** Two to four replicas with distinct ids, as clients have. */
+    private static List<Replica> replicas(Random random) {
+        List<Replica> replicas = new ArrayList<>();
+        for (int i = 2 + random.nextInt(3); i > 0; i--) replicas.add(new Replica(new Rga(2 + replicas.size())));
+        return replicas;
+    }
+
+    /** Random local edits on random replicas, now and then delivering some ops in between; returns every op made. */
+    private static List<RgaOp> edit(Random random, List<Replica> replicas, int edits) {
+        List<RgaOp> all = new ArrayList<>();
+        for (int i = 0; i < edits; i++) {
+            Replica replica = replicas.get(random.nextInt(replicas.size()));
+            int length = replica.rga.length();
+            List<RgaOp> ops = new ArrayList<>();
+            if (length == 0 || random.nextInt(3) > 0) {
+                ops.add(replica.rga.localInsert(random.nextInt(length + 1), RandomEdits.text(random, 3) + "X"));
+            } else {
+                int position = random.nextInt(length);
+                ops.addAll(replica.rga.localDelete(position, 1 + random.nextInt(Math.min(5, length - position))));
+            }
+            replica.text = replica.rga.text();
+            all.addAll(ops);
+            for (Replica other : replicas) {
+                if (other != replica) other.unseen.addAll(ops);
+            }
+            if (random.nextInt(4) == 0) deliverSome(random, replicas.get(random.nextInt(replicas.size())));
+        }
+        return all;
+    }
+
+    private static void deliverSome(Random random, Replica replica) {
+        Collections.shuffle(replica.unseen, random);
+        int count = random.nextInt(replica.unseen.size() + 1);
+        for (int i = 0; i < count; i++) replica.receive(replica.unseen.remove(replica.unseen.size() - 1));
+    }
+
+    /** Delivers everything outstanding, shuffled, so ops often arrive before what they refer to. */
+    private static void deliverAll(Random random, List<Replica> replicas) {
+        for (Replica replica : replicas) {
+            Collections.shuffle(replica.unseen, random);
+            for (RgaOp op : replica.unseen) replica.receive(op);
+            replica.unseen.clear();
+        }
+    }
+
+    private static void expectConverged(List<Replica> replicas) {
+        String expected = replicas.get(0).rga.text();
+        for (Replica replica : replicas) {
+            Checker.expect(replica.rga.pendingCount() == 0, "replica %d has %d ops waiting", replica.rga.getReplica(), replica.rga.pendingCount());
+            Checker.expect(replica.rga.text().equals(expected), "replica %d has \"%s\", replica %d \"%s\"",
+                    replica.rga.getReplica(), replica.rga.text(), replicas.get(0).rga.getReplica(), expected);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package test;
+
+/**
+ * Runs the randomized property tests and exits with status 1 if any fails.
+ * Usage: java test.TestMain [nameFilter] [--seed=N] [--scale=N]
+ * Without --seed every run picks a new seed and prints it; a failure reports the
+ * seed to rerun it with. --scale multiplies every property's rounds.
+ */
+public class TestMain {
+    public static void main(String[] args) {
+        String filter = null;
+        long seed = System.nanoTime();
+        int scale = 1;
+        for (String arg : args) {
+            if (arg.startsWith("--seed=")) seed = Long.parseLong(arg.substring("--seed=".length()));
+            else if (arg.startsWith("--scale=")) scale = Math.max(1, Integer.parseInt(arg.substring("--scale=".length())));
+            else filter = arg;
+        }
+        System.out.println("Seed " + seed);
+        Checker checker = new Checker(filter, seed, scale, System.out);
+        TextEditTests.run(checker);
+        OperationTransformTests.run(checker);
+        LineIndexTests.run(checker);
+        OperationClientTests.run(checker);
+        DocumentRebaseTests.run(checker);
+        ConvergenceTests.run(checker);
+        RgaTests.run(checker);
+        ResyncTests.run(checker);
+        if (checker.getFailures() > 0) {
+            System.out.println(checker.getFailures() + " properties failed");
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package test;
+
+import java.util.Random;
+import shared.TextEdit;
+
+/**
+ * {@link TextEdit#fits} agrees with range arithmetic done in longs, including
+ * positions and lengths whose sum overflows an int.
+ */
+public final class TextEditTests {
+    private TextEditTests() {
+    }
+
+    public static void run(Checker checker) {
+        checker.property("textEdit.fits", 200_000, TextEditTests::fits);
+        checker.property("textEdit.fitsOverflow", 1, random -> overflow());
+    }
+
+    private static void fits(Random random) {
+        int length = random.nextBoolean() ? random.nextInt(20) : Integer.MAX_VALUE - random.nextInt(20);
+        int position = number(random, length);
+        int deleteLength = number(random, length);
+        TextEdit edit = TextEdit.replace(position, deleteLength, random.nextBoolean() ? "" : "x");
+        boolean expected = edit.isNoop() || (long) position + deleteLength <= length;
+        Checker.expect(edit.fits(length) == expected, "%s in a document of %d: fits %s", edit, length, !expected);
+    }
+
+    /** Small, around {@code length}, or close to {@link Integer#MAX_VALUE}. */
+    private static int number(Random random, int length) {
+        return switch (random.nextInt(3)) {
+            case 0 -> random.nextInt(20);
+            case 1 -> Math.max(0, length - 10 + random.nextInt(20));
+            default -> Integer.MAX_VALUE - random.nextInt(20);
+        };
+    }
+
+    private static void overflow() {
+        Checker.expect(!TextEdit.delete(Integer.MAX_VALUE, 2).fits("hello".length()), "DELETE at MAX_VALUE of 2 fits \"hello\"");
+        Checker.expect(!TextEdit.delete(2, Integer.MAX_VALUE).fits("hello".length()), "DELETE at 2 of MAX_VALUE fits \"hello\"");
+        Checker.expect(!TextEdit.replace(Integer.MAX_VALUE, Integer.MAX_VALUE, "x").fits(Integer.MAX_VALUE), "REPLACE of MAX_VALUE at MAX_VALUE fits");
+        Checker.expect(!TextEdit.insert(Integer.MAX_VALUE, "x").fits(5), "INSERT at MAX_VALUE fits \"hello\"");
+        Checker.expect(TextEdit.delete(5, 0).fits(5) && TextEdit.delete(0, 5).fits(5), "edits up to the end of \"hello\" refused");
+    }
+}